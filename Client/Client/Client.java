@@ -54,7 +54,7 @@ public abstract class Client
 					execute(cmd, arguments);
 				}
 			}
-			catch (IllegalArgumentException|ServerException e) {
+			catch (IllegalArgumentException|ServerException|TransactionAbortedException e) {
 				System.err.println((char)27 + "[31;1mCommand exception: " + (char)27 + "[0m" + e.getLocalizedMessage());
 			}
 			catch (ConnectException|UnmarshalException e) {
@@ -443,6 +443,41 @@ public abstract class Client
 				}
 				break;
 			}
+			case Start: {
+				checkArgumentsCount(1, arguments.size());
+
+				System.out.println("Starting a transaction");
+
+				int id = m_resourceManager.start();
+				System.out.println("Transaction started [xid=" + id + "]");
+				break;
+			}
+			case Commit: {
+				checkArgumentsCount(2, arguments.size());
+
+				System.out.println("Committing a transaction [xid=" + arguments.elementAt(1) + "]");
+
+				int id = toInt(arguments.elementAt(1));
+				if (m_resourceManager.commit(id)) {
+					System.out.println("Transaction committed");
+				} else {
+					System.out.println("Transaction could not be committed");
+				}
+				break;
+			}
+			case Abort: {
+				checkArgumentsCount(2, arguments.size());
+
+				System.out.println("Aborting a transaction [xid=" + arguments.elementAt(1) + "]");
+
+				int id = toInt(arguments.elementAt(1));
+				if (m_resourceManager.abort(id)) {
+					System.out.println("Transaction aborted");
+				} else {
+					System.out.println("Transaction could not be aborted");
+				}
+				break;
+			}
 			case Quit:
 				checkArgumentsCount(1, arguments.size());
 
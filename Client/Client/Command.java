@@ -29,6 +29,10 @@ public enum Command {
 
 	Bundle("Book N flight numbers, and optionally a room and/or car at a location", "<xid>,<CustomerID>,<FlightNumber1>...<FlightNumberN>,<Location>,<Car-Y/N>,<Room-Y/N>"),
 
+	Start("Start a transaction", ""),
+	Commit("Commit a transaction, releasing its locks", "<xid>"),
+	Abort("Abort a transaction, rolling back its changes and releasing its locks", "<xid>"),
+
 	Quit("Exit the client application", "");
 
 	String m_description;
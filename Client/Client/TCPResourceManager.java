@@ -1,8 +1,8 @@
 package Client;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.rmi.RemoteException;
 import java.util.HashMap;
@@ -24,6 +24,7 @@ public class TCPResourceManager implements IResourceManager {
 	private String communicationError = "Communication error; no response received.";
 	private String errorResponse = "Issue on the server; error response recieved.";
 	private String notAvailable = "Request not available directly from the client";
+	private String transactionAborted = "The transaction was aborted by the server, e.g. as a deadlock victim.";
 
 	// Constructor
 	public TCPResourceManager(String server, int port) {
@@ -34,17 +35,15 @@ public class TCPResourceManager implements IResourceManager {
 
 	// Sends a message to the server on the specified port using sockets
 	// Receives and returns a message in response
-	public TCPMessage sendMessage(Socket clientSocket, TCPMessage outgoingMessage)
-			throws IOException, ClassNotFoundException {
+	public TCPMessage sendMessage(Socket clientSocket, TCPMessage outgoingMessage) throws IOException {
 
 		// Send the message to the server
-		ObjectOutputStream output = new ObjectOutputStream(clientSocket.getOutputStream());
-		output.writeObject(outgoingMessage);
+		TCPMessageCodec.writeRequest(clientSocket.getOutputStream(), outgoingMessage);
 
 		// Receive a response from the server
-		ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream());
+		DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
-		return (TCPMessage) input.readObject();
+		return TCPMessageCodec.readResponse(input);
 	}
 
 	// Sends the message. If any errors occur, they are caught, printed, and null is
@@ -56,9 +55,6 @@ public class TCPResourceManager implements IResourceManager {
 		try {
 			clientSocket = new Socket(server, port);
 			return sendMessage(clientSocket, outgoingMessage);
-		} catch (ClassNotFoundException e) {
-			System.err.println(
-					"Failed to establish connection with the server; invalid response received: " + e.getMessage());
 		} catch (Exception e) {
 			System.err.println("Failed to establish connection with the server: " + e.getMessage());
 		} finally {
@@ -85,6 +81,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 
@@ -100,6 +98,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -114,6 +114,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -128,6 +130,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -142,6 +146,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -156,6 +162,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -170,6 +178,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -184,6 +194,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -198,6 +210,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -212,6 +226,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -226,6 +242,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -240,6 +258,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -254,6 +274,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.stringResult;
 	}
@@ -268,6 +290,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -282,6 +306,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -296,6 +322,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -310,6 +338,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -324,6 +354,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -338,6 +370,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.intResult;
 	}
@@ -353,6 +387,8 @@ public class TCPResourceManager implements IResourceManager {
 			throw new RemoteException(communicationError);
 		else if (response.type == MessageType.ERROR)
 			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(id, transactionAborted);
 		else
 			return response.booleanResult;
 	}
@@ -377,4 +413,67 @@ public class TCPResourceManager implements IResourceManager {
 	public boolean cancelItemReservations(int xid, HashMap<String, Integer> reservedKeysMap) throws RemoteException {
 		throw new RemoteException(notAvailable);
 	}
+
+	@Override
+	public HashMap<String, Integer> getCustomerReservations(int xid, int customerID) throws RemoteException {
+		throw new RemoteException(notAvailable);
+	}
+
+	@Override
+	public boolean addCustomerReservations(int xid, int customerID, Vector<String> reservedKeys, Vector<Integer> prices)
+			throws RemoteException {
+		throw new RemoteException(notAvailable);
+	}
+
+	// The middleware runs the two-phase commit itself when asked to commit
+	@Override
+	public boolean prepare(int xid) throws RemoteException {
+		throw new RemoteException(notAvailable);
+	}
+
+	@Override
+	public int start() throws RemoteException {
+		TCPMessage message = TCPMessage.newStart();
+
+		TCPMessage response = sendMessageWithErrorHandling(message);
+
+		if (response == null)
+			throw new RemoteException(communicationError);
+		else if (response.type == MessageType.ERROR)
+			throw new RemoteException(errorResponse);
+		else
+			return response.intResult;
+	}
+
+	@Override
+	public boolean commit(int xid) throws RemoteException {
+		TCPMessage message = TCPMessage.newCommit(xid);
+
+		TCPMessage response = sendMessageWithErrorHandling(message);
+
+		if (response == null)
+			throw new RemoteException(communicationError);
+		else if (response.type == MessageType.ERROR)
+			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(xid, transactionAborted);
+		else
+			return response.booleanResult;
+	}
+
+	@Override
+	public boolean abort(int xid) throws RemoteException {
+		TCPMessage message = TCPMessage.newAbort(xid);
+
+		TCPMessage response = sendMessageWithErrorHandling(message);
+
+		if (response == null)
+			throw new RemoteException(communicationError);
+		else if (response.type == MessageType.ERROR)
+			throw new RemoteException(errorResponse);
+		else if (response.type == MessageType.TRANSACTION_ABORTED)
+			throw new TransactionAbortedException(xid, transactionAborted);
+		else
+			return response.booleanResult;
+	}
 }
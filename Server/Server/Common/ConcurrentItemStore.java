@@ -0,0 +1,59 @@
+package Server.Common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+// Item store over a ConcurrentHashMap, so requests on different keys (e.g. "flight-101" and
+// "flight-202") no longer wait on one lock for the whole store
+public class ConcurrentItemStore implements ItemStore
+{
+	private ConcurrentHashMap<ItemKey, RMItem> m_items = new ConcurrentHashMap<ItemKey, RMItem>();
+
+	public RMItem get(ItemKey key)
+	{
+		return m_items.get(key);
+	}
+
+	public void put(ItemKey key, RMItem value)
+	{
+		m_items.put(key, value);
+	}
+
+	public void remove(ItemKey key)
+	{
+		m_items.remove(key);
+	}
+
+	public RMItem update(ItemKey key, UnaryOperator<RMItem> update)
+	{
+		return m_items.compute(key, (k, current) -> update.apply(current));
+	}
+
+	public int size()
+	{
+		return m_items.size();
+	}
+
+	public void forEach(BiConsumer<ItemKey, RMItem> visitor)
+	{
+		m_items.forEach(visitor);
+	}
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("--- BEGIN ConcurrentItemStore ---\n");
+		for (Map.Entry<ItemKey, RMItem> entry : m_items.entrySet())
+		{
+			s.append("[KEY='").append(entry.getKey()).append("']").append(entry.getValue()).append("\n");
+		}
+		s.append("--- END ConcurrentItemStore ---");
+		return s.toString();
+	}
+
+	public void dump()
+	{
+		System.out.println(toString());
+	}
+}
@@ -81,6 +81,11 @@ public class Customer extends RMItem
 		return Customer.getKey(getID());
 	}
 
+	public ItemKey getItemKey()
+	{
+		return ItemKey.customer(getID());
+	}
+
 	public RMHashMap getReservations()
 	{
 		return m_reservations;
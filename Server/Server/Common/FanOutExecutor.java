@@ -0,0 +1,129 @@
+package Server.Common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The thread pool shared by every middleware operation that sends requests to several resource
+ * managers at once (bundle, its availability check, and cancelling a customer's reservations).
+ *
+ * Each operation takes one deadline when it starts and waits for all of its sub-requests against
+ * that deadline, so the whole operation is bounded instead of each sub-request getting its own
+ * timeout. The rounds of the two-phase commit get a longer one (newCommitDeadline): a prepare that
+ * does not answer in time counts as a vote to abort, and it may wait in the queue of the pool or for
+ * the log of a resource manager to reach the disk.
+ *
+ * -Dmiddleware.fanOutThreads=N    size of the pool (32 by default)
+ * -Dmiddleware.fanOutTimeout=MS   time budget of one multi-RM operation (3000ms by default)
+ * -Dmiddleware.commitTimeout=MS   time budget of one prepare, commit or abort round of the
+ *                                 two-phase commit (30000ms by default)
+ */
+public class FanOutExecutor
+{
+	private static final FanOutExecutor s_shared = new FanOutExecutor(
+		Integer.getInteger("middleware.fanOutThreads", 32),
+		Long.getLong("middleware.fanOutTimeout", 3000),
+		Long.getLong("middleware.commitTimeout", 30000));
+
+	private ExecutorService executor;
+	private long timeoutNanos;
+	private long commitTimeoutNanos;
+
+	// Counters of the sub-requests run so far
+	private AtomicLong submitted = new AtomicLong();
+	private AtomicLong succeeded = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong timedOut = new AtomicLong();
+	private AtomicInteger active = new AtomicInteger();
+
+	public FanOutExecutor(int threads, long timeoutMillis)
+	{
+		this(threads, timeoutMillis, timeoutMillis);
+	}
+
+	public FanOutExecutor(int threads, long timeoutMillis, long commitTimeoutMillis)
+	{
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "FanOut-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.commitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(commitTimeoutMillis);
+	}
+
+	public static FanOutExecutor shared()
+	{
+		return s_shared;
+	}
+
+	// Starts the clock of a new multi-RM operation; pass the result to await()
+	public long newDeadline()
+	{
+		return System.nanoTime() + timeoutNanos;
+	}
+
+	// Starts the clock of a round of the two-phase commit; pass the result to await()
+	public long newCommitDeadline()
+	{
+		return System.nanoTime() + commitTimeoutNanos;
+	}
+
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		submitted.incrementAndGet();
+		return executor.submit(() -> {
+			active.incrementAndGet();
+			try {
+				return task.call();
+			}
+			finally {
+				active.decrementAndGet();
+			}
+		});
+	}
+
+	// Waits for a sub-request until the operation's deadline; a sub-request that fails or does not
+	// finish in time counts as false and is cancelled
+	public boolean await(Future<Boolean> future, long deadline)
+	{
+		try {
+			boolean result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			succeeded.incrementAndGet();
+			return result;
+		}
+		catch (TimeoutException e) {
+			timedOut.incrementAndGet();
+			Trace.warn("RM::Thread timeout exception");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed.incrementAndGet();
+			Trace.warn("RM::Thread interrupted exception");
+		}
+		catch (ExecutionException e) {
+			failed.incrementAndGet();
+			Trace.warn("RM::Thread execution exception: " + e.getCause());
+		}
+		catch (Exception e) {
+			failed.incrementAndGet();
+			Trace.warn("RM::Thread exception: " + e.getMessage());
+		}
+		future.cancel(true);
+		return false;
+	}
+
+	public String getStats()
+	{
+		return "submitted=" + submitted.get() + " succeeded=" + succeeded.get() + " failed=" + failed.get()
+			+ " timedOut=" + timedOut.get() + " active=" + active.get();
+	}
+}
@@ -0,0 +1,72 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// Committed inventory of the reservable items (flights, cars, rooms) of a resource manager, kept
+// as primitive count/price/reserved fields. Transactions change it through their write sets, see
+// WriteSet. Implementations must be safe to use from many threads at once.
+//
+// -Dinventory.dir=<directory>  keep the inventory in the memory-mapped file <directory>/<name>.inventory
+//                              (MappedInventory) instead of on the heap (InventoryTable, the default)
+public interface Inventory
+{
+	// Results of the queries on an item that does not exist, and of reserving an item none of which
+	// is left
+	public static final int MISSING = Integer.MIN_VALUE;
+	public static final int SOLD_OUT = Integer.MIN_VALUE + 1;
+
+	// Receives the items of the inventory, see forEach
+	public interface Visitor
+	{
+		public void visit(ItemKey key, String location, int count, int price, int reserved);
+	}
+
+	// Returns the number of available items, or MISSING
+	public int getCount(ItemKey key);
+
+	// Returns the price of the item, or MISSING
+	public int getPrice(ItemKey key);
+
+	// Returns the number of reserved items, or MISSING
+	public int getReserved(ItemKey key);
+
+	// Returns the location the item was added with, or null
+	public String getLocation(ItemKey key);
+
+	// Returns false if the item cannot be stored, e.g. its location does not fit in a fixed-size
+	// record
+	public boolean canStore(ItemKey key, String location);
+
+	// Sets all the fields of the item, creating it if needed (e.g. to apply the changes of a
+	// committed transaction)
+	public void put(ItemKey key, String location, int count, int price, int reserved);
+
+	// Removes the item. Returns false if it does not exist.
+	public boolean remove(ItemKey key);
+
+	public int size();
+
+	// Visits every item
+	public void forEach(Visitor visitor);
+
+	// Whether the inventory keeps its items across restarts by itself. The write-ahead log then
+	// forces it at checkpoints instead of writing its items into the snapshots.
+	public boolean isPersistent();
+
+	// Writes the changes of a persistent inventory to disk
+	public void force() throws IOException;
+
+	public void dump();
+
+	// Opens the configured inventory of the named resource manager
+	public static Inventory open(String name) throws IOException
+	{
+		String dir = System.getProperty("inventory.dir");
+		if (dir == null)
+		{
+			return new InventoryTable();
+		}
+		return new MappedInventory(Paths.get(dir, name + ".inventory"));
+	}
+}
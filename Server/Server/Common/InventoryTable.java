@@ -0,0 +1,333 @@
+package Server.Common;
+
+import java.util.concurrent.locks.StampedLock;
+
+// Inventory on the heap, kept as primitive count/price/reserved fields instead of ReservableItem
+// objects, so queries allocate nothing.
+//
+// The table is split into segments, each an open-addressing hash table with linear probing
+// guarded by its own StampedLock. Reads are optimistic and only take the read lock if a write to
+// the same segment got in the way.
+public class InventoryTable implements Inventory
+{
+	private static final int SEGMENTS = 16;				// power of two
+	private static final int INITIAL_CAPACITY = 16;	// slots per segment, power of two
+
+	// Layout of the values of one slot
+	private static final int COUNT = 0;
+	private static final int PRICE = 1;
+	private static final int RESERVED = 2;
+	private static final int FIELDS = 3;
+
+	private Segment[] m_segments = new Segment[SEGMENTS];
+
+	public InventoryTable()
+	{
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			m_segments[i] = new Segment();
+		}
+	}
+
+	// Returns the number of available items, or MISSING
+	public int getCount(ItemKey key)
+	{
+		return read(key, COUNT);
+	}
+
+	// Returns the price of the item, or MISSING
+	public int getPrice(ItemKey key)
+	{
+		return read(key, PRICE);
+	}
+
+	// Returns the number of reserved items, or MISSING
+	public int getReserved(ItemKey key)
+	{
+		return read(key, RESERVED);
+	}
+
+	// Returns the location the item was added with, or null
+	public String getLocation(ItemKey key)
+	{
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.readLock();
+		try {
+			Table table = segment.table;
+			int slot = table.find(key, hash);
+			return slot < 0 ? null : table.locations[slot];
+		}
+		finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	// Sets all the fields of the item, creating it if needed (e.g. to apply the changes of a
+	// committed transaction)
+	public void put(ItemKey key, String location, int count, int price, int reserved)
+	{
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.writeLock();
+		try {
+			Table table = segment.table;
+			int slot = table.find(key, hash);
+			if (slot < 0)
+			{
+				if ((segment.size + 1) * 3 > table.keys.length * 2)
+				{
+					table = segment.resize();
+				}
+				slot = table.insert(key, hash, location);
+				segment.size++;
+			}
+			int base = slot * FIELDS;
+			table.values[base + COUNT] = count;
+			table.values[base + PRICE] = price;
+			table.values[base + RESERVED] = reserved;
+		}
+		finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	// Removes the item. Returns false if it does not exist.
+	public boolean remove(ItemKey key)
+	{
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.writeLock();
+		try {
+			Table table = segment.table;
+			int slot = table.find(key, hash);
+			if (slot < 0)
+			{
+				return false;
+			}
+			table.delete(slot);
+			segment.size--;
+			return true;
+		}
+		finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : m_segments)
+		{
+			long stamp = segment.lock.readLock();
+			size += segment.size;
+			segment.lock.unlockRead(stamp);
+		}
+		return size;
+	}
+
+	// Visits every item; each segment is visited under its read lock
+	public void forEach(Visitor visitor)
+	{
+		for (Segment segment : m_segments)
+		{
+			long stamp = segment.lock.readLock();
+			try {
+				Table table = segment.table;
+				for (int slot = 0; slot < table.keys.length; slot++)
+				{
+					if (table.keys[slot] != null)
+					{
+						int base = slot * FIELDS;
+						visitor.visit(table.keys[slot], table.locations[slot],
+							table.values[base + COUNT], table.values[base + PRICE], table.values[base + RESERVED]);
+					}
+				}
+			}
+			finally {
+				segment.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	public boolean canStore(ItemKey key, String location)
+	{
+		return true;
+	}
+
+	public boolean isPersistent()
+	{
+		return false;
+	}
+
+	public void force()
+	{
+	}
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("--- BEGIN InventoryTable ---\n");
+		forEach((key, location, count, price, reserved) ->
+			s.append("[KEY='").append(key).append("'] location='").append(location)
+				.append("', count='").append(count).append("', price='").append(price)
+				.append("', reserved='").append(reserved).append("'\n"));
+		s.append("--- END InventoryTable ---");
+		return s.toString();
+	}
+
+	public void dump()
+	{
+		System.out.println(toString());
+	}
+
+	private int read(ItemKey key, int field)
+	{
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+
+		// Optimistic read first, then retry under the read lock if a writer got in the way
+		long stamp = segment.lock.tryOptimisticRead();
+		if (stamp != 0)
+		{
+			int value = segment.table.read(key, hash, field);
+			if (segment.lock.validate(stamp))
+			{
+				return value;
+			}
+		}
+
+		stamp = segment.lock.readLock();
+		try {
+			return segment.table.read(key, hash, field);
+		}
+		finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	private static int hash(ItemKey key)
+	{
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segmentFor(int hash)
+	{
+		return m_segments[hash & (SEGMENTS - 1)];
+	}
+
+	private static class Segment
+	{
+		StampedLock lock = new StampedLock();
+		Table table = new Table(INITIAL_CAPACITY);
+		int size;
+
+		// Doubles the table; called under the write lock
+		Table resize()
+		{
+			Table old = table;
+			Table larger = new Table(old.keys.length * 2);
+			for (int slot = 0; slot < old.keys.length; slot++)
+			{
+				if (old.keys[slot] != null)
+				{
+					int moved = larger.insert(old.keys[slot], hash(old.keys[slot]), old.locations[slot]);
+					System.arraycopy(old.values, slot * FIELDS, larger.values, moved * FIELDS, FIELDS);
+				}
+			}
+			table = larger;
+			return larger;
+		}
+	}
+
+	// The slots of one segment. Replaced as a whole on resize, so a reader always sees arrays of
+	// matching length.
+	private static class Table
+	{
+		final ItemKey[] keys;
+		final String[] locations;
+		final int[] values;
+		final int mask;
+
+		Table(int capacity)
+		{
+			keys = new ItemKey[capacity];
+			locations = new String[capacity];
+			values = new int[capacity * FIELDS];
+			mask = capacity - 1;
+		}
+
+		int home(int hash)
+		{
+			return (hash >>> 4) & mask;
+		}
+
+		// Returns the slot of the key, or -1. Gives up after a full turn so that a racing optimistic
+		// reader cannot spin forever.
+		int find(ItemKey key, int hash)
+		{
+			int slot = home(hash);
+			for (int probes = 0; probes < keys.length; probes++)
+			{
+				ItemKey k = keys[slot];
+				if (k == null)
+				{
+					return -1;
+				}
+				if (k.equals(key))
+				{
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		int read(ItemKey key, int hash, int field)
+		{
+			int slot = find(key, hash);
+			return slot < 0 ? MISSING : values[slot * FIELDS + field];
+		}
+
+		// Puts a key that is not in the table into its first free slot
+		int insert(ItemKey key, int hash, String location)
+		{
+			int slot = home(hash);
+			while (keys[slot] != null)
+			{
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			locations[slot] = location;
+			return slot;
+		}
+
+		// Empties a slot, shifting back the following entries of the probe sequence so that lookups
+		// never stop early at the hole
+		void delete(int slot)
+		{
+			int hole = slot;
+			int next = slot;
+			while (true)
+			{
+				next = (next + 1) & mask;
+				ItemKey k = keys[next];
+				if (k == null)
+				{
+					break;
+				}
+				int home = home(hash(k));
+				boolean between = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+				if (!between)
+				{
+					keys[hole] = k;
+					locations[hole] = locations[next];
+					System.arraycopy(values, next * FIELDS, values, hole * FIELDS, FIELDS);
+					hole = next;
+				}
+			}
+			keys[hole] = null;
+			locations[hole] = null;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package Server.Common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+// Compact binary encoding of item keys and data items, used by the write-ahead log. Keys are
+// written as their kind plus the number or location; customers as their id and reservations.
+public class ItemCodec
+{
+	// Tags of the data items
+	private static final byte CUSTOMER = 1;
+
+	private static final ItemKey.Kind[] s_kinds = ItemKey.Kind.values();
+
+	public static void writeKey(DataOutput out, ItemKey key) throws IOException
+	{
+		out.writeByte(key.getKind().ordinal());
+		if (key.getLocation() == null)
+		{
+			out.writeInt(key.getId());
+		}
+		else
+		{
+			out.writeUTF(key.getLocation());
+		}
+	}
+
+	public static ItemKey readKey(DataInput in) throws IOException
+	{
+		int kind = in.readUnsignedByte();
+		if (kind >= s_kinds.length)
+		{
+			throw new IOException("Invalid item key kind: " + kind);
+		}
+		switch (s_kinds[kind])
+		{
+			case FLIGHT:
+				return ItemKey.flight(in.readInt());
+			case CUSTOMER:
+				return ItemKey.customer(in.readInt());
+			case CAR:
+				return ItemKey.car(in.readUTF());
+			default:
+				return ItemKey.room(in.readUTF());
+		}
+	}
+
+	// Writes a data item; customers are the only data items kept by the servers
+	public static void writeItem(DataOutput out, RMItem item) throws IOException
+	{
+		if (!(item instanceof Customer))
+		{
+			throw new IOException("Cannot encode data item " + item.getClass().getName());
+		}
+		Customer customer = (Customer)item;
+		RMHashMap reservations = customer.getReservations();
+		out.writeByte(CUSTOMER);
+		out.writeInt(customer.getID());
+		out.writeInt(reservations.size());
+		for (Map.Entry<String, RMItem> entry : reservations.entrySet())
+		{
+			ReservedItem reserved = (ReservedItem)entry.getValue();
+			out.writeUTF(reserved.getReservableItemKey());
+			out.writeUTF(reserved.getLocation());
+			out.writeInt(reserved.getCount());
+			out.writeInt(reserved.getPrice());
+		}
+	}
+
+	public static RMItem readItem(DataInput in) throws IOException
+	{
+		int tag = in.readUnsignedByte();
+		if (tag != CUSTOMER)
+		{
+			throw new IOException("Invalid data item tag: " + tag);
+		}
+		Customer customer = new Customer(in.readInt());
+		int reservations = in.readInt();
+		for (int i = 0; i < reservations; i++)
+		{
+			ReservedItem reserved = new ReservedItem(in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+			customer.getReservations().put(reserved.getKey(), reserved);
+		}
+		return customer;
+	}
+}
@@ -0,0 +1,158 @@
+package Server.Common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Key of a data item: its kind plus either a number (flights, customers) or a location (cars,
+// rooms). The hash is computed once, and location keys are interned, so looking an item up does not
+// build and lowercase a new string like Flight.getKey does. toString() gives the legacy string key
+// (e.g. "flight-101"), which is still what customers' reservations and the wire protocol use.
+public final class ItemKey
+{
+	public enum Kind
+	{
+		FLIGHT("flight-"),
+		CAR("car-"),
+		ROOM("room-"),
+		CUSTOMER("customer-");
+
+		private final String prefix;
+
+		Kind(String prefix)
+		{
+			this.prefix = prefix;
+		}
+	}
+
+	// Interned location keys are capped, so arbitrary client input cannot grow the caches forever
+	private static final int MAX_INTERNED = 10000;
+	private static final ConcurrentHashMap<String, ItemKey> s_cars = new ConcurrentHashMap<String, ItemKey>();
+	private static final ConcurrentHashMap<String, ItemKey> s_rooms = new ConcurrentHashMap<String, ItemKey>();
+
+	private final Kind m_kind;
+	private final int m_id;
+	private final String m_location;
+	private final int m_hash;
+	private String m_string;
+
+	private ItemKey(Kind kind, int id, String location)
+	{
+		m_kind = kind;
+		m_id = id;
+		m_location = location;
+		m_hash = 31 * kind.ordinal() + (location == null ? id : location.hashCode());
+	}
+
+	public static ItemKey flight(int flightNum)
+	{
+		return new ItemKey(Kind.FLIGHT, flightNum, null);
+	}
+
+	public static ItemKey customer(int customerID)
+	{
+		return new ItemKey(Kind.CUSTOMER, customerID, null);
+	}
+
+	public static ItemKey car(String location)
+	{
+		return intern(s_cars, Kind.CAR, location);
+	}
+
+	public static ItemKey room(String location)
+	{
+		return intern(s_rooms, Kind.ROOM, location);
+	}
+
+	// Parses a legacy string key; returns null if it is not one
+	public static ItemKey parse(String key)
+	{
+		for (Kind kind : Kind.values())
+		{
+			if (!key.startsWith(kind.prefix))
+			{
+				continue;
+			}
+			String rest = key.substring(kind.prefix.length());
+			try {
+				switch (kind)
+				{
+					case FLIGHT:
+						return flight(Integer.parseInt(rest));
+					case CUSTOMER:
+						return customer(Integer.parseInt(rest));
+					case CAR:
+						return car(rest);
+					case ROOM:
+						return room(rest);
+				}
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static ItemKey intern(ConcurrentHashMap<String, ItemKey> cache, Kind kind, String location)
+	{
+		ItemKey key = cache.get(location);
+		if (key == null)
+		{
+			key = new ItemKey(kind, 0, location.toLowerCase());
+			if (cache.size() < MAX_INTERNED)
+			{
+				ItemKey interned = cache.putIfAbsent(location, key);
+				if (interned != null)
+				{
+					key = interned;
+				}
+			}
+		}
+		return key;
+	}
+
+	public Kind getKind()
+	{
+		return m_kind;
+	}
+
+	public int getId()
+	{
+		return m_id;
+	}
+
+	public String getLocation()
+	{
+		return m_location;
+	}
+
+	public int hashCode()
+	{
+		return m_hash;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+		if (!(o instanceof ItemKey))
+		{
+			return false;
+		}
+		ItemKey other = (ItemKey)o;
+		return m_hash == other.m_hash && m_kind == other.m_kind && m_id == other.m_id
+			&& (m_location == null ? other.m_location == null : m_location.equals(other.m_location));
+	}
+
+	public String toString()
+	{
+		String s = m_string;
+		if (s == null)
+		{
+			s = m_kind.prefix + (m_location == null ? String.valueOf(m_id) : m_location);
+			m_string = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,117 @@
+package Server.Common;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/* Compares the allocation and time of a lookup keyed by the legacy string keys (Flight.getKey,
+ * Car.getKey) with one keyed by ItemKey. Every operation builds the key of a flight and of a car,
+ * as a query does, and looks both up in a map of the same items.
+ *
+ * Usage: java Server.Common.ItemKeyBenchmark [<operations> [<items>]]
+ *
+ * Each round runs the operations on a single thread, after warm-up rounds, and prints the bytes
+ * allocated per key (from com.sun.management.ThreadMXBean, when the JVM has it) and the keys per
+ * second of both. */
+
+public class ItemKeyBenchmark
+{
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	private static volatile int s_sink;
+
+	public static void main(String[] args)
+	{
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int items = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		String[] locations = new String[items];
+		HashMap<String, Integer> legacy = new HashMap<String, Integer>();
+		HashMap<ItemKey, Integer> typed = new HashMap<ItemKey, Integer>();
+		for (int i = 0; i < items; i++)
+		{
+			locations[i] = "City" + i;
+			legacy.put(Flight.getKey(i), i);
+			legacy.put(Car.getKey(locations[i]), i);
+			typed.put(ItemKey.flight(i), i);
+			typed.put(ItemKey.car(locations[i]), i);
+		}
+
+		AllocationCounter counter = AllocationCounter.create();
+		System.out.println("ItemKeyBenchmark: " + operations + " operations on " + items + " flights and cars"
+			+ (counter == null ? " (allocation counting is not available on this JVM)" : ""));
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long[] legacyResult = run(operations, locations, legacy, null, counter);
+			long[] typedResult = run(operations, locations, null, typed, counter);
+			if (round >= WARMUP_ROUNDS)
+			{
+				long keys = 2L * operations;
+				System.out.println(String.format("round %2d: string keys %6.1f bytes/key %,12d keys/s   ItemKey %6.1f bytes/key %,12d keys/s",
+					round - WARMUP_ROUNDS + 1,
+					(double)legacyResult[1] / keys, keys * 1000000000L / legacyResult[0],
+					(double)typedResult[1] / keys, keys * 1000000000L / typedResult[0]));
+			}
+		}
+	}
+
+	// Returns the elapsed nanoseconds and the bytes allocated (-1 if unknown); looks the keys up in
+	// legacy if it is given, otherwise in typed
+	private static long[] run(int operations, String[] locations, HashMap<String, Integer> legacy,
+		HashMap<ItemKey, Integer> typed, AllocationCounter counter)
+	{
+		long allocated = counter == null ? 0 : counter.allocatedBytes();
+		long start = System.nanoTime();
+		int sum = 0;
+		for (int i = 0; i < operations; i++)
+		{
+			int item = i % locations.length;
+			if (legacy != null)
+			{
+				sum += legacy.get(Flight.getKey(item));
+				sum += legacy.get(Car.getKey(locations[item]));
+			}
+			else
+			{
+				sum += typed.get(ItemKey.flight(item));
+				sum += typed.get(ItemKey.car(locations[item]));
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		s_sink += sum;
+		return new long[] { elapsed, counter == null ? -1 : counter.allocatedBytes() - allocated };
+	}
+
+	// Bytes allocated by the current thread, through the HotSpot extension of ThreadMXBean
+	private static class AllocationCounter
+	{
+		private final com.sun.management.ThreadMXBean m_bean;
+
+		private AllocationCounter(com.sun.management.ThreadMXBean bean)
+		{
+			m_bean = bean;
+		}
+
+		// Returns null if the JVM does not count allocated bytes
+		static AllocationCounter create()
+		{
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean))
+			{
+				return null;
+			}
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)bean;
+			if (!hotspot.isThreadAllocatedMemorySupported())
+			{
+				return null;
+			}
+			hotspot.setThreadAllocatedMemoryEnabled(true);
+			return new AllocationCounter(hotspot);
+		}
+
+		long allocatedBytes()
+		{
+			return m_bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+}
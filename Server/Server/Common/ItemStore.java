@@ -0,0 +1,31 @@
+package Server.Common;
+
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+// Storage of the data items of a resource manager or the middleware, keyed by item key
+// (e.g. "flight-101"). Implementations must be safe to use from many threads at once.
+public interface ItemStore
+{
+	// Returns the stored item, or null if there is none
+	public RMItem get(ItemKey key);
+
+	public void put(ItemKey key, RMItem value);
+
+	public void remove(ItemKey key);
+
+	// Atomically replaces the item with the result of the update, which gets the current item (or
+	// null) and returns the new item, the current one to leave it as is, or null to remove it. The
+	// update must not modify the item it is given, as concurrent readers may hold it; it should
+	// change a clone instead. Returns the item stored afterwards.
+	public RMItem update(ItemKey key, UnaryOperator<RMItem> update);
+
+	public int size();
+
+	// Visits every item without blocking writers: an item changed meanwhile may be visited in its old
+	// or its new version
+	public void forEach(BiConsumer<ItemKey, RMItem> visitor);
+
+	// Writes out every item, for debugging
+	public void dump();
+}
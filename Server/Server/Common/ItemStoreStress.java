@@ -0,0 +1,163 @@
+package Server.Common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Checks that ConcurrentItemStore loses no updates when many threads change the same few items
+ * at once. Every thread picks items at random and, through ItemStore.update:
+ * - increments their count; in the end the counts must add up to the number of increments;
+ * - reserves them while some are left; in the end count + reserved must be the initial count of
+ *   every item, and the reservations must add up to the successful ones.
+ * As a control, the increments are also run as separate get and put calls, which do lose updates
+ * under contention; the number lost is only reported.
+ *
+ * Usage: java Server.Common.ItemStoreStress [<threads> [<operations per thread> [<items>]]]
+ *
+ * Exits with status 1 if an update was lost. */
+
+public class ItemStoreStress
+{
+	private static final int INITIAL_COUNT = 100000;
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int items = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		System.out.println("ItemStoreStress: " + threads + " threads, " + operations + " operations each on " + items + " items");
+		boolean passed = checkIncrements(threads, operations, items, true);
+		checkIncrements(threads, operations, items, false);
+		passed &= checkReservations(threads, operations, items);
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	// Returns true if no increment was lost. With atomic false, reads and writes the items with get
+	// and put instead of update.
+	private static boolean checkIncrements(int threads, int operations, int items, boolean atomic) throws InterruptedException
+	{
+		ItemStore store = newStore(items, 0);
+		long start = System.nanoTime();
+		runThreads(threads, () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < operations; i++)
+			{
+				ItemKey key = ItemKey.flight(random.nextInt(items));
+				if (atomic)
+				{
+					store.update(key, current -> {
+						Flight flight = (Flight)current.clone();
+						flight.setCount(flight.getCount() + 1);
+						return flight;
+					});
+				}
+				else
+				{
+					Flight flight = (Flight)store.get(key).clone();
+					flight.setCount(flight.getCount() + 1);
+					store.put(key, flight);
+				}
+			}
+		});
+		long elapsed = System.nanoTime() - start;
+
+		long expected = (long)threads * operations;
+		long total = 0;
+		for (int i = 0; i < items; i++)
+		{
+			total += ((Flight)store.get(ItemKey.flight(i))).getCount();
+		}
+		System.out.println(String.format("%-22s %,12d increments, %,12d lost, %,12d ops/s",
+			atomic ? "increment (update):" : "increment (get/put):", expected, expected - total, expected * 1000000000L / elapsed));
+		return total == expected;
+	}
+
+	// Returns true if every item's seats add up and the reservations match the successful ones
+	private static boolean checkReservations(int threads, int operations, int items) throws InterruptedException
+	{
+		ItemStore store = newStore(items, INITIAL_COUNT);
+		AtomicLong succeeded = new AtomicLong();
+		long start = System.nanoTime();
+		runThreads(threads, () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long reserved = 0;
+			for (int i = 0; i < operations; i++)
+			{
+				boolean[] done = new boolean[1];
+				store.update(ItemKey.flight(random.nextInt(items)), current -> {
+					Flight flight = (Flight)current;
+					if (flight.getCount() <= 0)
+					{
+						return current;
+					}
+					flight = (Flight)flight.clone();
+					flight.setCount(flight.getCount() - 1);
+					flight.setReserved(flight.getReserved() + 1);
+					done[0] = true;
+					return flight;
+				});
+				if (done[0])
+				{
+					reserved++;
+				}
+			}
+			succeeded.addAndGet(reserved);
+		});
+		long elapsed = System.nanoTime() - start;
+
+		boolean passed = true;
+		long reserved = 0;
+		for (int i = 0; i < items; i++)
+		{
+			Flight flight = (Flight)store.get(ItemKey.flight(i));
+			if (flight.getCount() < 0 || flight.getCount() + flight.getReserved() != INITIAL_COUNT)
+			{
+				System.out.println("flight " + i + ": count " + flight.getCount() + " + reserved " + flight.getReserved() + " != " + INITIAL_COUNT);
+				passed = false;
+			}
+			reserved += flight.getReserved();
+		}
+		long attempts = (long)threads * operations;
+		System.out.println(String.format("%-22s %,12d reserved, %,12d lost, %,12d ops/s",
+			"reserve (update):", succeeded.get(), succeeded.get() - reserved, attempts * 1000000000L / elapsed));
+		return passed && reserved == succeeded.get();
+	}
+
+	private static ItemStore newStore(int items, int count)
+	{
+		ItemStore store = new ConcurrentItemStore();
+		for (int i = 0; i < items; i++)
+		{
+			store.put(ItemKey.flight(i), new Flight(i, count, 100));
+		}
+		return store;
+	}
+
+	// Runs the work on the given number of threads, all started at once, and waits for them
+	private static void runThreads(int threads, Runnable work) throws InterruptedException
+	{
+		CountDownLatch ready = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new Thread(() -> {
+				try {
+					ready.await();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				work.run();
+			}, "stress-" + i);
+			workers[i].start();
+		}
+		ready.countDown();
+		for (Thread worker : workers)
+		{
+			worker.join();
+		}
+	}
+}
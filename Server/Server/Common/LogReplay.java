@@ -0,0 +1,184 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Applies the write sets read back from the write-ahead log on recovery, in parallel. The log is
+// still read by a single thread, in order; each write set is split by item key hash (see
+// WriteSet.partition) and every partition is applied by its own thread, from its own queue, in
+// batches. The changes of an item always go through the same queue, so they are applied in log
+// order, while changes of different items are applied concurrently.
+//
+// -Dwal.replayThreads=<N>  number of partitions and threads, the number of processors by default;
+//                          1 applies the write sets on the reading thread
+public class LogReplay
+{
+	private static final int QUEUE_SIZE = 64;		// batches
+	private static final int BATCH_SIZE = 256;	// write sets
+
+	// Tells a worker that there is nothing more to apply
+	private static final List<WriteSet> END = new ArrayList<WriteSet>();
+
+	private final ItemStore m_data;
+	private final Inventory m_inventory;
+	private final Worker[] m_workers;
+
+	private long m_changes;
+
+	// The first error of a worker; the others then only drain their queues
+	private volatile RuntimeException m_failure;
+
+	public LogReplay(String name, ItemStore data, Inventory inventory)
+	{
+		m_data = data;
+		m_inventory = inventory;
+		int threads = Math.max(Integer.getInteger("wal.replayThreads", Runtime.getRuntime().availableProcessors()), 1);
+		m_workers = new Worker[threads == 1 ? 0 : threads];
+		for (int i = 0; i < m_workers.length; i++)
+		{
+			m_workers[i] = new Worker("replay-" + name + "-" + i);
+			m_workers[i].start();
+		}
+	}
+
+	public int getThreads()
+	{
+		return Math.max(m_workers.length, 1);
+	}
+
+	// Number of item changes applied (or queued) so far
+	public long getChanges()
+	{
+		return m_changes;
+	}
+
+	// Queues the write set of the next record of the log. Waits if the workers fall behind.
+	public void apply(WriteSet writeSet) throws IOException
+	{
+		m_changes += writeSet.size();
+		if (m_workers.length == 0)
+		{
+			writeSet.apply(m_data, m_inventory);
+			return;
+		}
+
+		WriteSet[] parts = writeSet.partition(m_workers.length);
+		try {
+			for (int i = 0; i < parts.length; i++)
+			{
+				if (parts[i] != null)
+				{
+					m_workers[i].add(parts[i]);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new IOException("Interrupted while replaying the log", e);
+		}
+		if (m_failure != null)
+		{
+			close();
+			throw new IOException("Could not replay the log", m_failure);
+		}
+	}
+
+	// Waits until every queued write set is applied
+	public void finish() throws IOException
+	{
+		close();
+		if (m_failure != null)
+		{
+			throw new IOException("Could not replay the log", m_failure);
+		}
+	}
+
+	// Stops the workers once their queues are empty
+	private void close() throws IOException
+	{
+		try {
+			for (Worker worker : m_workers)
+			{
+				if (worker.isAlive())
+				{
+					worker.flush();
+					worker.m_queue.put(END);
+				}
+			}
+			for (Worker worker : m_workers)
+			{
+				worker.join();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying the log", e);
+		}
+	}
+
+	private class Worker extends Thread
+	{
+		final BlockingQueue<List<WriteSet>> m_queue = new ArrayBlockingQueue<List<WriteSet>>(QUEUE_SIZE);
+
+		// Write sets not queued yet, only used by the reading thread
+		private List<WriteSet> m_batch = new ArrayList<WriteSet>(BATCH_SIZE);
+
+		Worker(String name)
+		{
+			super(name);
+			setDaemon(true);
+		}
+
+		void add(WriteSet writeSet) throws InterruptedException
+		{
+			m_batch.add(writeSet);
+			if (m_batch.size() == BATCH_SIZE)
+			{
+				flush();
+			}
+		}
+
+		void flush() throws InterruptedException
+		{
+			if (!m_batch.isEmpty())
+			{
+				m_queue.put(m_batch);
+				m_batch = new ArrayList<WriteSet>(BATCH_SIZE);
+			}
+		}
+
+		public void run()
+		{
+			try {
+				while (true)
+				{
+					List<WriteSet> batch = m_queue.take();
+					if (batch == END)
+					{
+						return;
+					}
+					if (m_failure == null)
+					{
+						try {
+							for (WriteSet writeSet : batch)
+							{
+								writeSet.apply(m_data, m_inventory);
+							}
+						}
+						catch (RuntimeException e) {
+							Trace.error("RM::LogReplay " + getName() + " failed: " + e);
+							m_failure = e;
+						}
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
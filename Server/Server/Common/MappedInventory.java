@@ -0,0 +1,627 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+
+// Inventory kept in a memory-mapped file, so that a restarted resource manager serves queries as
+// soon as the file is mapped: nothing is read or rebuilt on startup.
+//
+// The file is an open-addressing hash table with linear probing, off the Java heap: a header, then
+// fixed-size records (slots) holding the key, count, price and reserved fields of an item, at the
+// slot given by the hash of its key. A removed item leaves a tombstone, which lookups probe past
+// and inserts reuse. The table is rebuilt into a new file when its items and tombstones fill 2/3
+// of it, at twice the size if the items alone fill more than 1/3. Reads are optimistic, as in
+// InventoryTable, and writes take the lock of the whole table.
+//
+// A location (the key of cars and rooms, lowercased) is limited to MAX_LOCATION characters.
+//
+// Crashes: the file is only up to date on disk after force(), so durability comes from the
+// write-ahead log, which forces the file at checkpoints and replays the changes logged since, by
+// key. The replay can only repair the file if every write since the last force() left the table
+// well formed, whichever of its pages reached the disk:
+// - every change writes a single slot, and a slot never straddles two pages (slots and header are
+//   SLOT bytes, aligned), so a slot on disk is either before or after a change;
+// - the header marks the file dirty on disk before the first change after a force(), and clean
+//   once force() is done;
+// - a file opened dirty is checked before use: a slot that does not hold a valid item becomes a
+//   tombstone, a key found twice (its slot was reused while the older one still held it on disk)
+//   keeps only the first slot of its probe sequence, and the item and tombstone counts of the
+//   header are recounted. The replay then sets every item changed since the force() to its
+//   logged state.
+// Resizing writes and forces the whole new file before it replaces the current one.
+public class MappedInventory implements Inventory
+{
+	private static final int MAGIC = 0x494e5654;	// "INVT"
+	private static final int VERSION = 2;
+	private static final int INITIAL_CAPACITY = 1024;	// slots, power of two
+	public static final int MAX_LOCATION = 52;
+
+	// Header layout
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_SIZE = 12;
+	private static final int HEADER_TOMBSTONES = 16;
+	private static final int HEADER_DIRTY = 20;	// int, 1 from the first change after force() to the next
+	private static final int HEADER = 128;		// SLOT, so that no slot straddles two pages
+	private static final int HEADER_V1 = 64;
+
+	// Slot layout
+	private static final int USED = 0;			// byte, FREE, ITEM or TOMBSTONE
+	private static final int KIND = 1;			// byte, ItemKey.Kind ordinal
+	private static final int LENGTH = 2;		// short, location length in characters
+	private static final int ID = 4;
+	private static final int COUNT = 8;
+	private static final int PRICE = 12;
+	private static final int RESERVED = 16;
+	private static final int HASH = 20;
+	private static final int LOCATION = 24;	// MAX_LOCATION chars
+	private static final int SLOT = 128;
+
+	// States of a slot
+	private static final byte FREE = 0;
+	private static final byte ITEM = 1;
+	private static final byte TOMBSTONE = 2;
+
+	private static final ItemKey.Kind[] s_kinds = ItemKey.Kind.values();
+
+	private final Path m_path;
+	private final StampedLock m_lock = new StampedLock();
+	private Table m_table;
+
+	// Maps the inventory file, creating it if needed
+	public MappedInventory(Path path) throws IOException
+	{
+		m_path = path;
+		Files.deleteIfExists(resizePath());
+		if (Files.exists(path))
+		{
+			m_table = Table.map(path);
+			if (m_table.version == 1)
+			{
+				migrate(m_table);
+				check();
+			}
+			else if (m_table.buffer.getInt(HEADER_DIRTY) != 0)
+			{
+				check();
+			}
+		}
+		else
+		{
+			Path created = resizePath();
+			Table.create(created, INITIAL_CAPACITY).buffer.force();
+			Files.move(created, path, StandardCopyOption.ATOMIC_MOVE);
+			m_table = Table.map(path);
+		}
+		Trace.info("RM::MappedInventory mapped " + path + ": " + size() + " items, " + m_table.capacity + " slots");
+	}
+
+	public int getCount(ItemKey key)
+	{
+		return read(key, COUNT);
+	}
+
+	public int getPrice(ItemKey key)
+	{
+		return read(key, PRICE);
+	}
+
+	public int getReserved(ItemKey key)
+	{
+		return read(key, RESERVED);
+	}
+
+	public String getLocation(ItemKey key)
+	{
+		int hash = key.hashCode();
+		long stamp = m_lock.readLock();
+		try {
+			int slot = m_table.find(key, hash);
+			return slot < 0 ? null : m_table.location(slot);
+		}
+		finally {
+			m_lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean canStore(ItemKey key, String location)
+	{
+		return stored(key, location).length() <= MAX_LOCATION;
+	}
+
+	public void put(ItemKey key, String location, int count, int price, int reserved)
+	{
+		String stored = stored(key, location);
+		if (stored.length() > MAX_LOCATION)
+		{
+			throw new IllegalArgumentException("Location longer than " + MAX_LOCATION + " characters: " + stored);
+		}
+		int hash = key.hashCode();
+		long stamp = m_lock.writeLock();
+		try {
+			Table table = m_table;
+			int slot = table.find(key, hash);
+			if (slot < 0 && (table.size() + table.tombstones() + 1) * 3 > table.capacity * 2)
+			{
+				table = resize((table.size() + 1) * 3 > table.capacity ? table.capacity * 2 : table.capacity);
+			}
+			table.markDirty();
+			if (slot < 0)
+			{
+				slot = table.insert(key, hash, stored);
+			}
+			int offset = Table.offset(slot);
+			table.buffer.putInt(offset + COUNT, count);
+			table.buffer.putInt(offset + PRICE, price);
+			table.buffer.putInt(offset + RESERVED, reserved);
+		}
+		finally {
+			m_lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean remove(ItemKey key)
+	{
+		int hash = key.hashCode();
+		long stamp = m_lock.writeLock();
+		try {
+			Table table = m_table;
+			int slot = table.find(key, hash);
+			if (slot < 0)
+			{
+				return false;
+			}
+			table.markDirty();
+			table.delete(slot);
+			return true;
+		}
+		finally {
+			m_lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size()
+	{
+		long stamp = m_lock.readLock();
+		try {
+			return m_table.size();
+		}
+		finally {
+			m_lock.unlockRead(stamp);
+		}
+	}
+
+	// Visits every item under the read lock
+	public void forEach(Visitor visitor)
+	{
+		long stamp = m_lock.readLock();
+		try {
+			Table table = m_table;
+			for (int slot = 0; slot < table.capacity; slot++)
+			{
+				int offset = Table.offset(slot);
+				if (table.buffer.get(offset + USED) == ITEM)
+				{
+					visitor.visit(table.key(slot), table.location(slot), table.buffer.getInt(offset + COUNT),
+						table.buffer.getInt(offset + PRICE), table.buffer.getInt(offset + RESERVED));
+				}
+			}
+		}
+		finally {
+			m_lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean isPersistent()
+	{
+		return true;
+	}
+
+	// Forces the changes, then marks the file clean on disk. Writers wait meanwhile.
+	public void force()
+	{
+		long stamp = m_lock.readLock();
+		try {
+			Table table = m_table;
+			table.buffer.force();
+			if (table.buffer.getInt(HEADER_DIRTY) != 0)
+			{
+				table.buffer.putInt(HEADER_DIRTY, 0);
+				table.buffer.force(0, HEADER);
+			}
+		}
+		finally {
+			m_lock.unlockRead(stamp);
+		}
+	}
+
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("--- BEGIN MappedInventory ---\n");
+		forEach((key, location, count, price, reserved) ->
+			s.append("[KEY='").append(key).append("'] location='").append(location)
+				.append("', count='").append(count).append("', price='").append(price)
+				.append("', reserved='").append(reserved).append("'\n"));
+		s.append("--- END MappedInventory ---");
+		return s.toString();
+	}
+
+	public void dump()
+	{
+		System.out.println(toString());
+	}
+
+	private int read(ItemKey key, int field)
+	{
+		int hash = key.hashCode();
+
+		// Optimistic read first, then retry under the read lock if a writer got in the way
+		long stamp = m_lock.tryOptimisticRead();
+		if (stamp != 0)
+		{
+			int value = m_table.read(key, hash, field);
+			if (m_lock.validate(stamp))
+			{
+				return value;
+			}
+		}
+
+		stamp = m_lock.readLock();
+		try {
+			return m_table.read(key, hash, field);
+		}
+		finally {
+			m_lock.unlockRead(stamp);
+		}
+	}
+
+	// The location kept in the record: the key of cars and rooms, the given location of flights
+	private static String stored(ItemKey key, String location)
+	{
+		return key.getLocation() != null ? key.getLocation() : location == null ? "" : location;
+	}
+
+	// Rebuilds the table with the given number of slots, without its tombstones, into a new file
+	// which then replaces the current one; called under the write lock. The file being replaced
+	// stays valid until then, so a crash loses nothing.
+	private Table resize(int capacity) throws IllegalStateException
+	{
+		if (capacity > (Integer.MAX_VALUE - HEADER) / SLOT)
+		{
+			throw new IllegalStateException("The inventory file " + m_path + " cannot grow beyond " + m_table.capacity + " slots");
+		}
+		try {
+			Table rebuilt = rebuild(m_table, capacity);
+			Trace.info("RM::MappedInventory rebuilt " + m_path + " with " + rebuilt.capacity + " slots");
+			return rebuilt;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not resize the inventory file " + m_path, e);
+		}
+	}
+
+	// Converts a file of version 1, whose slots may straddle two pages, and whose header has no
+	// tombstone count or dirty mark; it is checked afterwards, as it may not have been forced
+	private void migrate(Table old) throws IOException
+	{
+		rebuild(old, old.capacity);
+		Trace.info("RM::MappedInventory converted " + m_path + " to version " + VERSION);
+	}
+
+	// Copies the items of the table into a new file of the given number of slots, forces it, and
+	// puts it in place of the current file
+	private Table rebuild(Table old, int capacity) throws IOException
+	{
+		Path path = resizePath();
+		Table rebuilt = Table.create(path, capacity);
+		int items = 0;
+		for (int slot = 0; slot < old.capacity; slot++)
+		{
+			int from = old.slotOffset(slot);
+			if (old.buffer.get(from + USED) == ITEM)
+			{
+				int to = Table.offset(rebuilt.home(old.buffer.getInt(from + HASH)));
+				while (rebuilt.buffer.get(to + USED) != FREE)
+				{
+					to = to + SLOT == Table.offset(rebuilt.capacity) ? HEADER : to + SLOT;
+				}
+				for (int i = 0; i < SLOT; i += 8)
+				{
+					rebuilt.buffer.putLong(to + i, old.buffer.getLong(from + i));
+				}
+				items++;
+			}
+		}
+		rebuilt.buffer.putInt(HEADER_SIZE, items);
+		rebuilt.buffer.force();
+		Files.move(path, m_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		m_table = rebuilt;
+		return rebuilt;
+	}
+
+	// Repairs a file that was not forced before a crash (see the class comment): drops the slots
+	// not holding a valid item and the later copies of a key, and recounts the header
+	private void check()
+	{
+		Table table = m_table;
+		table.markDirty();
+		int items = 0;
+		int tombstones = 0;
+		int dropped = 0;
+		for (int slot = 0; slot < table.capacity; slot++)
+		{
+			int offset = Table.offset(slot);
+			byte used = table.buffer.get(offset + USED);
+			if (used == FREE)
+			{
+				continue;
+			}
+			if (used == ITEM)
+			{
+				ItemKey key = table.validKey(slot);
+				if (key != null && table.find(key, key.hashCode()) == slot)
+				{
+					items++;
+					continue;
+				}
+			}
+			if (used != TOMBSTONE)
+			{
+				// Not FREE, which would cut the probe sequences going through the slot
+				table.buffer.put(offset + USED, TOMBSTONE);
+				dropped++;
+			}
+			tombstones++;
+		}
+		if (dropped > 0 || items != table.size() || tombstones != table.tombstones())
+		{
+			Trace.warn("RM::MappedInventory " + m_path + " was not closed cleanly: dropped " + dropped
+				+ " invalid or duplicate slot(s), " + items + " items instead of " + table.size());
+		}
+		table.buffer.putInt(HEADER_SIZE, items);
+		table.buffer.putInt(HEADER_TOMBSTONES, tombstones);
+	}
+
+	private Path resizePath()
+	{
+		return m_path.resolveSibling(m_path.getFileName() + ".resize");
+	}
+
+	// A mapping of the inventory file. Replaced as a whole on resize, so a reader always sees a buffer
+	// and a capacity that match.
+	private static class Table
+	{
+		final MappedByteBuffer buffer;
+		final int version;
+		final int capacity;
+		final int mask;
+		final int shift;
+
+		Table(MappedByteBuffer buffer, int version, int capacity)
+		{
+			this.buffer = buffer;
+			this.version = version;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+		}
+
+		// Maps an existing file, of the current version or version 1
+		static Table map(Path path) throws IOException
+		{
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+				int version = channel.size() < HEADER ? 0 : buffer.getInt(HEADER_VERSION);
+				if (version < 1 || version > VERSION || buffer.getInt(HEADER_MAGIC) != MAGIC)
+				{
+					throw new IOException("Not an inventory file: " + path);
+				}
+				int capacity = buffer.getInt(HEADER_CAPACITY);
+				int header = version == 1 ? HEADER_V1 : HEADER;
+				if (capacity <= 0 || Integer.bitCount(capacity) != 1 || channel.size() != header + (long)capacity * SLOT)
+				{
+					throw new IOException("Invalid inventory file: " + path);
+				}
+				return new Table(buffer, version, capacity);
+			}
+		}
+
+		// Creates an empty file
+		static Table create(Path path, int capacity) throws IOException
+		{
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)capacity * SLOT);
+				buffer.putInt(HEADER_MAGIC, MAGIC);
+				buffer.putInt(HEADER_VERSION, VERSION);
+				buffer.putInt(HEADER_CAPACITY, capacity);
+				buffer.putInt(HEADER_SIZE, 0);
+				return new Table(buffer, VERSION, capacity);
+			}
+		}
+
+		static int offset(int slot)
+		{
+			return HEADER + slot * SLOT;
+		}
+
+		// The offset of the slot in this file, which may be of version 1
+		int slotOffset(int slot)
+		{
+			return (version == 1 ? HEADER_V1 : HEADER) + slot * SLOT;
+		}
+
+		int size()
+		{
+			return buffer.getInt(HEADER_SIZE);
+		}
+
+		int tombstones()
+		{
+			return buffer.getInt(HEADER_TOMBSTONES);
+		}
+
+		// Marks the file dirty on disk before its first change since it was last forced
+		void markDirty()
+		{
+			if (buffer.getInt(HEADER_DIRTY) == 0)
+			{
+				buffer.putInt(HEADER_DIRTY, 1);
+				buffer.force(0, HEADER);
+			}
+		}
+
+		// Fibonacci hashing: flight numbers are often consecutive, and would otherwise fill runs of
+		// slots that other keys then have to probe through
+		int home(int hash)
+		{
+			return (hash * 0x9e3779b9) >>> shift;
+		}
+
+		// Returns the slot of the key, or -1. Gives up after a full turn so that a racing optimistic
+		// reader cannot spin forever.
+		int find(ItemKey key, int hash)
+		{
+			int slot = home(hash);
+			for (int probes = 0; probes < capacity; probes++)
+			{
+				int offset = offset(slot);
+				byte used = buffer.get(offset + USED);
+				if (used == FREE)
+				{
+					return -1;
+				}
+				if (used == ITEM && buffer.getInt(offset + HASH) == hash && matches(offset, key))
+				{
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private boolean matches(int offset, ItemKey key)
+		{
+			if (buffer.get(offset + KIND) != key.getKind().ordinal())
+			{
+				return false;
+			}
+			String location = key.getLocation();
+			if (location == null)
+			{
+				return buffer.getInt(offset + ID) == key.getId();
+			}
+			int length = buffer.getShort(offset + LENGTH);
+			if (length != location.length())
+			{
+				return false;
+			}
+			for (int i = 0; i < length; i++)
+			{
+				if (buffer.getChar(offset + LOCATION + 2 * i) != location.charAt(i))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int read(ItemKey key, int hash, int field)
+		{
+			int slot = find(key, hash);
+			return slot < 0 ? MISSING : buffer.getInt(offset(slot) + field);
+		}
+
+		ItemKey key(int slot)
+		{
+			int offset = offset(slot);
+			switch (s_kinds[buffer.get(offset + KIND)])
+			{
+				case FLIGHT:
+					return ItemKey.flight(buffer.getInt(offset + ID));
+				case CUSTOMER:
+					return ItemKey.customer(buffer.getInt(offset + ID));
+				case CAR:
+					return ItemKey.car(location(slot));
+				default:
+					return ItemKey.room(location(slot));
+			}
+		}
+
+		// The key of the item in the slot, or null if the slot does not hold a valid one
+		ItemKey validKey(int slot)
+		{
+			int offset = offset(slot);
+			byte kind = buffer.get(offset + KIND);
+			short length = buffer.getShort(offset + LENGTH);
+			if (kind < 0 || kind >= s_kinds.length || length < 0 || length > MAX_LOCATION)
+			{
+				return null;
+			}
+			ItemKey key = key(slot);
+			return key.hashCode() == buffer.getInt(offset + HASH) ? key : null;
+		}
+
+		String location(int slot)
+		{
+			int offset = offset(slot);
+			int length = Math.min(buffer.getShort(offset + LENGTH), MAX_LOCATION);
+			char[] chars = new char[Math.max(length, 0)];
+			for (int i = 0; i < chars.length; i++)
+			{
+				chars[i] = buffer.getChar(offset + LOCATION + 2 * i);
+			}
+			return new String(chars);
+		}
+
+		// Puts a key that is not in the table into the first free slot or tombstone of its probe
+		// sequence
+		int insert(ItemKey key, int hash, String location)
+		{
+			int slot = home(hash);
+			while (buffer.get(offset(slot) + USED) == ITEM)
+			{
+				slot = (slot + 1) & mask;
+			}
+			int offset = offset(slot);
+			if (buffer.get(offset + USED) == TOMBSTONE)
+			{
+				buffer.putInt(HEADER_TOMBSTONES, tombstones() - 1);
+			}
+			for (int i = 0; i < SLOT; i += 8)
+			{
+				buffer.putLong(offset + i, 0);
+			}
+			buffer.put(offset + KIND, (byte)key.getKind().ordinal());
+			buffer.putInt(offset + ID, key.getId());
+			buffer.putInt(offset + HASH, hash);
+			buffer.putShort(offset + LENGTH, (short)location.length());
+			for (int i = 0; i < location.length(); i++)
+			{
+				buffer.putChar(offset + LOCATION + 2 * i, location.charAt(i));
+			}
+			buffer.put(offset + USED, ITEM);
+			buffer.putInt(HEADER_SIZE, size() + 1);
+			return slot;
+		}
+
+		// Turns the slot of an item into a tombstone. The following slots of the probe sequence stay
+		// where they are: moving them back would change slots of other items, which a crash could
+		// leave half written.
+		void delete(int slot)
+		{
+			buffer.put(offset(slot) + USED, TOMBSTONE);
+			buffer.putInt(HEADER_SIZE, size() - 1);
+			buffer.putInt(HEADER_TOMBSTONES, tombstones() + 1);
+		}
+	}
+}
@@ -6,112 +6,348 @@
 package Server.Common;
 
 import Server.Interface.*;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 import java.util.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.rmi.RemoteException;
-import java.rmi.NotBoundException;
+import java.rmi.ServerException;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
-public class Middleware implements IResourceManager
+// Routes the requests of the clients to the resource managers: flights, cars and rooms, and the
+// customers with their reservations. The middleware keeps no data of its own, only the running
+// transactions, so several middleware instances can serve the same resource managers (see
+// -Dmiddleware.instances); a transaction must then be used through the middleware that started it.
+//
+// The middleware coordinates the two-phase commit of the transactions it started, see
+// commitTransaction. Its decisions to commit and the transaction ids it issues are logged if
+// -Dwal.dir is set (see WriteAheadLog), so that a restarted middleware still knows them and does
+// not issue the same ids again:
+//
+// -Dmiddleware.retryInterval=<s>   send the commit again every s seconds to the resource managers
+//                                  that did not acknowledge it (5 by default, 0 never)
+// -Dmiddleware.idleTimeout=<s>     abort the transactions not used for s seconds, e.g. of a client
+//                                  that went away, so that they release their locks (300 by
+//                                  default, 0 never)
+public class Middleware implements IResourceManager, ICoordinator
 {		
 	// group number as unique identifier
 	private static final String s_rmiPrefix = "group_03_";
-	private static final int MAX_THREADS = 3;
-	private static final int WAIT_RESPONSE = 3;
 	
 	private String flightsHost;
 	private String carsHost;
 	private String roomsHost;
+	private String customersHost;
 	private final String flightsServerName = "Flights";
 	private final String carsServerName = "Cars";
 	private final String roomsServerName = "Rooms";
+	private final String customersServerName = "Customers";
 	protected final int portNum = 33303;
 	
 	protected String m_name = "";
-	protected RMHashMap m_data = new RMHashMap();
+
+	// Starts the transactions and keeps track of the running ones. Instance i of n middleware
+	// instances (-Dmiddleware.instance=i, -Dmiddleware.instances=n) issues the ids i + n, i + 2n...
+	// so that no two instances issue the same id; with a log, after the ones issued before a restart.
+	protected TransactionManager m_transactionManager;
+
+	// Resource manager stubs, resolved on first use
+	private RMStubRegistry m_stubs = new RMStubRegistry(s_rmiPrefix, portNum);
+
+	// Runs the requests of operations spanning several resource managers
+	private FanOutExecutor fanOut = FanOutExecutor.shared();
+
+	// The resource managers, as participants of the two-phase commit
+	private volatile Participants m_participants = new Participants()
+	{
+		public boolean prepare(int xid)
+		{
+			return forEachServer(rm -> rm.prepare(xid));
+		}
+
+		public boolean commit(int xid)
+		{
+			return forEachServer(rm -> {
+				try {
+					return rm.commit(xid);
+				}
+				catch (RemoteException e) {
+					if (!isInvalidTransaction(e))
+					{
+						throw e;
+					}
+					Trace.warn("RM::commit(" + xid + ") unknown at a resource manager: it committed it already, or lost it");
+					return true;
+				}
+			});
+		}
+
+		public boolean abort(int xid)
+		{
+			return forEachServer(rm -> rm.abort(xid));
+		}
+	};
+
+	// Transactions ended and being prepared, whose outcome is not decided yet
+	private Set<Integer> m_deciding = ConcurrentHashMap.newKeySet();
+
+	// Transactions decided to commit that not every resource manager acknowledged yet, and those of
+	// them whose commit is sent again
+	private Set<Integer> m_committed = ConcurrentHashMap.newKeySet();
+	private Set<Integer> m_unacknowledged = ConcurrentHashMap.newKeySet();
+
+	// Log of the decisions to commit, null unless -Dwal.dir is set
+	private WriteAheadLog m_log;
 
 	public Middleware(
 		String p_name,
 		String flightsHost,
 		String carsHost,
-		String roomsHost
+		String roomsHost,
+		String customersHost
 	) {
 		m_name = p_name;
 		this.flightsHost = flightsHost;
 		this.carsHost = carsHost;
 		this.roomsHost = roomsHost;
+		this.customersHost = customersHost;
+		m_stubs.register(flightsServerName, flightsHost);
+		m_stubs.register(carsServerName, carsHost);
+		m_stubs.register(roomsServerName, roomsHost);
+		m_stubs.register(customersServerName, customersHost);
 
 		// Set the security policy
 		if (System.getSecurityManager() == null) {
 			System.setSecurityManager(new SecurityManager());
 		}
+
+		// The commits decided before a restart are sent again
+		int instance = Integer.getInteger("middleware.instance", 0);
+		try {
+			m_log = WriteAheadLog.open(p_name + "-" + instance, new ConcurrentItemStore(), null);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Could not recover from the write-ahead log of " + p_name, e);
+		}
+		if (m_log != null)
+		{
+			m_committed.addAll(m_log.getDecided());
+			m_unacknowledged.addAll(m_committed);
+		}
+		m_transactionManager = new TransactionManager(instance, Integer.getInteger("middleware.instances", 1), m_log);
+
+		int retryInterval = Integer.getInteger("middleware.retryInterval", 5);
+		int idleTimeout = Integer.getInteger("middleware.idleTimeout", 300);
+		if (retryInterval > 0 || idleTimeout > 0)
+		{
+			startBackground(retryInterval, idleTimeout);
+		}
 	}
 	
 	public String getFlightsHost() { return flightsHost; }
 	public String getCarsHost() { return carsHost; }
 	public String getRoomsHost() { return roomsHost; }
+	public String getCustomersHost() { return customersHost; }
 	public int getPortNum() { return portNum; }
-	
-	// Reads a data item
-	protected RMItem readData(int xid, String key)
+
+	// Starts a transaction
+	public int startTransaction()
+	{
+		int xid = m_transactionManager.start();
+		Trace.info("RM::start() returns xid=" + xid);
+		return xid;
+	}
+
+	// Throws InvalidTransactionException unless the transaction was started here and is running
+	public void checkTransaction(int xid) throws InvalidTransactionException
+	{
+		m_transactionManager.checkActive(xid);
+	}
+
+	// Marks the transaction so that it can only abort
+	public void setRollbackOnly(int xid)
+	{
+		m_transactionManager.setRollbackOnly(xid);
+	}
+
+	// Ends the transaction, so that it cannot be used anymore. Returns false if it can only abort.
+	// Throws InvalidTransactionException if it is not running.
+	public boolean endTransaction(int xid) throws InvalidTransactionException
+	{
+		return m_transactionManager.end(xid);
+	}
+
+	// The resource managers taking part in the two-phase commit of a transaction (flights, cars, rooms
+	// and customers), reached over RMI or TCP. Each call goes to all of them in parallel and returns
+	// true if it succeeded on all. A resource manager that does not know the transaction it is asked
+	// to commit counts as acknowledging it: it committed it on an earlier attempt.
+	public interface Participants
+	{
+		public boolean prepare(int xid);
+		public boolean commit(int xid);
+		public boolean abort(int xid);
+	}
+
+	// Sets the participants the middleware reaches on its own, to send commits again; over RMI by
+	// default
+	public void setParticipants(Participants participants)
 	{
-		synchronized(m_data) {
-			RMItem item = m_data.get(key);
-			if (item != null) {
-				return (RMItem)item.clone();
+		m_participants = participants;
+	}
+
+	// Two-phase commit coordinator. Ends the transaction and asks every resource manager to prepare
+	// it, in one parallel round; commits it everywhere if all of them voted to commit, otherwise
+	// aborts it everywhere. Returns true if the transaction committed.
+	//
+	// Once decided (and logged), a commit is sent again until every resource manager acknowledged it:
+	// until then one of them still holds the prepared transaction and its locks. An abort is not kept:
+	// a resource manager asking for the outcome of a transaction the middleware does not know is told
+	// that it aborted (see getOutcome).
+	public boolean commitTransaction(int xid, Participants participants) throws InvalidTransactionException
+	{
+		m_deciding.add(xid);
+		try {
+			if (!endTransaction(xid) || !participants.prepare(xid) || !decideCommit(xid))
+			{
+				Trace.warn("RM::commit(" + xid + ") failed--it could not be prepared everywhere, aborting it");
+				participants.abort(xid);
+				return false;
+			}
+		}
+		finally {
+			m_deciding.remove(xid);
+		}
+
+		if (participants.commit(xid))
+		{
+			ended(xid);
+		}
+		else
+		{
+			Trace.warn("RM::commit(" + xid + ") not acknowledged by every resource manager, sending it again");
+			m_unacknowledged.add(xid);
+		}
+		return true;
+	}
+
+	// Records the decision to commit the transaction, on disk if there is a log. Returns false if it
+	// cannot be logged: the transaction must then abort.
+	private boolean decideCommit(int xid)
+	{
+		if (m_log != null)
+		{
+			try {
+				m_log.decideCommit(xid);
+			}
+			catch (IOException e) {
+				Trace.error("RM::commit(" + xid + ") could not log the decision: " + e.getMessage());
+				return false;
 			}
-			return null;
 		}
+		m_committed.add(xid);
+		return true;
 	}
 
-	// Writes a data item
-	public void writeData(int xid, String key, RMItem value)
+	// Forgets a commit every resource manager acknowledged
+	private void ended(int xid)
 	{
-		synchronized(m_data) {
-			m_data.put(key, value);
+		if (m_log != null)
+		{
+			try {
+				m_log.end(xid);
+			}
+			catch (IOException e) {
+				// The commit is sent again after a restart, which is harmless
+				Trace.warn("RM::commit(" + xid + ") could not log the end: " + e.getMessage());
+			}
 		}
+		m_unacknowledged.remove(xid);
+		m_committed.remove(xid);
 	}
 
-	// Remove the item out of storage
-	public void removeData(int xid, String key)
+	// In the background, sends the commits not acknowledged every retryInterval seconds and aborts
+	// the transactions idle for idleTimeout seconds; 0 turns either off
+	private void startBackground(int retryInterval, int idleTimeout)
 	{
-		synchronized(m_data) {
-			m_data.remove(key);
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "middleware-" + m_name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (retryInterval > 0)
+		{
+			executor.scheduleWithFixedDelay(() -> {
+				for (int xid : m_unacknowledged)
+				{
+					if (m_participants.commit(xid))
+					{
+						Trace.info("RM::commit(" + xid + ") acknowledged by every resource manager");
+						ended(xid);
+					}
+				}
+			}, retryInterval, retryInterval, TimeUnit.SECONDS);
+		}
+		if (idleTimeout > 0)
+		{
+			// Checks a few times per timeout, so that a transaction is aborted soon after it expires
+			long period = Math.max(idleTimeout * 1000L / 4, 1);
+			executor.scheduleWithFixedDelay(() -> abortIdle(idleTimeout * 1000L), period, period, TimeUnit.MILLISECONDS);
 		}
 	}
-	
-	// Check if customer exists
-	public Customer getCustomer(int xid, int customerID)
+
+	// Aborts the transactions not used for more than timeout ms. A client using one afterwards is
+	// told that it is not running.
+	private void abortIdle(long timeout)
 	{
-		Trace.info("RM::getCustomer(" + xid + ", customer=" + customerID + ") called" );
-		// Read customer object if it exists (and read lock it)
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
-		if (customer == null)
+		for (int xid : m_transactionManager.getIdle(timeout))
 		{
-			Trace.warn("RM::getCustomer(" + xid + ", " + customerID + ")  failed--customer doesn't exist");	
+			try {
+				abortTransaction(xid, m_participants);
+				Trace.warn("RM::abort(" + xid + ") of a transaction idle for more than " + timeout / 1000 + "s");
+			}
+			catch (InvalidTransactionException e) {
+				// Its client committed or aborted it meanwhile
+			}
 		}
+	}
 
-		return customer;
+	// Outcome of a transaction started here, for a resource manager that prepared it and missed the
+	// outcome
+	public int getOutcome(int xid) throws RemoteException
+	{
+		if (!m_transactionManager.isIssuedHere(xid))
+		{
+			throw new InvalidTransactionException(xid, "it was not started by this middleware instance");
+		}
+		if (m_transactionManager.isActive(xid) || m_deciding.contains(xid))
+		{
+			return UNDECIDED;
+		}
+		return m_committed.contains(xid) ? COMMITTED : ABORTED;
+	}
+
+	// Ends the transaction and rolls it back at every resource manager
+	public boolean abortTransaction(int xid, Participants participants) throws InvalidTransactionException
+	{
+		endTransaction(xid);
+		return participants.abort(xid);
 	}
 
 	// Create a new flight, or add seats to existing flight
 	// NOTE: if flightPrice <= 0 and the flight already exists, it maintains its current price
 	public boolean addFlight(int xid, int flightNum, int flightSeats, int flightPrice) throws RemoteException
-	{	
+	{
+		checkTransaction(xid);
 		Trace.info("RM::addFlight(" + xid + ", " + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
-		IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.addFlight(xid, flightNum, flightSeats, flightPrice);
 		}
@@ -126,8 +362,9 @@ public class Middleware implements IResourceManager
 	// NOTE: if price <= 0 and the location already exists, it maintains its current price
 	public boolean addCars(int xid, String location, int count, int price) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::addCars(" + xid + ", " + location + ", " + count + ", $" + price + ") called");
-		IResourceManager m_resourceManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager m_resourceManager = connectServer(carsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.addCars(xid, location, count, price);
 		}
@@ -142,8 +379,9 @@ public class Middleware implements IResourceManager
 	// NOTE: if price <= 0 and the room location already exists, it maintains its current price
 	public boolean addRooms(int xid, String location, int count, int price) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::addRooms(" + xid + ", " + location + ", " + count + ", $" + price + ") called");
-		IResourceManager m_resourceManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager m_resourceManager = connectServer(roomsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.addRooms(xid, location, count, price);
 		}
@@ -157,8 +395,9 @@ public class Middleware implements IResourceManager
 	// Deletes flight
 	public boolean deleteFlight(int xid, int flightNum) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::deleteFlight(" + xid + ", " + flightNum + ") called");
-		IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.deleteFlight(xid, flightNum);
 		}
@@ -172,8 +411,9 @@ public class Middleware implements IResourceManager
 	// Delete cars at a location
 	public boolean deleteCars(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::deleteCars(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager m_resourceManager = connectServer(carsServerName);
 		if (m_resourceManager != null) {
 			return m_resourceManager.deleteCars(xid, location);
 		}
@@ -187,8 +427,9 @@ public class Middleware implements IResourceManager
 	// Delete rooms at a location
 	public boolean deleteRooms(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::deleteRooms(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager m_resourceManager = connectServer(roomsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.deleteRooms(xid, location);
 		}
@@ -202,8 +443,9 @@ public class Middleware implements IResourceManager
 	// Returns the number of empty seats in this flight
 	public int queryFlight(int xid, int flightNum) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryFlight(" + xid + ", " + flightNum + ") called");
-		IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
 		if (m_resourceManager != null) {
 			return m_resourceManager.queryFlight(xid, flightNum);
 		}
@@ -217,8 +459,9 @@ public class Middleware implements IResourceManager
 	// Returns the number of cars available at a location
 	public int queryCars(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryCars(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager m_resourceManager = connectServer(carsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.queryCars(xid, location);
 		}
@@ -232,8 +475,9 @@ public class Middleware implements IResourceManager
 	// Returns the amount of rooms available at a location
 	public int queryRooms(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryRooms(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager m_resourceManager = connectServer(roomsServerName);
 		if (m_resourceManager != null) {			
 			return m_resourceManager.queryRooms(xid, location);
 		}
@@ -247,8 +491,9 @@ public class Middleware implements IResourceManager
 	// Returns price of a seat in this flight
 	public int queryFlightPrice(int xid, int flightNum) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryFlightPrice(" + xid + ", " + flightNum + ") called");
-		IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.queryFlightPrice(xid, flightNum);
 		}
@@ -262,8 +507,9 @@ public class Middleware implements IResourceManager
 	// Returns price of cars at this location
 	public int queryCarsPrice(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryCarsPrice(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager m_resourceManager = connectServer(carsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.queryCarsPrice(xid, location);
 		}
@@ -277,8 +523,9 @@ public class Middleware implements IResourceManager
 	// Returns room price at this location
 	public int queryRoomsPrice(int xid, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryRoomsPrice(" + xid + ", " + location + ") called");
-		IResourceManager m_resourceManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager m_resourceManager = connectServer(roomsServerName);
 		if (m_resourceManager != null) {	
 			return m_resourceManager.queryRoomsPrice(xid, location);
 		}
@@ -291,103 +538,90 @@ public class Middleware implements IResourceManager
 
 	public String queryCustomerInfo(int xid, int customerID) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::queryCustomerInfo(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
-		if (customer == null)
-		{
-			Trace.warn("RM::queryCustomerInfo(" + xid + ", " + customerID + ") failed--customer doesn't exist");
-			// NOTE: don't change this--WC counts on this value indicating a customer does not exist...
-			return "";
+		IResourceManager m_resourceManager = connectServer(customersServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.queryCustomerInfo(xid, customerID);
 		}
-		else
-		{
-			Trace.info("RM::queryCustomerInfo(" + xid + ", " + customerID + ")");
-			System.out.println(customer.getBill());
-			return customer.getBill();
+		else {
+			Trace.warn("RM::queryCustomerInfo(" + xid + ", " + customerID + ")" +
+				   "  could not connect to the resource manager server.");
+			return "";
 		}
 	}
 
 	public int newCustomer(int xid) throws RemoteException
 	{
-        	Trace.info("RM::newCustomer(" + xid + ") called");
-		// Generate a globally unique ID for the new customer
-		int cid = Integer.parseInt(String.valueOf(xid) +
-			String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND)) +
-			String.valueOf(Math.round(Math.random() * 100 + 1)));
-		Customer customer = new Customer(cid);
-		writeData(xid, customer.getKey(), customer);
-		Trace.info("RM::newCustomer(" + cid + ") returns ID=" + cid);
-		return cid;
+		checkTransaction(xid);
+		Trace.info("RM::newCustomer(" + xid + ") called");
+		IResourceManager m_resourceManager = connectServer(customersServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.newCustomer(xid);
+		}
+		else {
+			Trace.warn("RM::newCustomer(" + xid + ")" +
+				   "  could not connect to the resource manager server.");
+			return -1;
+		}
 	}
 
 	public boolean newCustomer(int xid, int customerID) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::newCustomer(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
-		if (customer == null)
-		{
-			customer = new Customer(customerID);
-			writeData(xid, customer.getKey(), customer);
-			Trace.info("RM::newCustomer(" + xid + ", " + customerID + ") created a new customer");
-			return true;
+		IResourceManager m_resourceManager = connectServer(customersServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.newCustomer(xid, customerID);
 		}
-		else
-		{
-			Trace.info("INFO: RM::newCustomer(" + xid + ", " + customerID + ") failed--customer already exists");
+		else {
+			Trace.warn("RM::newCustomer(" + xid + ", " + customerID + ")" +
+				   "  could not connect to the resource manager server.");
 			return false;
 		}
 	}
-		
+
+	// Cancels the reservations of the customer at the resource managers, then deletes the customer
 	public boolean deleteCustomer(int xid, int customerID) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
-		if (customer == null)
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (customersManager == null) return false;
+
+		HashMap<String, Integer> reservationsMap = customersManager.getCustomerReservations(xid, customerID);
+		if (reservationsMap == null)
 		{
 			Trace.warn("RM::deleteCustomer(" + xid + ", " + customerID + ") failed--customer doesn't exist");
 			return false;
 		}
-		else
-		{            
-			// Increase the reserved numbers of all reservable items which the customer reserved. 
- 			RMHashMap reservations = customer.getReservations();
-			// hashmap for storing keys and number of reservations
-			HashMap<String, Integer> reservationsMap = new HashMap<String, Integer>(); //<key, count>
-			//Vector<String> reservedKeyList;
-			
-			for (String reservedKey : reservations.keySet())
-			{        
-				ReservedItem reserveditem = customer.getReservedItem(reservedKey);
-				reservationsMap.put(reserveditem.getKey(), reserveditem.getCount());	
-			}
-			
-			// cancel item reservations in all resource managers. Return false if failed
-			if (cancelItemSet(xid, reservationsMap) == false) return false;
-			
-			// Remove the customer from the storage
-			removeData(xid, customer.getKey());
-			Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") succeeded");
-			return true;
-		}
+
+		// cancel item reservations in all resource managers. Return false if failed
+		if (cancelItemSet(xid, reservationsMap) == false) return false;
+
+		// Remove the customer from the customers resource manager
+		if (!customersManager.deleteCustomer(xid, customerID)) return false;
+		Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") succeeded");
+		return true;
 	}
 
 	// Adds flight reservation to this customer
 	public int reserveFlight(int xid, int customerID, int flightNum) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::reserveFlight(" + xid + ", " + customerID + ", " + flightNum + ") called");
-		Customer customer = getCustomer(xid, customerID);
 		// if customer does not exist, return -1
-		if (customer == null) return -1;
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (!customerExists(customersManager, xid, customerID)) return -1;
 		
 		// return -1 if there is no connection to the resource manager
-		IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);	
+		IResourceManager m_resourceManager = connectServer(flightsServerName);	
 		if (m_resourceManager == null) return -1;
 		
 		// if a flight is successfully reserved return 0, otherwise -1
 		int flightPrice = m_resourceManager.reserveFlight(xid, customerID, flightNum);
 		if (flightPrice != -1) {
-			customer.reserve(Flight.getKey(flightNum), String.valueOf(flightNum), flightPrice);
-			writeData(xid, customer.getKey(), customer);
+			addReservation(customersManager, xid, customerID, ItemKey.flight(flightNum), flightPrice);
 			return 0;
 		}
 
@@ -397,21 +631,21 @@ public class Middleware implements IResourceManager
 	// Adds car reservation to this customer	
 	public int reserveCar(int xid, int customerID, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::reserveCar(" + xid + ", " + customerID + ", " + location + ") called");
-		Customer customer = getCustomer(xid, customerID);
 		// if customer does not exist, return false
-		if (customer == null) return -1;	
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (!customerExists(customersManager, xid, customerID)) return -1;
 		
 		// return -1 if there is no connection to the resource manager
-		IResourceManager m_resourceManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager m_resourceManager = connectServer(carsServerName);
 		if (m_resourceManager == null) return -1;	
 		
 		// if a car is successfully reserved return 0, otherwise -1
 		int carPrice = m_resourceManager.reserveCar(xid, customerID, location);	
 		
 		if (carPrice != -1) {
-			customer.reserve(Car.getKey(location), location, carPrice);
-			writeData(xid, customer.getKey(), customer);
+			addReservation(customersManager, xid, customerID, ItemKey.car(location), carPrice);
 			return carPrice;
 		}
 		
@@ -421,27 +655,51 @@ public class Middleware implements IResourceManager
 	// Adds room reservation to this customer
 	public int reserveRoom(int xid, int customerID, String location) throws RemoteException
 	{
+		checkTransaction(xid);
 		Trace.info("RM::reserveRoom(" + xid + ", " + customerID + ", " + location + ") called");
-		Customer customer = getCustomer(xid, customerID);
 		// if customer does not exist, return false
-		if (customer == null) return -1;
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (!customerExists(customersManager, xid, customerID)) return -1;
 
 		// return -1 if there is no connection to the resource manager
-		IResourceManager m_resourceManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager m_resourceManager = connectServer(roomsServerName);
 		if (m_resourceManager == null) return -1;
 		
 		// if a room is successfully reserved return 0, otherwise -1
 		int roomPrice = m_resourceManager.reserveRoom(xid, customerID, location);
 		if (roomPrice != -1) {
-			customer.reserve(Room.getKey(location), location, roomPrice);
-			writeData(xid, customer.getKey(), customer);
+			addReservation(customersManager, xid, customerID, ItemKey.room(location), roomPrice);
 			return roomPrice;
 		}
 
 		return -1;
 	}
 
-	// Reserve bundle 
+	// Whether the customer exists at the customers resource manager (read locking it there)
+	private boolean customerExists(IResourceManager customersManager, int xid, int customerID) throws RemoteException
+	{
+		if (customersManager == null) return false;
+		return customersManager.getCustomerReservations(xid, customerID) != null;
+	}
+
+	// Records an item reserved at a resource manager with the customer. Once the item is reserved the
+	// reservation cannot be undone on its own, so if it cannot be recorded the transaction is marked
+	// rollback-only.
+	private void addReservation(IResourceManager customersManager, int xid, int customerID, ItemKey key, int price) throws RemoteException
+	{
+		Vector<String> reservedKeys = new Vector<String>();
+		Vector<Integer> prices = new Vector<Integer>();
+		reservedKeys.add(key.toString());
+		prices.add(price);
+		if (!customersManager.addCustomerReservations(xid, customerID, reservedKeys, prices)) {
+			Trace.warn("RM::addReservation(" + xid + ", " + customerID + ", " + key + ") failed, the transaction can only abort");
+			setRollbackOnly(xid);
+		}
+	}
+
+	// Reserve bundle: one parallel round in which every resource manager reserves its part. A bundle
+	// that fails half way cannot be undone on its own, so the transaction is then marked
+	// rollback-only and its commit aborts it at every resource manager.
 	public boolean bundle(
 		int xid,
 		int customerId,
@@ -450,218 +708,214 @@ public class Middleware implements IResourceManager
 		boolean car,
 		boolean room
 	) throws RemoteException {
+		checkTransaction(xid);
 		Trace.info("RM::bundle(" + xid + ", " + customerId + ", " +
 					   flightNumbers.toString() + "," + location + ", " + car + ", " + room + ") called");
 		if (flightNumbers.isEmpty()) return false;
-			
-		boolean availabe = checkItemsAvailability(xid, customerId, flightNumbers, location, car, room);
-		if (availabe) return reserveItemsBunlde(xid, customerId, flightNumbers, location, car, room);
-		return false;
+
+		// if customer does not exist, return false
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (!customerExists(customersManager, xid, customerId)) return false;
+
+		long deadline = fanOut.newDeadline();
+		Vector<Integer> flightPrices = new Vector<Integer>();
+		int[] carPrice = new int[1];
+		int[] roomPrice = new int[1];
+
+		Future<Boolean> carFuture = CompletableFuture.completedFuture(true);
+		Future<Boolean> roomFuture = CompletableFuture.completedFuture(true);
+
+		// send asynchronous requests to the resource managers
+		Future<Boolean> flightsFuture = fanOut.submit(() -> {
+			IResourceManager m_resourceManager = connectServer(flightsServerName);
+			if (m_resourceManager == null) return false;
+			Vector<Integer> prices = m_resourceManager.reserveFlightList(xid, customerId, flightNumbers, location);
+			if (prices == null || prices.size() != flightNumbers.size()) return false;
+			flightPrices.addAll(prices);
+			return true;
+		});
+
+		if (car) {
+			carFuture = fanOut.submit(() -> {
+				IResourceManager m_resourceManager = connectServer(carsServerName);
+				if (m_resourceManager == null) return false;
+				carPrice[0] = m_resourceManager.reserveCar(xid, customerId, location);
+				return carPrice[0] != -1;
+			});
+		}
+
+		if (room) {
+			roomFuture = fanOut.submit(() -> {
+				IResourceManager m_resourceManager = connectServer(roomsServerName);
+				if (m_resourceManager == null) return false;
+				roomPrice[0] = m_resourceManager.reserveRoom(xid, customerId, location);
+				return roomPrice[0] != -1;
+			});
+		}
+
+		// get the results
+		boolean flightsResult = fanOut.await(flightsFuture, deadline);
+		boolean carResult = fanOut.await(carFuture, deadline);
+		boolean roomResult = fanOut.await(roomFuture, deadline);
+
+		if (!(flightsResult && carResult && roomResult)) {
+			Trace.warn("RM::bundle(" + xid + ", " + customerId + ") failed, the transaction can only abort");
+			setRollbackOnly(xid);
+			return false;
+		}
+
+		// record the reservations with the customer
+		Vector<String> reservedKeys = new Vector<String>();
+		Vector<Integer> prices = new Vector<Integer>();
+		for (int i = 0; i < flightPrices.size(); i++) {
+			reservedKeys.add(ItemKey.flight(Integer.parseInt(flightNumbers.get(i))).toString());
+			prices.add(flightPrices.get(i));
+		}
+		if (car) {
+			reservedKeys.add(ItemKey.car(location).toString());
+			prices.add(carPrice[0]);
+		}
+		if (room) {
+			reservedKeys.add(ItemKey.room(location).toString());
+			prices.add(roomPrice[0]);
+		}
+		if (!customersManager.addCustomerReservations(xid, customerId, reservedKeys, prices)) {
+			Trace.warn("RM::bundle(" + xid + ", " + customerId + ") could not record the reservations, the transaction can only abort");
+			setRollbackOnly(xid);
+			return false;
+		}
+		return true;
 	}
 
-	public boolean checkFlightList(int xid, Vector<String> flightNumbers, String location) throws RemoteException {
-		return false;
+	public boolean checkFlightList(int xid, Vector<String> flightNumbers, String location) throws RemoteException
+	{
+		checkTransaction(xid);
+		Trace.info("RM::checkFlightList(" + xid + ", " + flightNumbers + ", " + location + ") called");
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.checkFlightList(xid, flightNumbers, location);
+		}
+		else {
+			Trace.warn("RM::checkFlightList(" + xid + ", " + flightNumbers + ", " + location + ")" +
+				   "  could not connect to the resource manager server.");
+			return false;
+		}
 	}
 
+	// Reserves the flights for the customer and records them with the customer; returns their
+	// prices, or an empty vector if they could not be reserved
 	public Vector<Integer> reserveFlightList(
 		int xid,
 		int customerId,
 		Vector<String> flightNumbers,
 		String location
 	) throws RemoteException {
-		return null;
-	}
+		checkTransaction(xid);
+		Trace.info("RM::reserveFlightList(" + xid + ", " + customerId + ", " + flightNumbers + ", " + location + ") called");
+		IResourceManager customersManager = connectServer(customersServerName);
+		if (!customerExists(customersManager, xid, customerId)) return new Vector<Integer>();
 
-	public boolean cancelItemReservations(int xid, HashMap<String, Integer> reservedKeysMap) throws RemoteException {
-		return false;
-	}
+		IResourceManager m_resourceManager = connectServer(flightsServerName);
+		if (m_resourceManager == null) return new Vector<Integer>();
 
+		Vector<Integer> prices = m_resourceManager.reserveFlightList(xid, customerId, flightNumbers, location);
+		if (prices == null || prices.size() != flightNumbers.size()) return new Vector<Integer>();
 
-	public String getName() throws RemoteException
-	{
-		return m_name;
+		Vector<String> reservedKeys = new Vector<String>();
+		for (String flightNumber : flightNumbers) {
+			reservedKeys.add(ItemKey.flight(Integer.parseInt(flightNumber)).toString());
+		}
+		if (!customersManager.addCustomerReservations(xid, customerId, reservedKeys, prices)) {
+			Trace.warn("RM::reserveFlightList(" + xid + ", " + customerId + ") could not record the reservations, the transaction can only abort");
+			setRollbackOnly(xid);
+			return new Vector<Integer>();
+		}
+		return prices;
 	}
 
-	
-	// check if items are available
-	private boolean checkItemsAvailability(
-		int xid, 
-		int customerId,
-		Vector<String> flightNumbers,
-		String location,
-		boolean car, 
-		boolean room
-	) throws RemoteException {
-		Trace.info("RM::bundle[checkItemsAvailability](" + xid + ", " + customerId + ", " +
-					   flightNumbers.toString() + "," + location + ", " + car + ", " + room + ") called");
-		boolean flightsResult = true;
-		boolean carResult = true;
-		boolean roomResult = true;
-		
-		// threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
-		Future<Boolean> flightsFuture = null;
-		Future<Boolean> carFuture = null;
-		Future<Boolean> roomFuture = null;
+	// Cancels the reservations at the resource managers holding the items
+	public boolean cancelItemReservations(int xid, HashMap<String, Integer> reservedKeysMap) throws RemoteException
+	{
+		checkTransaction(xid);
+		Trace.info("RM::cancelItemReservations(" + xid + ", " + reservedKeysMap + ") called");
+		return cancelItemSet(xid, reservedKeysMap);
+	}
 
-		// if customer does not exist, return false
-		Customer customer = getCustomer(xid, customerId);
-		if (customer == null) return false;
-		
-		// send asynchronous requests to the resource managers
-		
-		if (!flightNumbers.isEmpty()) {
-			Callable<Boolean> checkFlightsCallback = () -> {	
-				Trace.info("RM::checkFlightList(" + xid + ", " + flightNumbers + ", " + location + ") called");
-				IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
-				if (m_resourceManager == null) return false;	
-				return m_resourceManager.checkFlightList(xid, flightNumbers, location);
-			};
-			
-			// create thread for reserving list flight
-			flightsFuture = executor.submit(checkFlightsCallback);
+	public HashMap<String, Integer> getCustomerReservations(int xid, int customerID) throws RemoteException
+	{
+		checkTransaction(xid);
+		Trace.info("RM::getCustomerReservations(" + xid + ", " + customerID + ") called");
+		IResourceManager m_resourceManager = connectServer(customersServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.getCustomerReservations(xid, customerID);
 		}
-		
-		if (car) {	
-			// thread for reserving a car at a location
-			Callable<Boolean> checkCarCallback = () -> {
-				int amount = queryCars(xid, location);
-				return amount > 0;
-			};
-			
-			// thread for reserving a car at a location
-			carFuture = executor.submit(checkCarCallback);
+		else {
+			Trace.warn("RM::getCustomerReservations(" + xid + ", " + customerID + ")" +
+				   "  could not connect to the resource manager server.");
+			return null;
 		}
+	}
 
-		if (room) {
-			// thread for reserving a  at a location
-			Callable<Boolean> checkRoomCallback = () -> {
-				int amount = queryRooms(xid, location);
-				return amount > 0;
-			};
-			
-			// thread for reserving a  at a location
-			roomFuture = executor.submit(checkRoomCallback);
-		}	
-
-		// wait for previously submitted tasks to execute, and then terminate the executor
-		executor.shutdown();
-
-		// get the results
-		if (!flightNumbers.isEmpty()) flightsResult = handleThreadResult(flightsFuture);
-		if (car) carResult = handleThreadResult(carFuture);
-		if (room) roomResult = handleThreadResult(roomFuture);	
-		
-		return flightsResult && carResult && roomResult;
+	public boolean addCustomerReservations(int xid, int customerID, Vector<String> reservedKeys, Vector<Integer> prices) throws RemoteException
+	{
+		checkTransaction(xid);
+		Trace.info("RM::addCustomerReservations(" + xid + ", " + customerID + ", " + reservedKeys + ") called");
+		IResourceManager m_resourceManager = connectServer(customersServerName);
+		if (m_resourceManager != null) {
+			return m_resourceManager.addCustomerReservations(xid, customerID, reservedKeys, prices);
+		}
+		else {
+			Trace.warn("RM::addCustomerReservations(" + xid + ", " + customerID + ", " + reservedKeys + ")" +
+				   "  could not connect to the resource manager server.");
+			return false;
+		}
 	}
-	
-	// reserve items
-	private boolean reserveItemsBunlde(
-		int xid,
-		int customerId,
-		Vector<String> flightNumbers,
-		String location,
-		boolean car, 
-		boolean room
-	) throws RemoteException {
-		Trace.info("RM::bundle[reserveItemsBunlde](" + xid + ", " + customerId + ", " +
-					   flightNumbers.toString() + "," + location + ", " + car + ", " + room + ") called");
-		
-		boolean flightsResult = true;
-		boolean carResult = true;
-		boolean roomResult = true;
 
-		// threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
-		Future<Boolean> flightsFuture = CompletableFuture.completedFuture(true);
-		Future<Boolean> carFuture = CompletableFuture.completedFuture(true);
-		Future<Boolean> roomFuture = CompletableFuture.completedFuture(true);
+	public int start() throws RemoteException
+	{
+		return startTransaction();
+	}
 
-		// if customer does not exist, return false
-		Customer customer = getCustomer(xid, customerId);
-		if (customer == null) return false;
+	// Asks every resource manager to prepare the transaction and returns whether they all voted to
+	// commit; the transaction stays open until Commit or Abort decides it
+	public boolean prepare(int xid) throws RemoteException
+	{
+		checkTransaction(xid);
+		Trace.info("RM::prepare(" + xid + ") called");
+		return m_participants.prepare(xid);
+	}
 
-		// send asynchronous requests to the resource managers
-	
-		// check if the vector is empty	
-		if (!flightNumbers.isEmpty()) {	
-			Callable<Boolean> reserveFlightsCallback = () -> {
-				Trace.info("RM::reserveFlightList(" + xid + ", " + customerId +
-					   ", " + flightNumbers + ", " + location + ") called");
-				
-				IResourceManager m_resourceManager = connectServer(flightsHost, portNum, flightsServerName);
-				if (m_resourceManager == null) return false;
-				
-				Vector<Integer> prices = m_resourceManager.reserveFlightList(xid, customerId, flightNumbers, location);
-				if (prices.isEmpty()) return false;				
-
-				for (int i = 0; i < prices.size(); i++) {
-					int flightNum = Integer.parseInt(flightNumbers.get(i));
-					customer.reserve(Flight.getKey(flightNum), String.valueOf(flightNum), prices.get(i));
-					writeData(xid, customer.getKey(), customer);
-				}
-				
-				return true;
-			};
+	// Commits the transaction here and at the resource managers, see commitTransaction
+	public boolean commit(int xid) throws RemoteException
+	{
+		Trace.info("RM::commit(" + xid + ") called");
+		return commitTransaction(xid, m_participants);
+	}
 
-			// create thread for reserving list flight
-			flightsFuture = executor.submit(reserveFlightsCallback);
-		}
-		
-		if (car) {	
-			Callable<Boolean> reserveCarCallback = () -> {
-				Trace.info("RM::reserveCar(" + xid + ", " + customerId + ", " + location + ") called");
-						
-				int price = reserveCar(xid, customerId, location);
-				if (price == -1) return false;
-				
-				customer.reserve(Car.getKey(location), location, price);
-				writeData(xid, customer.getKey(), customer);
-				return true;
-			};
-			
-			// thread for reserving a car at a location
-			carFuture = executor.submit(reserveCarCallback);
-		}
-
-		if (room) {	
-			Callable<Boolean> reserveRoomCallback = () -> {
-				Trace.info("RM::reserveRoom(" + xid + ", " + customerId + ", " + location + ") called");
-					
-				int price = reserveRoom(xid, customerId, location);
-				if (price == -1) return false;
-				customer.reserve(Room.getKey(location), location, price);
-				writeData(xid, customer.getKey(), customer);
-				return true;
-			};
-			
-			// thread for reserving a room at a location
-			roomFuture = executor.submit(reserveRoomCallback);
-		}
-		
-		// wait for previously submitted tasks to execute, and then terminate the executor
-		executor.shutdown();
+	// Aborts the transaction here and at the resource managers
+	public boolean abort(int xid) throws RemoteException
+	{
+		Trace.info("RM::abort(" + xid + ") called");
+		return abortTransaction(xid, m_participants);
+	}
 
-		// get the results
-		if (!flightNumbers.isEmpty()) flightsResult = handleThreadResult(flightsFuture);
-		if (car) carResult = handleThreadResult(carFuture);
-		if (room) roomResult = handleThreadResult(roomFuture);
-	
-		return flightsResult && carResult && roomResult;
+	public String getName() throws RemoteException
+	{
+		return m_name;
 	}
 
+	
 	private boolean cancelItemSet(int xid, HashMap<String, Integer> reservationsMap) {
-		// threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+		long deadline = fanOut.newDeadline();
 		
 		// get the references to the remote objects
-		IResourceManager flightsManager = connectServer(flightsHost, portNum, flightsServerName);
+		IResourceManager flightsManager = connectServer(flightsServerName);
 		if (flightsManager == null) return false;
 		
-		IResourceManager carsManager = connectServer(carsHost, portNum, carsServerName);
+		IResourceManager carsManager = connectServer(carsServerName);
 		if (carsManager == null) return false;
 
-		IResourceManager roomsManager = connectServer(roomsHost, portNum, roomsServerName);
+		IResourceManager roomsManager = connectServer(roomsServerName);
 		if (roomsManager == null) return false;
 		
 		// 
@@ -678,79 +932,52 @@ public class Middleware implements IResourceManager
 		};
 		
 		// Submit a value-returning tasks for execution in separate threads
-		Future<Boolean> flightsFuture = executor.submit(cancelFlights);
-		Future<Boolean> carsFuture = executor.submit(cancelCars);
-		Future<Boolean> roomsFuture = executor.submit(cancelRooms);
+		Future<Boolean> flightsFuture = fanOut.submit(cancelFlights);
+		Future<Boolean> carsFuture = fanOut.submit(cancelCars);
+		Future<Boolean> roomsFuture = fanOut.submit(cancelRooms);
 		
-		// execute threads
-		executor.shutdown();
-	
 		// get the results
-		boolean flightsResult = handleThreadResult(flightsFuture);
-		boolean carResult = handleThreadResult(carsFuture);
-		boolean roomResult = handleThreadResult(roomsFuture);
+		boolean flightsResult = fanOut.await(flightsFuture, deadline);
+		boolean carResult = fanOut.await(carsFuture, deadline);
+		boolean roomResult = fanOut.await(roomsFuture, deadline);
 
 		return flightsResult && carResult && roomResult;
 	}
 
-	private boolean handleThreadResult(Future<Boolean> itemsFuture) {
-		boolean itemsResult = false;
-		
-		// submit lambda function to a new thread	
-		try {
-			// limit the thread response time by 3 seconds
-			itemsResult = itemsFuture.get(WAIT_RESPONSE, TimeUnit.SECONDS);
-		}
-		catch(TimeoutException e) {
-			Trace.warn("RM::Thread timeout exception");
-			itemsFuture.cancel(true);
-			return false;
-		}
-		catch(InterruptedException e) {
-			Trace.warn("RM::Thread interrupted exception");
-			itemsFuture.cancel(true);
-			return false;
-		}
-		catch(ExecutionException e) {
-			Trace.warn("RM::Thread execution exception");
-			itemsFuture.cancel(true);
-			return false;
-		}
-		catch(CancellationException e) {
-			Trace.warn("RM::Thread cancellation exception");
-			return false;
-		}
-		
-		return itemsResult;
+	// A call made on every resource manager, see forEachServer
+	private interface ServerCall
+	{
+		boolean apply(IResourceManager resourceManager) throws RemoteException;
 	}
 
-	
-	private IResourceManager connectServer(String server, int port, String name) {
-		IResourceManager m_resourceManager = null;
-
-		try {
-			boolean first = true;
-			while (true) {
-				try {
-					Registry registry = LocateRegistry.getRegistry(server, port);
-					m_resourceManager = (IResourceManager)registry.lookup(s_rmiPrefix + name);
-					Trace.info("Connected to '" + name + "' server [" + server + ":" + port + "/" + s_rmiPrefix + name + "]");
-					break;
-				}
-				catch (NotBoundException|RemoteException e) {
-					if (first) {
-						Trace.warn("Waiting for '" + name + "' server [" + server + ":" + port + "/" + s_rmiPrefix + name + "]");
-						first = false;
-					}
-				}
-				Thread.sleep(500);
-			}
+	// Makes the call on the four resource managers in parallel, within the time budget of a round of
+	// the two-phase commit; returns true if it succeeded on all
+	private boolean forEachServer(ServerCall call) {
+		long deadline = fanOut.newCommitDeadline();
+		Vector<Future<Boolean>> futures = new Vector<Future<Boolean>>();
+		for (String name : new String[] { flightsServerName, carsServerName, roomsServerName, customersServerName }) {
+			futures.add(fanOut.submit(() -> {
+				IResourceManager m_resourceManager = connectServer(name);
+				if (m_resourceManager == null) return false;
+				return call.apply(m_resourceManager);
+			}));
 		}
-		catch (Exception e) {
-			Trace.error((char)27 + "[31;1mServer exception: " + (char)27 + "[0mUncaught exception");
-			//e.printStackTrace();	
+
+		boolean result = true;
+		for (Future<Boolean> future : futures) {
+			result &= fanOut.await(future, deadline);
 		}
+		return result;
+	}
+
+	private IResourceManager connectServer(String name) {
+		return m_stubs.get(name);
+	}
 
-		return m_resourceManager;
+	// Returns true if the call failed because the server does not know the transaction; RMI hands a
+	// RemoteException thrown by the server over in a ServerException
+	private static boolean isInvalidTransaction(RemoteException e) {
+		return e instanceof InvalidTransactionException
+			|| e instanceof ServerException && e.getCause() instanceof InvalidTransactionException;
 	}
 }
@@ -0,0 +1,204 @@
+package Server.Common;
+
+import Server.Interface.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.UnmarshalException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Resolves the resource manager stubs once and shares them between all middleware calls.
+ *
+ * A stub is looked up again only after it fails: a call that could not reach the resource manager
+ * at all (ConnectException, NoSuchObjectException) is retried once on a fresh stub, and the other
+ * transport failures (see isTransportFailure) drop the cached stub and are passed on to the
+ * caller. An exception thrown by the resource manager itself (a ServerException, or an application
+ * exception such as TransactionAbortedException) leaves the stub in place. Lookups back off between
+ * a bounded number of attempts, and a background thread checks the cached stubs and reconnects
+ * the missing ones so callers rarely wait on the registry.
+ */
+public class RMStubRegistry
+{
+	private static final int LOOKUP_ATTEMPTS = 4;
+	private static final long INITIAL_BACKOFF = 250;	// ms, doubled after every failed attempt
+	private static final long HEALTH_CHECK_INTERVAL = 5000;	// ms
+
+	private String rmiPrefix;
+	private int port;
+
+	// Resource manager name -> host, and the stubs resolved so far
+	private ConcurrentHashMap<String, String> hosts = new ConcurrentHashMap<String, String>();
+	private ConcurrentHashMap<String, IResourceManager> stubs = new ConcurrentHashMap<String, IResourceManager>();
+	private ConcurrentHashMap<String, IResourceManager> proxies = new ConcurrentHashMap<String, IResourceManager>();
+
+	private Thread healthChecker;
+
+	public RMStubRegistry(String rmiPrefix, int port)
+	{
+		this.rmiPrefix = rmiPrefix;
+		this.port = port;
+	}
+
+	public void register(String name, String host)
+	{
+		hosts.put(name, host);
+	}
+
+	// Returns a stub for the named resource manager, or null if it cannot be reached. The stub
+	// refreshes itself on failure, so callers may keep it for the duration of their request.
+	public IResourceManager get(String name)
+	{
+		startHealthChecker();
+		if (resolve(name, LOOKUP_ATTEMPTS, true) == null) {
+			return null;
+		}
+		return proxies.computeIfAbsent(name, n -> (IResourceManager)Proxy.newProxyInstance(
+			IResourceManager.class.getClassLoader(),
+			new Class<?>[] { IResourceManager.class },
+			new RefreshingStub(n)));
+	}
+
+	// Drops a cached stub, unless it was already replaced by a newer one
+	public void invalidate(String name, IResourceManager stale)
+	{
+		if (stubs.remove(name, stale)) {
+			Trace.warn("Lost connection to '" + name + "' server [" + hosts.get(name) + ":" + port + "/" + rmiPrefix + name + "]");
+		}
+	}
+
+	// Returns the cached stub, looking it up with backoff if there is none
+	private IResourceManager resolve(String name, int attempts, boolean warn)
+	{
+		IResourceManager stub = stubs.get(name);
+		if (stub != null) {
+			return stub;
+		}
+
+		String host = hosts.get(name);
+		long backoff = INITIAL_BACKOFF;
+		for (int attempt = 1; attempt <= attempts; attempt++) {
+			try {
+				Registry registry = LocateRegistry.getRegistry(host, port);
+				stub = (IResourceManager)registry.lookup(rmiPrefix + name);
+				IResourceManager cached = stubs.putIfAbsent(name, stub);
+				if (cached != null) {
+					return cached;
+				}
+				Trace.info("Connected to '" + name + "' server [" + host + ":" + port + "/" + rmiPrefix + name + "]");
+				return stub;
+			}
+			catch (NotBoundException|RemoteException e) {
+				if (attempt == attempts) {
+					break;
+				}
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				backoff *= 2;
+			}
+		}
+		if (warn) Trace.warn("Could not connect to '" + name + "' server [" + host + ":" + port + "/" + rmiPrefix + name + "]");
+		return null;
+	}
+
+	private synchronized void startHealthChecker()
+	{
+		if (healthChecker != null) {
+			return;
+		}
+		healthChecker = new Thread(this::checkHealth, "RMStubRegistry-health");
+		healthChecker.setDaemon(true);
+		healthChecker.start();
+	}
+
+	// Pings every cached stub and reconnects the resource managers that have none
+	private void checkHealth()
+	{
+		while (true) {
+			try {
+				Thread.sleep(HEALTH_CHECK_INTERVAL);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			for (String name : hosts.keySet()) {
+				IResourceManager stub = stubs.get(name);
+				if (stub == null) {
+					resolve(name, 1, false);
+					continue;
+				}
+				try {
+					stub.getName();
+				}
+				catch (RemoteException e) {
+					invalidate(name, stub);
+				}
+			}
+		}
+	}
+
+	// Whether a call failed on the way to or from the resource manager, rather than in it: the stub
+	// may be stale then
+	private static boolean isTransportFailure(Throwable e)
+	{
+		return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException
+			|| e instanceof UnmarshalException || e instanceof UnknownHostException;
+	}
+
+	// Forwards calls to the current stub of one resource manager, replacing it when it fails
+	private class RefreshingStub implements InvocationHandler
+	{
+		private String name;
+
+		RefreshingStub(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(this, args);
+			}
+
+			for (int attempt = 0; ; attempt++) {
+				IResourceManager stub = resolve(name, LOOKUP_ATTEMPTS, true);
+				if (stub == null) {
+					throw new ConnectException("'" + name + "' server is not reachable");
+				}
+				try {
+					return method.invoke(stub, args);
+				}
+				catch (InvocationTargetException e) {
+					Throwable cause = e.getCause();
+					if (isTransportFailure(cause)) {
+						invalidate(name, stub);
+
+						// The request never reached the resource manager, so it is safe to send again
+						if (attempt == 0 && (cause instanceof ConnectException || cause instanceof NoSuchObjectException)) {
+							continue;
+						}
+					}
+					throw cause;
+				}
+			}
+		}
+	}
+}
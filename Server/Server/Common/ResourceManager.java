@@ -6,64 +6,321 @@
 package Server.Common;
 
 import Server.Interface.*;
+import Server.LockManager.DeadlockException;
+import Server.LockManager.ILockManager;
+import Server.LockManager.TransactionLockObject;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import java.rmi.RemoteException;
 
 public class ResourceManager implements IResourceManager
 {
 	protected String m_name = "";
-	protected RMHashMap m_data = new RMHashMap();
+	protected ItemStore m_data = new ConcurrentItemStore();
+
+	// Flights, cars and rooms; m_data holds the customers. On the heap unless -Dinventory.dir is set.
+	protected Inventory m_inventory;
+
+	// Strict two-phase locking: every item a transaction reads or writes stays locked until it
+	// commits or aborts. Its changes stay in its write set until it commits.
+	protected ILockManager m_lockManager = ILockManager.create();
+	protected ConcurrentHashMap<Integer, WriteSet> m_writeSets = new ConcurrentHashMap<Integer, WriteSet>();
+
+	// Transactions aborted here (deadlock victims) that the middleware has not ended yet: they must
+	// not commit, even if the client goes on using them
+	protected Set<Integer> m_aborted = ConcurrentHashMap.newKeySet();
+
+	// Transactions that used the resource manager and have not ended here, with the time (ms) they
+	// last locked something or voted
+	protected ConcurrentHashMap<Integer, Long> m_active = new ConcurrentHashMap<Integer, Long>();
+
+	// Transactions that voted to commit and wait for the outcome. With a log, their write sets are on
+	// disk and survive a restart. With -Dmiddleware.hosts=<host>,<host>... (the hosts of the
+	// middleware instances, in instance order), the ones still waiting after
+	// -Dmiddleware.outcomeTimeout=<s> seconds (30 by default) ask the middleware for it, as do the
+	// active ones idle as long, in case they missed their abort.
+	protected Set<Integer> m_prepared = ConcurrentHashMap.newKeySet();
+
+	// Transaction ids handed out when the resource manager is used without a middleware
+	private AtomicInteger m_lastXid = new AtomicInteger(0);
+
+	// The hosts of the middleware instances (-Dmiddleware.hosts), null if not set
+	private String[] m_middlewareHosts;
+
+	// Write-ahead log of the committed changes, null unless -Dwal.dir is set
+	protected WriteAheadLog m_log;
 
 	public ResourceManager(String p_name)
 	{
 		m_name = p_name;
+
+		// Map the inventory and recover the committed data
+		try {
+			m_inventory = Inventory.open(p_name);
+			m_log = WriteAheadLog.open(p_name, m_data, m_inventory);
+			if (m_log != null)
+			{
+				restorePrepared();
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Could not recover from the write-ahead log of " + p_name, e);
+		}
+		if (m_log != null)
+		{
+			m_lastXid.set(m_log.getLastXid());
+		}
+
+		String hosts = System.getProperty("middleware.hosts");
+		if (hosts != null)
+		{
+			m_middlewareHosts = hosts.split(",");
+			startOutcomeQueries(m_middlewareHosts, Integer.getInteger("middleware.outcomeTimeout", 30));
+		}
 	}
 
-	// Reads a data item
-	protected RMItem readData(int xid, String key)
+	// Puts the transactions in doubt after a restart back as they were when they voted: prepared,
+	// with their write sets and write locks, until their outcome is known. Their read locks are not
+	// restored; a prepared transaction reads nothing more.
+	private void restorePrepared() throws IOException
 	{
-		synchronized(m_data) {
-			RMItem item = m_data.get(key);
-			if (item != null) {
-				return (RMItem)item.clone();
+		for (Map.Entry<Integer, WriteSet> entry : m_log.getPrepared().entrySet())
+		{
+			int xid = entry.getKey();
+			for (ItemKey key : entry.getValue().keys())
+			{
+				try {
+					m_lockManager.Lock(xid, key.toString(), TransactionLockObject.LockType.LOCK_WRITE);
+				}
+				catch (DeadlockException e) {
+					throw new IOException("Could not lock " + key + " for transaction " + xid + " in doubt", e);
+				}
 			}
-			return null;
+			m_writeSets.put(xid, entry.getValue());
+			m_active.put(xid, System.currentTimeMillis());
+			m_prepared.add(xid);
+			Trace.warn("RM::transaction " + xid + " is in doubt: it was prepared before the restart, waiting for its outcome");
 		}
 	}
 
-	// Writes a data item
-	protected void writeData(int xid, String key, RMItem value)
+	// The middleware instance on the host, as the coordinator of its transactions; null if the
+	// resource manager cannot reach it. See RMIResourceManager and TCPResourceManager.
+	protected ICoordinator getCoordinator(String host) throws RemoteException
+	{
+		return null;
+	}
+
+	// Asks for the outcome of the transactions idle for more than timeout seconds every timeout
+	// seconds in the background. Instance i of the middleware, on hosts[i], started the transactions
+	// whose id modulo the number of instances is i.
+	private void startOutcomeQueries(String[] hosts, int timeout)
+	{
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "outcome-" + m_name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> queryOutcomes(hosts, timeout * 1000L), timeout, timeout, TimeUnit.SECONDS);
+	}
+
+	// Commits or aborts the transactions idle for more than timeout ms whose outcome the middleware
+	// knows by now: the prepared ones that missed the commit or abort, and the others that missed
+	// the abort
+	private void queryOutcomes(String[] hosts, long timeout)
+	{
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, Long> entry : m_active.entrySet())
+		{
+			int xid = entry.getKey();
+			if (now - entry.getValue() < timeout)
+			{
+				continue;
+			}
+			String host = hosts[Math.floorMod(xid, hosts.length)];
+			try {
+				ICoordinator coordinator = getCoordinator(host);
+				if (coordinator == null)
+				{
+					return;
+				}
+				int outcome = coordinator.getOutcome(xid);
+				if (outcome == ICoordinator.COMMITTED)
+				{
+					Trace.warn("RM::transaction " + xid + " committed, says the middleware on " + host);
+					commit(xid);
+				}
+				else if (outcome == ICoordinator.ABORTED)
+				{
+					Trace.warn("RM::transaction " + xid + " aborted, says the middleware on " + host);
+					abort(xid);
+				}
+			}
+			catch (RemoteException e) {
+				Trace.warn("RM::could not get the outcome of transaction " + xid + " from the middleware on " + host + ": " + e.getMessage());
+			}
+		}
+	}
+
+	// Locks a data item for the transaction until it ends. A transaction chosen as a deadlock victim
+	// is aborted.
+	protected void lock(int xid, ItemKey key, TransactionLockObject.LockType lockType) throws RemoteException
+	{
+		m_active.put(xid, System.currentTimeMillis());
+		try {
+			m_lockManager.Lock(xid, key.toString(), lockType);
+		}
+		catch (DeadlockException e) {
+			Trace.warn("RM::lock(" + xid + ", " + key + ", " + lockType + ") deadlocked, aborting the transaction");
+			abort(xid);
+			m_aborted.add(xid);
+			throw new TransactionAbortedException(xid, e.getMessage());
+		}
+	}
+
+	// The write set of the transaction, created by its first write
+	protected WriteSet writeSet(int xid)
+	{
+		return m_writeSets.computeIfAbsent(xid, id -> new WriteSet());
+	}
+
+	// Reads a data item
+	protected RMItem readData(int xid, ItemKey key) throws RemoteException
 	{
-		synchronized(m_data) {
-			m_data.put(key, value);
+		lock(xid, key, TransactionLockObject.LockType.LOCK_READ);
+		WriteSet writeSet = m_writeSets.get(xid);
+		RMItem item = writeSet == null ? m_data.get(key) : writeSet.getData(key, m_data);
+		if (item != null) {
+			return (RMItem)item.clone();
 		}
+		return null;
+	}
+
+	// Writes a data item
+	protected void writeData(int xid, ItemKey key, RMItem value) throws RemoteException
+	{
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+		writeSet(xid).putData(key, value);
 	}
 
 	// Remove the item out of storage
-	protected void removeData(int xid, String key)
+	protected void removeData(int xid, ItemKey key) throws RemoteException
+	{
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+		writeSet(xid).putData(key, null);
+	}
+
+	// Atomically replaces a data item, see ItemStore.update
+	protected RMItem updateData(int xid, ItemKey key, UnaryOperator<RMItem> update) throws RemoteException
+	{
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+		WriteSet writeSet = writeSet(xid);
+		synchronized (writeSet)
+		{
+			RMItem current = writeSet.getData(key, m_data);
+			RMItem updated = update.apply(current);
+			if (updated != current)
+			{
+				writeSet.putData(key, updated);
+			}
+			return updated;
+		}
+	}
+
+	// The transaction's version of an inventory item if it changed it, otherwise null: it then sees
+	// the committed item
+	private WriteSet.InventoryItem changedItem(int xid, ItemKey key)
+	{
+		WriteSet writeSet = m_writeSets.get(xid);
+		return writeSet == null ? null : writeSet.getItem(key);
+	}
+
+	// Adds count items to an existing item, updating its price if greater than zero, or creates
+	// the item if there is none yet. Returns true if the item was created.
+	protected boolean addItem(int xid, ItemKey key, String location, int count, int price) throws RemoteException
+	{
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+		WriteSet writeSet = writeSet(xid);
+		synchronized (writeSet)
+		{
+			WriteSet.InventoryItem item = writeSet.changeItem(key, m_inventory);
+			if (item.exists)
+			{
+				item.count += count;
+				if (price > 0)
+				{
+					item.price = price;
+				}
+				return false;
+			}
+			item.exists = true;
+			item.location = location;
+			item.count = count;
+			item.price = price;
+			item.reserved = 0;
+			return true;
+		}
+	}
+
+	// Gives back count reservations of an item, if it still exists. Items kept by other resource
+	// managers (e.g. the flights of a customer deleted at the Customers resource manager) are left
+	// out of the write set.
+	protected void releaseItem(int xid, ItemKey key, int count) throws RemoteException
 	{
-		synchronized(m_data) {
-			m_data.remove(key);
+		if (key != null)
+		{
+			lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+			WriteSet writeSet = writeSet(xid);
+			synchronized (writeSet)
+			{
+				if (writeSet.getItem(key) == null && m_inventory.getCount(key) == Inventory.MISSING)
+				{
+					return;
+				}
+				WriteSet.InventoryItem item = writeSet.changeItem(key, m_inventory);
+				if (item.exists)
+				{
+					item.reserved -= count;
+					item.count += count;
+				}
+			}
 		}
 	}
 
 	// Deletes the encar item
-	protected boolean deleteItem(int xid, String key)
+	protected boolean deleteItem(int xid, ItemKey key) throws RemoteException
 	{
 		Trace.info("RM::deleteItem(" + xid + ", " + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(xid, key);
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
+		int reserved;
+		WriteSet writeSet = writeSet(xid);
+		synchronized (writeSet)
+		{
+			// Remove the item only if nobody reserved it
+			WriteSet.InventoryItem item = writeSet.changeItem(key, m_inventory);
+			reserved = item.exists ? item.reserved : Inventory.MISSING;
+			if (reserved == 0)
+			{
+				item.exists = false;
+			}
+		}
 		// Check if there is such an item in the storage
-		if (curObj == null)
+		if (reserved == Inventory.MISSING)
 		{
 			Trace.warn("RM::deleteItem(" + xid + ", " + key + ") failed--item doesn't exist");
 			return false;
 		}
 		else
 		{
-			if (curObj.getReserved() == 0)
+			if (reserved == 0)
 			{
-				removeData(xid, curObj.getKey());
 				Trace.info("RM::deleteItem(" + xid + ", " + key + ") item deleted");
 				return true;
 			}
@@ -76,60 +333,71 @@ public class ResourceManager implements IResourceManager
 	}
 
 	// Query the number of available seats/rooms/cars
-	protected int queryNum(int xid, String key)
+	protected int queryNum(int xid, ItemKey key) throws RemoteException
 	{
-		Trace.info("RM::queryNum(" + xid + ", " + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(xid, key);
-		int value = 0;  
-		if (curObj != null)
-		{
-			value = curObj.getCount();
-		}
-		Trace.info("RM::queryNum(" + xid + ", " + key + ") returns count=" + value);
+		Trace.info(() -> "RM::queryNum(" + xid + ", " + key + ") called");
+		lock(xid, key, TransactionLockObject.LockType.LOCK_READ);
+		WriteSet.InventoryItem item = changedItem(xid, key);
+		int count = item == null ? m_inventory.getCount(key) : item.exists ? item.count : Inventory.MISSING;
+		int value = count == Inventory.MISSING ? 0 : count;
+		Trace.info(() -> "RM::queryNum(" + xid + ", " + key + ") returns count=" + value);
 		return value;
 	}    
 
 	// Query the price of an item
-	protected int queryPrice(int xid, String key)
+	protected int queryPrice(int xid, ItemKey key) throws RemoteException
 	{
-		Trace.info("RM::queryPrice(" + xid + ", " + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(xid, key);
-		int value = -1;
-		if (curObj != null)
-		{
-			value = curObj.getPrice();
-		}
-		Trace.info("RM::queryPrice(" + xid + ", " + key + ") returns cost=$" + value);
+		Trace.info(() -> "RM::queryPrice(" + xid + ", " + key + ") called");
+		lock(xid, key, TransactionLockObject.LockType.LOCK_READ);
+		WriteSet.InventoryItem item = changedItem(xid, key);
+		int price = item == null ? m_inventory.getPrice(key) : item.exists ? item.price : Inventory.MISSING;
+		int value = price == Inventory.MISSING ? -1 : price;
+		Trace.info(() -> "RM::queryPrice(" + xid + ", " + key + ") returns cost=$" + value);
 		return value;        
 	}
 
 	// Reserve an item
-	protected int reserveItem(int xid, int customerID, String key, String location)
+	protected int reserveItem(int xid, int customerID, ItemKey key, String location) throws RemoteException
 	{
-		Trace.info("RM::reserveItem(" + xid + ", customer=" + customerID + ", " + key + ", " + location + ") called" );
+		Trace.info(() -> "RM::reserveItem(" + xid + ", customer=" + customerID + ", " + key + ", " + location + ") called" );
+		lock(xid, key, TransactionLockObject.LockType.LOCK_WRITE);
 		
-		// Check if the item is available
-		ReservableItem item = (ReservableItem)readData(xid, key);
-		if (item == null)
+		// Check if the item is available and take one
+		int price;
+		WriteSet writeSet = writeSet(xid);
+		synchronized (writeSet)
+		{
+			WriteSet.InventoryItem item = writeSet.changeItem(key, m_inventory);
+			if (!item.exists)
+			{
+				price = Inventory.MISSING;
+			}
+			else if (item.count <= 0)
+			{
+				price = Inventory.SOLD_OUT;
+			}
+			else
+			{
+				item.count--;
+				item.reserved++;
+				price = item.price;
+			}
+		}
+		if (price == Inventory.MISSING)
 		{
 			Trace.warn("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
 			return -1;
 
 		}
-		else if (item.getCount() == 0)
+		else if (price == Inventory.SOLD_OUT)
 		{
 			Trace.warn("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") failed--No more items");
 			return -1;
 		}
 		else
 		{
-			// Decrease the number of available items in the storage
-			item.setCount(item.getCount() - 1);
-			item.setReserved(item.getReserved() + 1);
-			writeData(xid, item.getKey(), item);
-
-			Trace.info("RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") succeeded");
-			return queryPrice(xid, key);
+			Trace.info(() -> "RM::reserveItem(" + xid + ", " + customerID + ", " + key + ", " + location + ") succeeded");
+			return price;
 		}        
 	}
 
@@ -138,24 +406,14 @@ public class ResourceManager implements IResourceManager
 	public boolean addFlight(int xid, int flightNum, int flightSeats, int flightPrice) throws RemoteException
 	{
 		Trace.info("RM::addFlight(" + xid + ", " + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
-		Flight curObj = (Flight)readData(xid, Flight.getKey(flightNum));
-		if (curObj == null)
+		ItemKey key = ItemKey.flight(flightNum);
+		if (addItem(xid, key, String.valueOf(flightNum), flightSeats, flightPrice))
 		{
-			// Doesn't exist yet, add it
-			Flight newObj = new Flight(flightNum, flightSeats, flightPrice);
-			writeData(xid, newObj.getKey(), newObj);
 			Trace.info("RM::addFlight(" + xid + ") created new flight " + flightNum + ", seats=" + flightSeats + ", price=$" + flightPrice);
 		}
 		else
 		{
-			// Add seats to existing flight and update the price if greater than zero
-			curObj.setCount(curObj.getCount() + flightSeats);
-			if (flightPrice > 0)
-			{
-				curObj.setPrice(flightPrice);
-			}
-			writeData(xid, curObj.getKey(), curObj);
-			Trace.info("RM::addFlight(" + xid + ") modified existing flight " + flightNum + ", seats=" + curObj.getCount() + ", price=$" + flightPrice);
+			Trace.info("RM::addFlight(" + xid + ") modified existing flight " + flightNum + ", seats=" + changedItem(xid, key).count + ", price=$" + flightPrice);
 		}
 		return true;
 	}
@@ -165,24 +423,19 @@ public class ResourceManager implements IResourceManager
 	public boolean addCars(int xid, String location, int count, int price) throws RemoteException
 	{
 		Trace.info("RM::addCars(" + xid + ", " + location + ", " + count + ", $" + price + ") called");
-		Car curObj = (Car)readData(xid, Car.getKey(location));
-		if (curObj == null)
+		ItemKey key = ItemKey.car(location);
+		if (!m_inventory.canStore(key, location))
+		{
+			Trace.warn("RM::addCars(" + xid + ", " + location + ") failed--location too long");
+			return false;
+		}
+		if (addItem(xid, key, location, count, price))
 		{
-			// Car location doesn't exist yet, add it
-			Car newObj = new Car(location, count, price);
-			writeData(xid, newObj.getKey(), newObj);
 			Trace.info("RM::addCars(" + xid + ") created new location " + location + ", count=" + count + ", price=$" + price);
 		}
 		else
 		{
-			// Add count to existing car location and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
-			writeData(xid, curObj.getKey(), curObj);
-			Trace.info("RM::addCars(" + xid + ") modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
+			Trace.info("RM::addCars(" + xid + ") modified existing location " + location + ", count=" + changedItem(xid, key).count + ", price=$" + price);
 		}
 		return true;
 	}
@@ -192,22 +445,19 @@ public class ResourceManager implements IResourceManager
 	public boolean addRooms(int xid, String location, int count, int price) throws RemoteException
 	{
 		Trace.info("RM::addRooms(" + xid + ", " + location + ", " + count + ", $" + price + ") called");
-		Room curObj = (Room)readData(xid, Room.getKey(location));
-		if (curObj == null)
+		ItemKey key = ItemKey.room(location);
+		if (!m_inventory.canStore(key, location))
+		{
+			Trace.warn("RM::addRooms(" + xid + ", " + location + ") failed--location too long");
+			return false;
+		}
+		if (addItem(xid, key, location, count, price))
 		{
-			// Room location doesn't exist yet, add it
-			Room newObj = new Room(location, count, price);
-			writeData(xid, newObj.getKey(), newObj);
 			Trace.info("RM::addRooms(" + xid + ") created new room location " + location + ", count=" + count + ", price=$" + price);
-		} else {
-			// Add count to existing object and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
-			writeData(xid, curObj.getKey(), curObj);
-			Trace.info("RM::addRooms(" + xid + ") modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
+		}
+		else
+		{
+			Trace.info("RM::addRooms(" + xid + ") modified existing location " + location + ", count=" + changedItem(xid, key).count + ", price=$" + price);
 		}
 		return true;
 	}
@@ -215,61 +465,61 @@ public class ResourceManager implements IResourceManager
 	// Deletes flight
 	public boolean deleteFlight(int xid, int flightNum) throws RemoteException
 	{
-		return deleteItem(xid, Flight.getKey(flightNum));
+		return deleteItem(xid, ItemKey.flight(flightNum));
 	}
 
 	// Delete cars at a location
 	public boolean deleteCars(int xid, String location) throws RemoteException
 	{
-		return deleteItem(xid, Car.getKey(location));
+		return deleteItem(xid, ItemKey.car(location));
 	}
 
 	// Delete rooms at a location
 	public boolean deleteRooms(int xid, String location) throws RemoteException
 	{
-		return deleteItem(xid, Room.getKey(location));
+		return deleteItem(xid, ItemKey.room(location));
 	}
 
 	// Returns the number of empty seats in this flight
 	public int queryFlight(int xid, int flightNum) throws RemoteException
 	{
-		return queryNum(xid, Flight.getKey(flightNum));
+		return queryNum(xid, ItemKey.flight(flightNum));
 	}
 
 	// Returns the number of cars available at a location
 	public int queryCars(int xid, String location) throws RemoteException
 	{
-		return queryNum(xid, Car.getKey(location));
+		return queryNum(xid, ItemKey.car(location));
 	}
 
 	// Returns the amount of rooms available at a location
 	public int queryRooms(int xid, String location) throws RemoteException
 	{
-		return queryNum(xid, Room.getKey(location));
+		return queryNum(xid, ItemKey.room(location));
 	}
 
 	// Returns price of a seat in this flight
 	public int queryFlightPrice(int xid, int flightNum) throws RemoteException
 	{
-		return queryPrice(xid, Flight.getKey(flightNum));
+		return queryPrice(xid, ItemKey.flight(flightNum));
 	}
 
 	// Returns price of cars at this location
 	public int queryCarsPrice(int xid, String location) throws RemoteException
 	{
-		return queryPrice(xid, Car.getKey(location));
+		return queryPrice(xid, ItemKey.car(location));
 	}
 
 	// Returns room price at this location
 	public int queryRoomsPrice(int xid, String location) throws RemoteException
 	{
-		return queryPrice(xid, Room.getKey(location));
+		return queryPrice(xid, ItemKey.room(location));
 	}
 
 	public String queryCustomerInfo(int xid, int customerID) throws RemoteException
 	{
 		Trace.info("RM::queryCustomerInfo(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
+		Customer customer = (Customer)readData(xid, ItemKey.customer(customerID));
 		if (customer == null)
 		{
 			Trace.warn("RM::queryCustomerInfo(" + xid + ", " + customerID + ") failed--customer doesn't exist");
@@ -292,7 +542,7 @@ public class ResourceManager implements IResourceManager
 			String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND)) +
 			String.valueOf(Math.round(Math.random() * 100 + 1)));
 		Customer customer = new Customer(cid);
-		writeData(xid, customer.getKey(), customer);
+		writeData(xid, customer.getItemKey(), customer);
 		Trace.info("RM::newCustomer(" + cid + ") returns ID=" + cid);
 		return cid;
 	}
@@ -300,11 +550,10 @@ public class ResourceManager implements IResourceManager
 	public boolean newCustomer(int xid, int customerID) throws RemoteException
 	{
 		Trace.info("RM::newCustomer(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
-		if (customer == null)
+		// Only store the new customer if there is none, in a single update
+		Customer customer = new Customer(customerID);
+		if (updateData(xid, customer.getItemKey(), current -> current == null ? customer : current) == customer)
 		{
-			customer = new Customer(customerID);
-			writeData(xid, customer.getKey(), customer);
 			Trace.info("RM::newCustomer(" + xid + ", " + customerID + ") created a new customer");
 			return true;
 		}
@@ -318,7 +567,7 @@ public class ResourceManager implements IResourceManager
 	public boolean deleteCustomer(int xid, int customerID) throws RemoteException
 	{
 		Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") called");
-		Customer customer = (Customer)readData(xid, Customer.getKey(customerID));
+		Customer customer = (Customer)readData(xid, ItemKey.customer(customerID));
 		if (customer == null)
 		{
 			Trace.warn("RM::deleteCustomer(" + xid + ", " + customerID + ") failed--customer doesn't exist");
@@ -331,16 +580,12 @@ public class ResourceManager implements IResourceManager
 			for (String reservedKey : reservations.keySet())
 			{        
 				ReservedItem reserveditem = customer.getReservedItem(reservedKey);
-				Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times");
-				ReservableItem item  = (ReservableItem)readData(xid, reserveditem.getKey());
-				Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + reserveditem.getKey() + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
-				item.setReserved(item.getReserved() - reserveditem.getCount());
-				item.setCount(item.getCount() + reserveditem.getCount());
-				writeData(xid, item.getKey(), item);
+				Trace.info(() -> "RM::deleteCustomer(" + xid + ", " + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times");
+				releaseItem(xid, ItemKey.parse(reserveditem.getKey()), reserveditem.getCount());
 			}
 
 			// Remove the customer from the storage
-			removeData(xid, customer.getKey());
+			removeData(xid, customer.getItemKey());
 			Trace.info("RM::deleteCustomer(" + xid + ", " + customerID + ") succeeded");
 			return true;
 		}
@@ -349,19 +594,19 @@ public class ResourceManager implements IResourceManager
 	// Adds flight reservation to this customer
 	public int reserveFlight(int xid, int customerID, int flightNum) throws RemoteException
 	{
-		return reserveItem(xid, customerID, Flight.getKey(flightNum), String.valueOf(flightNum));
+		return reserveItem(xid, customerID, ItemKey.flight(flightNum), String.valueOf(flightNum));
 	}
 
 	// Adds car reservation to this customer
 	public int reserveCar(int xid, int customerID, String location) throws RemoteException
 	{
-		return reserveItem(xid, customerID, Car.getKey(location), location);
+		return reserveItem(xid, customerID, ItemKey.car(location), location);
 	}
 
 	// Adds room reservation to this customer
 	public int reserveRoom(int xid, int customerID, String location) throws RemoteException
 	{
-		return reserveItem(xid, customerID, Room.getKey(location), location);
+		return reserveItem(xid, customerID, ItemKey.room(location), location);
 	}
 
 	// Reserve bundle 
@@ -391,7 +636,7 @@ public class ResourceManager implements IResourceManager
 		
 		// iterate through each flight number
 		for (String flightNum : flightNumbers) {
-			int availableSeats = queryNum(xid, Flight.getKey(Integer.parseInt(flightNum)));
+			int availableSeats = queryNum(xid, ItemKey.flight(Integer.parseInt(flightNum)));
 			// return false if there is no available seats
 			if (availableSeats == 0) {
 				isAvailable = false;
@@ -451,16 +696,201 @@ public class ResourceManager implements IResourceManager
 		Trace.info("RM::cancelItemReservations(" + xid + ", HashMap<String, Integer>) called");
 		 
 		for (Map.Entry<String, Integer> entry : reservedKeysMap.entrySet()) {
-			ReservableItem item  = (ReservableItem)readData(xid, entry.getKey());
-			if (item == null) continue;
-			item.setReserved(item.getReserved() - entry.getValue());
-			item.setCount(item.getCount() + entry.getValue());
-			writeData(xid, item.getKey(), item);
+			releaseItem(xid, ItemKey.parse(entry.getKey()), entry.getValue());
 		}
 		
 		return true;
 	}
 
+	// Returns the reservations of the customer (reserved item key -> count), or null if there is no
+	// such customer
+	public HashMap<String, Integer> getCustomerReservations(int xid, int customerID) throws RemoteException
+	{
+		Trace.info("RM::getCustomerReservations(" + xid + ", " + customerID + ") called");
+		Customer customer = (Customer)readData(xid, ItemKey.customer(customerID));
+		if (customer == null)
+		{
+			Trace.warn("RM::getCustomerReservations(" + xid + ", " + customerID + ") failed--customer doesn't exist");
+			return null;
+		}
+		HashMap<String, Integer> reservations = new HashMap<String, Integer>();
+		for (String reservedKey : customer.getReservations().keySet())
+		{
+			ReservedItem reservedItem = customer.getReservedItem(reservedKey);
+			reservations.put(reservedItem.getKey(), reservedItem.getCount());
+		}
+		return reservations;
+	}
+
+	// Records with the customer the items the middleware reserved for it, in a single update
+	public boolean addCustomerReservations(int xid, int customerID, Vector<String> reservedKeys, Vector<Integer> prices) throws RemoteException
+	{
+		Trace.info("RM::addCustomerReservations(" + xid + ", " + customerID + ", " + reservedKeys + ") called");
+
+		// The location of a flight is its number
+		Vector<String> locations = new Vector<String>();
+		for (String reservedKey : reservedKeys)
+		{
+			ItemKey key = ItemKey.parse(reservedKey);
+			if (key == null)
+			{
+				Trace.warn("RM::addCustomerReservations(" + xid + ", " + customerID + ") failed--invalid item key " + reservedKey);
+				return false;
+			}
+			locations.add(key.getLocation() == null ? String.valueOf(key.getId()) : key.getLocation());
+		}
+
+		RMItem updated = updateData(xid, ItemKey.customer(customerID), current -> {
+			if (current == null)
+			{
+				return null;
+			}
+			Customer customer = (Customer)current.clone();
+			for (int i = 0; i < reservedKeys.size(); i++)
+			{
+				customer.reserve(reservedKeys.get(i), locations.get(i), prices.get(i));
+			}
+			return customer;
+		});
+		if (updated == null)
+		{
+			Trace.warn("RM::addCustomerReservations(" + xid + ", " + customerID + ") failed--customer doesn't exist");
+			return false;
+		}
+		return true;
+	}
+
+	// Transactions are normally started by the middleware, which hands out the ids; this serves
+	// clients using the resource manager directly. It is refused when the middleware is set with
+	// -Dmiddleware.hosts: the ids would collide with the middleware's, and the middleware would be
+	// asked for the outcome of transactions it does not know, then presume them aborted.
+	public int start() throws RemoteException
+	{
+		if (m_middlewareHosts != null)
+		{
+			throw new RemoteException("The transactions of " + m_name + " are started by the middleware on " + String.join(",", m_middlewareHosts));
+		}
+		int xid = m_lastXid.incrementAndGet();
+		m_active.put(xid, System.currentTimeMillis());
+		Trace.info("RM::start() returns xid=" + xid);
+		return xid;
+	}
+
+	// First phase of the two-phase commit: votes to commit the transaction unless it was aborted
+	// here in the meantime. With a log, its changes are on disk before it votes. Its locks are kept
+	// until the middleware sends the outcome.
+	public boolean prepare(int xid) throws RemoteException
+	{
+		if (m_aborted.contains(xid))
+		{
+			Trace.info("RM::prepare(" + xid + ") votes abort");
+			return false;
+		}
+		if (m_prepared.contains(xid))
+		{
+			return true;
+		}
+		WriteSet writeSet = m_writeSets.get(xid);
+		if (m_log != null && writeSet != null && writeSet.size() > 0)
+		{
+			try {
+				m_log.prepare(xid, writeSet);
+			}
+			catch (IOException e) {
+				Trace.error("RM::prepare(" + xid + ") could not log the changes, voting abort: " + e.getMessage());
+				return false;
+			}
+		}
+		m_prepared.add(xid);
+		m_active.put(xid, System.currentTimeMillis());
+		Trace.info("RM::prepare(" + xid + ") votes commit");
+		return true;
+	}
+
+	// Applies the changes of the transaction and releases its locks. A transaction aborted here
+	// cannot commit: its changes are dropped instead and false is returned. Throws
+	// InvalidTransactionException for a transaction that neither was prepared nor used the resource
+	// manager, e.g. one whose changes were lost.
+	public boolean commit(int xid) throws RemoteException
+	{
+		Trace.info("RM::commit(" + xid + ") called");
+		if (m_aborted.remove(xid))
+		{
+			abort(xid);
+			return false;
+		}
+		boolean prepared = m_prepared.remove(xid);
+		if (!prepared && !m_active.containsKey(xid))
+		{
+			throw new InvalidTransactionException(xid, "it is not known here");
+		}
+		WriteSet writeSet = m_writeSets.remove(xid);
+		if (writeSet != null)
+		{
+			applyCommitted(xid, writeSet, prepared);
+		}
+		m_active.remove(xid);
+		m_lockManager.UnlockAll(xid);
+		return true;
+	}
+
+	// Applies the changes of a committing transaction, logging them (or, once prepared, the commit)
+	// first if there is a log. If that fails, the transaction keeps its write set and locks, and the
+	// commit fails.
+	private void applyCommitted(int xid, WriteSet writeSet, boolean prepared) throws RemoteException
+	{
+		if (m_log == null || writeSet.size() == 0)
+		{
+			writeSet.apply(m_data, m_inventory);
+			return;
+		}
+		try {
+			if (prepared)
+			{
+				m_log.commitPrepared(xid, writeSet);
+			}
+			else
+			{
+				m_log.commit(xid, writeSet);
+			}
+		}
+		catch (IOException e) {
+			m_writeSets.put(xid, writeSet);
+			if (prepared)
+			{
+				m_prepared.add(xid);
+			}
+			throw new RemoteException("Could not log the commit of transaction " + xid, e);
+		}
+	}
+
+	// Write-ahead log statistics, or null without a log
+	public String getLogStats()
+	{
+		return m_log == null ? null : m_log.getStats();
+	}
+
+	// Drops the changes of the transaction and releases its locks
+	public boolean abort(int xid) throws RemoteException
+	{
+		Trace.info("RM::abort(" + xid + ") called");
+		WriteSet writeSet = m_writeSets.remove(xid);
+		if (m_prepared.remove(xid) && m_log != null && writeSet != null && writeSet.size() > 0)
+		{
+			try {
+				m_log.abortPrepared(xid);
+			}
+			catch (IOException e) {
+				// The log still holds the transaction as prepared: after a restart it is in doubt again
+				Trace.error("RM::abort(" + xid + ") could not log the abort: " + e.getMessage());
+			}
+		}
+		m_aborted.remove(xid);
+		m_active.remove(xid);
+		m_lockManager.UnlockAll(xid);
+		Trace.info("RM::abort(" + xid + ") dropped " + (writeSet == null ? 0 : writeSet.size()) + " changes");
+		return true;
+	}
 
 	public String getName() throws RemoteException
 	{
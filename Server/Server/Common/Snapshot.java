@@ -0,0 +1,173 @@
+package Server.Common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Snapshot of the committed data of a server, taken by WriteAheadLog.checkpoint while commits go on.
+// It is fuzzy: an item committed while the snapshot is written may be in it in its old or its new
+// version. The log segments from the one recorded in the snapshot on are replayed over it, which
+// brings every such item up to date.
+//
+// Layout: magic (int), version (int), first log segment to replay (int), highest logged xid (int),
+// then the items, each a tag, its key and its value (see ItemCodec), an END tag and the CRC32C of
+// everything before it (int). The snapshot is written to a temporary file which then replaces the
+// previous snapshot, so a crash never leaves a partial one.
+public class Snapshot
+{
+	private static final int MAGIC = 0x534e4150;	// "SNAP"
+	private static final int VERSION = 1;
+
+	// Tags of the items
+	private static final byte END = 0;
+	private static final byte DATA = 1;
+	private static final byte ITEM = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// First log segment to replay over the snapshot, and highest xid logged before it
+	private int m_segment;
+	private int m_lastXid;
+
+	private Snapshot(int segment, int lastXid)
+	{
+		m_segment = segment;
+		m_lastXid = lastXid;
+	}
+
+	public int getSegment()
+	{
+		return m_segment;
+	}
+
+	public int getLastXid()
+	{
+		return m_lastXid;
+	}
+
+	// Writes a snapshot of the data and the inventory (which may be null). Writers are not stopped:
+	// the inventory segments are only read locked one at a time, while they are written out. Returns
+	// the number of items written.
+	public static int write(Path path, int segment, int lastXid, ItemStore data, Inventory inventory) throws IOException
+	{
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		int[] items = new int[1];
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			CRC32C crc = new CRC32C();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new CheckedOutputStream(Channels.newOutputStream(channel), crc), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(segment);
+			out.writeInt(lastXid);
+			try {
+				data.forEach((key, item) -> {
+					try {
+						out.writeByte(DATA);
+						ItemCodec.writeKey(out, key);
+						ItemCodec.writeItem(out, item);
+						items[0]++;
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				if (inventory != null)
+				{
+					inventory.forEach((key, location, count, price, reserved) -> {
+						try {
+							out.writeByte(ITEM);
+							ItemCodec.writeKey(out, key);
+							out.writeUTF(location);
+							out.writeInt(count);
+							out.writeInt(price);
+							out.writeInt(reserved);
+							items[0]++;
+						}
+						catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				}
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			out.writeByte(END);
+			out.flush();
+			out.writeInt((int)crc.getValue());
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return items[0];
+	}
+
+	// Loads the snapshot into the data and the inventory (which may be null); returns null if there
+	// is no snapshot
+	public static Snapshot read(Path path, ItemStore data, Inventory inventory) throws IOException
+	{
+		if (!Files.exists(path))
+		{
+			return null;
+		}
+		CRC32C crc = new CRC32C();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+			new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE), crc)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException("Not a snapshot: " + path);
+			}
+			Snapshot snapshot = new Snapshot(in.readInt(), in.readInt());
+			while (true)
+			{
+				byte tag = in.readByte();
+				if (tag == END)
+				{
+					break;
+				}
+				ItemKey key = ItemCodec.readKey(in);
+				if (tag == DATA)
+				{
+					data.put(key, ItemCodec.readItem(in));
+				}
+				else if (tag == ITEM)
+				{
+					String location = in.readUTF();
+					int count = in.readInt();
+					int price = in.readInt();
+					int reserved = in.readInt();
+					if (inventory != null)
+					{
+						inventory.put(key, location, count, price, reserved);
+					}
+				}
+				else
+				{
+					throw new IOException("Invalid snapshot item tag " + tag + " in " + path);
+				}
+			}
+			int expected = (int)crc.getValue();
+			if (in.readInt() != expected)
+			{
+				throw new IOException("Corrupt snapshot: " + path);
+			}
+			return snapshot;
+		}
+	}
+}
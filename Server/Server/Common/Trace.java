@@ -5,22 +5,86 @@
 
 package Server.Common;
 
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
 // A simple wrapper around System.out.println, allows us to disable some
 // of the verbose output from RM, TM, and WC if we want
+//
+// -Dtrace.level=info|warn|error|off  lowest level written (info by default)
+// -Dtrace.async=true                 hand messages to a background writer thread through a
+//                                    lock-free ring buffer instead of printing on the caller
+// -Dtrace.bufferSize=N               ring buffer slots, a power of two (8192 by default)
+// -Dtrace.overflow=drop|block        with a full buffer, drop the message (counted and reported)
+//                                    or wait for the writer (the default is drop)
+//
+// The Supplier overloads only build the message if its level is enabled.
 public class Trace
 {
+	public static final int INFO = 0;
+	public static final int WARN = 1;
+	public static final int ERROR = 2;
+	public static final int OFF = 3;
+
+	private static final int s_level = parseLevel(System.getProperty("trace.level", "info"));
+	private static final boolean s_block = System.getProperty("trace.overflow", "drop").equals("block");
+	private static final RingBuffer s_buffer = Boolean.getBoolean("trace.async")
+		? new RingBuffer(Integer.getInteger("trace.bufferSize", 8192)) : null;
+
+	public static boolean isInfoEnabled()
+	{
+		return s_level <= INFO;
+	}
+
+	public static boolean isWarnEnabled()
+	{
+		return s_level <= WARN;
+	}
+
 	public static void info(String msg)
 	{
-		System.out.println(getThreadID() + " INFO: " + msg);
+		if (s_level <= INFO) log(INFO, msg);
 	}
 	public static void warn(String msg)
 	{
-		System.out.println(getThreadID() + " WARN: " + msg);
+		if (s_level <= WARN) log(WARN, msg);
 	}
 	public static void error(String msg)
 	{
-		System.err.println(getThreadID() + " ERROR: " + msg);
+		if (s_level <= ERROR) log(ERROR, msg);
+	}
+
+	public static void info(Supplier<String> msg)
+	{
+		if (s_level <= INFO) log(INFO, msg.get());
+	}
+	public static void warn(Supplier<String> msg)
+	{
+		if (s_level <= WARN) log(WARN, msg.get());
 	}
+	public static void error(Supplier<String> msg)
+	{
+		if (s_level <= ERROR) log(ERROR, msg.get());
+	}
+
+	private static void log(int level, String msg)
+	{
+		String line = getThreadID() + (level == INFO ? " INFO: " : level == WARN ? " WARN: " : " ERROR: ") + msg;
+		if (s_buffer == null || !s_buffer.offer(level, line))
+		{
+			print(level, line);
+		}
+	}
+
+	private static void print(int level, String line)
+	{
+		(level == ERROR ? System.err : System.out).println(line);
+	}
+
 	private static String getThreadID()
 	{
 		String s = Thread.currentThread().getName();
@@ -35,5 +99,143 @@ public class Trace
 		}
 		return s;
 	}
-}
 
+	private static int parseLevel(String level)
+	{
+		switch (level.toLowerCase())
+		{
+			case "warn":
+				return WARN;
+			case "error":
+				return ERROR;
+			case "off":
+				return OFF;
+			default:
+				return INFO;
+		}
+	}
+
+	// Bounded multi-producer queue of formatted lines (after Dmitry Vyukov's array queue), drained
+	// by a single writer thread. A producer claims a slot with one CAS on the tail; the per-slot
+	// sequence numbers tell producers and the writer whose turn it is, so neither takes a lock.
+	private static class RingBuffer implements Runnable
+	{
+		private final int mask;
+		private final AtomicReferenceArray<String> lines;
+		private final int[] levels;
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong();
+		private long head;	// only used by the writer
+
+		private final AtomicLong dropped = new AtomicLong();
+		private final Thread writer;
+
+		RingBuffer(int size)
+		{
+			int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+			mask = capacity - 1;
+			lines = new AtomicReferenceArray<String>(capacity);
+			levels = new int[capacity];
+			sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++)
+			{
+				sequences.set(i, i);
+			}
+
+			writer = new Thread(this, "Trace-writer");
+			writer.setDaemon(true);
+			writer.start();
+
+			// Write out what is still queued when the JVM exits
+			Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "Trace-flush"));
+		}
+
+		// Queues a line; returns false if the caller should print it itself (only when the writer
+		// is gone)
+		boolean offer(int level, String line)
+		{
+			while (true)
+			{
+				long position = tail.get();
+				int slot = (int)position & mask;
+				long difference = sequences.get(slot) - position;
+				if (difference == 0)
+				{
+					if (tail.compareAndSet(position, position + 1))
+					{
+						levels[slot] = level;
+						lines.set(slot, line);
+						sequences.set(slot, position + 1);	// publishes the slot to the writer
+						return true;
+					}
+				}
+				else if (difference < 0)
+				{
+					// Full
+					if (!writer.isAlive())
+					{
+						return false;
+					}
+					if (!s_block)
+					{
+						dropped.incrementAndGet();
+						return true;
+					}
+					LockSupport.parkNanos(100000);
+				}
+				// Otherwise another producer took the slot, try again
+			}
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				if (drain() == 0)
+				{
+					LockSupport.parkNanos(1000000);
+				}
+			}
+		}
+
+		// Writes out the queued lines; returns how many there were
+		synchronized int drain()
+		{
+			StringBuilder out = new StringBuilder();
+			StringBuilder err = new StringBuilder();
+			int drained = 0;
+			while (true)
+			{
+				int slot = (int)head & mask;
+				if (sequences.get(slot) != head + 1)
+				{
+					break;
+				}
+				String line = lines.get(slot);
+				(levels[slot] == ERROR ? err : out).append(line).append('\n');
+				lines.set(slot, null);
+				sequences.set(slot, head + mask + 1);	// hands the slot back to the producers
+				head++;
+				drained++;
+			}
+
+			long lost = dropped.getAndSet(0);
+			if (lost > 0)
+			{
+				out.append("Trace-writer WARN: ").append(lost).append(" trace messages dropped, the buffer was full\n");
+			}
+			write(System.out, out);
+			write(System.err, err);
+			return drained;
+		}
+
+		private void write(PrintStream stream, StringBuilder text)
+		{
+			if (text.length() > 0)
+			{
+				stream.print(text);
+				stream.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package Server.Common;
+
+import Server.Interface.InvalidTransactionException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Issues the transaction ids and keeps track of the running transactions. The middleware owns it:
+// every transaction is started there, and only the transactions it started are accepted.
+//
+// With a log, the ids are reserved on disk by blocks before they are issued, so that a restarted
+// middleware goes on after the last block instead of issuing the same ids again: a resource
+// manager may still know a transaction by its id, e.g. one in doubt.
+public class TransactionManager
+{
+	// Ids reserved at once in the log
+	private static final int RESERVED_XIDS = 1000;
+
+	private AtomicInteger m_lastXid = new AtomicInteger(0);
+
+	// Distance between two ids issued here, so that several transaction managers can issue ids that
+	// never collide
+	private int m_stride = 1;
+	private int m_firstXid;
+
+	// Log of the reserved ids, null if there is none, and the last id reserved in it
+	private WriteAheadLog m_log;
+	private volatile int m_reservedXid;
+
+	// Time (ms) the running transactions started or were last used
+	private ConcurrentHashMap<Integer, Long> m_active = new ConcurrentHashMap<Integer, Long>();
+
+	// Running transactions that can only abort
+	private Set<Integer> m_rollbackOnly = ConcurrentHashMap.newKeySet();
+
+	public TransactionManager()
+	{
+		this(0, 1);
+	}
+
+	// Issues the ids lastXid + stride, lastXid + 2 * stride...
+	public TransactionManager(int lastXid, int stride)
+	{
+		this(lastXid, stride, null);
+	}
+
+	// Issues the ids congruent to first modulo stride, after the last one reserved in the log if
+	// there is one, otherwise first + stride, first + 2 * stride...
+	public TransactionManager(int first, int stride, WriteAheadLog log)
+	{
+		if (stride < 1)
+		{
+			throw new IllegalArgumentException("Invalid transaction id stride: " + stride);
+		}
+		int lastXid = first;
+		if (log != null && log.getLastXid() > first)
+		{
+			lastXid = log.getLastXid() + Math.floorMod(first - log.getLastXid(), stride);
+		}
+		m_lastXid.set(lastXid);
+		m_stride = stride;
+		m_firstXid = lastXid + stride;
+		m_log = log;
+		m_reservedXid = lastXid;
+	}
+
+	// Starts a transaction and returns its id. Throws UncheckedIOException if the id cannot be
+	// reserved in the log.
+	public int start()
+	{
+		int xid = m_lastXid.addAndGet(m_stride);
+		if (m_log != null && xid > m_reservedXid)
+		{
+			reserve(xid);
+		}
+		m_active.put(xid, System.currentTimeMillis());
+		return xid;
+	}
+
+	// Reserves the next block of ids in the log, from xid on, unless another start did already
+	private synchronized void reserve(int xid)
+	{
+		if (xid <= m_reservedXid)
+		{
+			return;
+		}
+		int last = xid + (RESERVED_XIDS - 1) * m_stride;
+		try {
+			m_log.reserveXids(last);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Could not reserve transaction ids up to " + last, e);
+		}
+		m_reservedXid = last;
+	}
+
+	// Returns true if the id is one this transaction manager issues (or would issue)
+	public boolean isIssuedHere(int xid)
+	{
+		return Math.floorMod(xid - m_firstXid, m_stride) == 0;
+	}
+
+	public boolean isActive(int xid)
+	{
+		return m_active.containsKey(xid);
+	}
+
+	// Throws InvalidTransactionException unless the transaction is running; marks it as used now
+	public void checkActive(int xid) throws InvalidTransactionException
+	{
+		if (m_active.replace(xid, System.currentTimeMillis()) == null)
+		{
+			throw new InvalidTransactionException(xid, "it was not started or has ended");
+		}
+	}
+
+	// Marks the running transaction so that it can only abort, e.g. when part of it was rolled back
+	public void setRollbackOnly(int xid)
+	{
+		if (m_active.containsKey(xid))
+		{
+			m_rollbackOnly.add(xid);
+		}
+	}
+
+	// Ends the transaction (on commit or abort), so that it cannot be used anymore. Returns false if
+	// it was marked rollback-only. Throws InvalidTransactionException if it was not running, e.g.
+	// committed twice.
+	public boolean end(int xid) throws InvalidTransactionException
+	{
+		if (m_active.remove(xid) == null)
+		{
+			throw new InvalidTransactionException(xid, "it was not started or has ended");
+		}
+		return !m_rollbackOnly.remove(xid);
+	}
+
+	// Running transactions not used for more than timeout ms
+	public List<Integer> getIdle(long timeout)
+	{
+		long deadline = System.currentTimeMillis() - timeout;
+		List<Integer> idle = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Long> entry : m_active.entrySet())
+		{
+			if (entry.getValue() < deadline)
+			{
+				idle.add(entry.getKey());
+			}
+		}
+		return idle;
+	}
+
+	// Number of running transactions
+	public int size()
+	{
+		return m_active.size();
+	}
+}
@@ -0,0 +1,712 @@
+package Server.Common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+// Append-only write-ahead log of the changes committed by a resource manager or the middleware,
+// so that its data survives a restart. Enabled with -Dwal.dir=<directory>:
+//
+// -Dwal.dir=<directory>            where the log segments <name>.<n>.log and the snapshot
+//                                  <name>.snapshot of a server are kept
+// -Dwal.snapshotInterval=<s>       take a snapshot every s seconds if something was committed since
+//                                  the last one (60 by default, 0 for none)
+// -Dwal.replayThreads=<N>          threads applying the log on startup (see LogReplay)
+//
+// Every committed transaction that changed something logs its write set (the new version of every
+// item it added, deleted, reserved or cancelled) before it is applied:
+// - committed in one phase (a client using the resource manager directly), in one record, and the
+//   commit only returns once it is on disk;
+// - committed by the two-phase commit of the middleware, in a PREPARE record that is on disk before
+//   the resource manager votes, then a COMMIT_PREPARED or ABORT_PREPARED marker once the outcome is
+//   known. The marker is on disk before the outcome is acknowledged.
+// On startup the data is rebuilt from the newest snapshot and the log segments written since, whose
+// records are applied in parallel by item; a prepared write set is applied where its commit marker
+// is. The prepared transactions without a marker are in doubt: see getPrepared.
+//
+// The middleware only logs the outcome of its two-phase commits: a COMMIT_DECIDED record, on disk
+// before the commit is sent, then an ENDED marker once every resource manager acknowledged it. The
+// marker is not forced: if it is lost, the commit is only sent again. See getDecided. It also
+// reserves the transaction ids it issues, by blocks, in XIDS records; see getLastXid.
+//
+// Group commit: the records appended by concurrent commits are written and forced together. The
+// first commit to wait for the disk becomes the leader and writes everything appended so far with a
+// single force; the commits appending meanwhile wait for the next leader, which takes them all.
+//
+// Checkpoints: the log is split into segments. A checkpoint waits for the commits in progress,
+// switches to a new segment, copies the PREPARE and COMMIT_DECIDED records still open to it, and
+// writes a fuzzy snapshot (see Snapshot) while commits go on. Once the snapshot is on disk the
+// older segments are deleted.
+//
+// Record layout: payload length (int), CRC32C of the payload (int), then the payload: the kind of
+// record (byte), the xid (int; for XIDS, the last id reserved) and, for COMMIT and PREPARE, the
+// write set, see WriteSet.writeTo.
+// Replay stops at the first incomplete or corrupt record, which is the tail of a write cut short by
+// a crash, and truncates the segment there.
+public class WriteAheadLog
+{
+	private static final int HEADER = 8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Kinds of record
+	private static final byte COMMIT = 1;
+	private static final byte PREPARE = 2;
+	private static final byte COMMIT_PREPARED = 3;
+	private static final byte ABORT_PREPARED = 4;
+	private static final byte COMMIT_DECIDED = 5;
+	private static final byte ENDED = 6;
+	private static final byte XIDS = 7;
+
+	private final Path m_dir;
+	private final String m_name;
+	private final ItemStore m_data;
+	private final Inventory m_inventory;
+
+	// Current segment
+	private int m_segment;
+	private Path m_path;
+	private FileChannel m_channel;
+
+	// Commits hold the read lock from logging to applying their changes; a checkpoint takes the write
+	// lock to switch segments between commits
+	private final ReentrantReadWriteLock m_barrier = new ReentrantReadWriteLock();
+
+	// Records appended but not written yet, and the buffer the next leader swaps in for them
+	private ByteBuffer m_pending = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer m_spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// Positions (in bytes) in the current segment after the last appended record and after the last
+	// record on disk
+	private long m_appended;
+	private long m_durable;
+
+	// Whether a leader is writing, and the error that made the log unusable, if any
+	private boolean m_syncing;
+	private IOException m_failure;
+
+	// Highest xid logged, and whether anything was logged since the last checkpoint
+	private int m_lastXid;
+	private boolean m_dirty;
+
+	// Payloads of the PREPARE records without a commit or abort marker yet, by xid
+	private final HashMap<Integer, byte[]> m_prepared = new HashMap<Integer, byte[]>();
+
+	// Transactions of the COMMIT_DECIDED records without an ENDED marker yet
+	private final HashSet<Integer> m_decided = new HashSet<Integer>();
+
+	// Counters for getStats
+	private long m_records;
+	private long m_syncs;
+	private long m_snapshots;
+	private String m_lastSnapshot = "none";
+	private String m_lastRecovery = "none";
+
+	// Opens the log of the named server over its data, which must be empty; the inventory may be null
+	// for a server without one. Call recover before logging.
+	public WriteAheadLog(Path dir, String name, ItemStore data, Inventory inventory)
+	{
+		m_dir = dir;
+		m_name = name;
+		m_data = data;
+		m_inventory = inventory;
+	}
+
+	// Opens the log of the named server and recovers its data, if -Dwal.dir is set; returns null
+	// otherwise
+	public static WriteAheadLog open(String name, ItemStore data, Inventory inventory) throws IOException
+	{
+		String dir = System.getProperty("wal.dir");
+		if (dir == null)
+		{
+			return null;
+		}
+		WriteAheadLog log = new WriteAheadLog(Paths.get(dir), name, data, inventory);
+		log.recover();
+
+		int interval = Integer.getInteger("wal.snapshotInterval", 60);
+		if (interval > 0)
+		{
+			log.startCheckpoints(interval);
+		}
+		return log;
+	}
+
+	// Highest transaction id logged (or reserved, see reserveXids), 0 if none; it is kept in the
+	// snapshot when the records are deleted
+	public synchronized int getLastXid()
+	{
+		return m_lastXid;
+	}
+
+	// The write sets of the transactions prepared but neither committed nor aborted, by xid. After
+	// recovery, these are the transactions in doubt: their outcome must come from the middleware.
+	public synchronized Map<Integer, WriteSet> getPrepared() throws IOException
+	{
+		HashMap<Integer, WriteSet> prepared = new HashMap<Integer, WriteSet>();
+		for (Map.Entry<Integer, byte[]> entry : m_prepared.entrySet())
+		{
+			prepared.put(entry.getKey(), readWriteSet(entry.getValue()));
+		}
+		return prepared;
+	}
+
+	// The transactions the middleware decided to commit that not every resource manager acknowledged
+	public synchronized Set<Integer> getDecided()
+	{
+		return new HashSet<Integer>(m_decided);
+	}
+
+	// Loads the newest snapshot and replays the log segments written since, in order; deletes the
+	// older ones. Then opens the last segment for appending.
+	public void recover() throws IOException
+	{
+		long start = System.nanoTime();
+		Snapshot snapshot = Snapshot.read(snapshotPath(), m_data, m_inventory);
+		int first = snapshot == null ? 1 : snapshot.getSegment();
+		if (snapshot != null)
+		{
+			m_lastXid = snapshot.getLastXid();
+		}
+
+		LogReplay replay = new LogReplay(m_name, m_data, m_inventory);
+		int transactions = 0;
+		long bytes = 0;
+		m_segment = first;
+		for (int segment : segments())
+		{
+			if (segment < first)
+			{
+				Files.delete(segmentPath(segment));
+				continue;
+			}
+			if (m_channel != null)
+			{
+				m_channel.close();
+			}
+			m_segment = segment;
+			m_path = segmentPath(segment);
+			m_channel = FileChannel.open(m_path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			transactions += replay(replay);
+			bytes += m_appended;
+		}
+		replay.finish();
+		if (m_channel == null)
+		{
+			m_path = segmentPath(m_segment);
+			m_channel = FileChannel.open(m_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		// Replay throughput, to size the interval between checkpoints
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		m_lastRecovery = String.format("%d transactions, %d changes, %.1f MB in %.0fms with %d thread(s): %.0f transactions/s, %.1f MB/s",
+			transactions, replay.getChanges(), bytes / 1e6, seconds * 1000, replay.getThreads(), transactions / seconds, bytes / 1e6 / seconds);
+		Trace.info("RM::WriteAheadLog recovered " + m_name + " from " + (snapshot == null ? "no snapshot" : "a snapshot")
+			+ " and the log: " + m_lastRecovery);
+	}
+
+	// Applies the records of the current segment to the data and positions it after the last complete
+	// one for appending; returns the number of records. The changes may still be applied in the
+	// background until replay.finish returns.
+	private int replay(LogReplay replay) throws IOException
+	{
+		long size = m_channel.size();
+		long end = 0;
+		int transactions = 0;
+
+		m_channel.position(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(m_channel), BUFFER_SIZE));
+		CRC32C crc = new CRC32C();
+		while (true)
+		{
+			byte[] payload;
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 5 || length > size - end - HEADER)
+				{
+					break;
+				}
+				payload = new byte[length];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int)crc.getValue() != checksum)
+				{
+					break;
+				}
+			}
+			catch (EOFException e) {
+				break;
+			}
+
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+			byte kind = record.readByte();
+			int xid = record.readInt();
+			switch (kind)
+			{
+				case COMMIT:
+					replay.apply(WriteSet.readFrom(record));
+					break;
+				case PREPARE:
+					m_prepared.put(xid, payload);
+					break;
+				case COMMIT_PREPARED:
+					byte[] prepared = m_prepared.remove(xid);
+					if (prepared != null)
+					{
+						replay.apply(readWriteSet(prepared));
+					}
+					break;
+				case ABORT_PREPARED:
+					m_prepared.remove(xid);
+					break;
+				case COMMIT_DECIDED:
+					m_decided.add(xid);
+					break;
+				case ENDED:
+					m_decided.remove(xid);
+					break;
+				case XIDS:
+					break;
+				default:
+					throw new IOException("Invalid record kind " + kind + " in " + m_path);
+			}
+			m_lastXid = Math.max(m_lastXid, xid);
+			end += HEADER + payload.length;
+			transactions++;
+		}
+
+		if (end < size)
+		{
+			Trace.warn("RM::WriteAheadLog truncating " + (size - end) + " bytes of incomplete records at the end of " + m_path);
+			m_channel.truncate(end);
+		}
+		m_channel.position(end);
+		m_appended = end;
+		m_durable = end;
+		m_dirty |= transactions > 0;
+		return transactions;
+	}
+
+	// Logs the write set of a transaction committing in one phase, waits until it is on disk, then
+	// applies it to the data
+	public void commit(int xid, WriteSet writeSet) throws IOException
+	{
+		byte[] payload = encode(COMMIT, xid, writeSet);
+		m_barrier.readLock().lock();
+		try {
+			sync(append(xid, payload, checksum(payload)));
+			writeSet.apply(m_data, m_inventory);
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs the write set of a transaction voting to commit and waits until it is on disk. It is not
+	// applied until commitPrepared.
+	public void prepare(int xid, WriteSet writeSet) throws IOException
+	{
+		byte[] payload = encode(PREPARE, xid, writeSet);
+		int checksum = checksum(payload);
+		m_barrier.readLock().lock();
+		try {
+			long position;
+			synchronized (this)
+			{
+				position = append(xid, payload, checksum);
+				m_prepared.put(xid, payload);
+			}
+			sync(position);
+		}
+		catch (IOException e) {
+			synchronized (this)
+			{
+				m_prepared.remove(xid);
+			}
+			throw e;
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs the commit of a prepared transaction, waits until it is on disk, then applies its write set
+	// to the data
+	public void commitPrepared(int xid, WriteSet writeSet) throws IOException
+	{
+		m_barrier.readLock().lock();
+		try {
+			sync(appendOutcome(COMMIT_PREPARED, xid));
+			writeSet.apply(m_data, m_inventory);
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs the abort of a prepared transaction and waits until it is on disk
+	public void abortPrepared(int xid) throws IOException
+	{
+		m_barrier.readLock().lock();
+		try {
+			sync(appendOutcome(ABORT_PREPARED, xid));
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs the decision of the middleware to commit a transaction and waits until it is on disk
+	public void decideCommit(int xid) throws IOException
+	{
+		byte[] payload = encode(COMMIT_DECIDED, xid, null);
+		int checksum = checksum(payload);
+		m_barrier.readLock().lock();
+		try {
+			long position;
+			synchronized (this)
+			{
+				position = append(xid, payload, checksum);
+				m_decided.add(xid);
+			}
+			sync(position);
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs that every resource manager acknowledged the commit of the transaction. Does not wait for
+	// the disk: the record is written with the next one forced.
+	public void end(int xid) throws IOException
+	{
+		byte[] payload = encode(ENDED, xid, null);
+		int checksum = checksum(payload);
+		m_barrier.readLock().lock();
+		try {
+			synchronized (this)
+			{
+				append(xid, payload, checksum);
+				m_decided.remove(xid);
+			}
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Logs that the transaction ids up to lastXid are reserved and waits until it is on disk
+	public void reserveXids(int lastXid) throws IOException
+	{
+		byte[] payload = encode(XIDS, lastXid, null);
+		int checksum = checksum(payload);
+		m_barrier.readLock().lock();
+		try {
+			sync(append(lastXid, payload, checksum));
+		}
+		finally {
+			m_barrier.readLock().unlock();
+		}
+	}
+
+	// Adds the commit or abort marker of a prepared transaction; returns the position after it
+	private synchronized long appendOutcome(byte kind, int xid) throws IOException
+	{
+		byte[] payload = encode(kind, xid, null);
+		long position = append(xid, payload, checksum(payload));
+		m_prepared.remove(xid);
+		return position;
+	}
+
+	// The payload of a record; the write set is null for a marker
+	private static byte[] encode(byte kind, int xid, WriteSet writeSet) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(writeSet == null ? 5 : 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(kind);
+		out.writeInt(xid);
+		if (writeSet != null)
+		{
+			writeSet.writeTo(out);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static int checksum(byte[] payload)
+	{
+		CRC32C crc = new CRC32C();
+		crc.update(payload);
+		return (int)crc.getValue();
+	}
+
+	// The write set of a PREPARE record
+	private static WriteSet readWriteSet(byte[] payload) throws IOException
+	{
+		DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+		record.readByte();
+		record.readInt();
+		return WriteSet.readFrom(record);
+	}
+
+	// Adds a record to the pending ones; returns the position after it
+	private synchronized long append(int xid, byte[] payload, int checksum) throws IOException
+	{
+		if (m_failure != null)
+		{
+			throw new IOException("The write-ahead log " + m_path + " failed", m_failure);
+		}
+		int length = HEADER + payload.length;
+		if (m_pending.remaining() < length)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(m_pending.capacity() * 2, m_pending.position() + length));
+			m_pending.flip();
+			larger.put(m_pending);
+			m_pending = larger;
+		}
+		m_pending.putInt(payload.length);
+		m_pending.putInt(checksum);
+		m_pending.put(payload);
+		m_appended += length;
+		m_lastXid = Math.max(m_lastXid, xid);
+		m_dirty = true;
+		m_records++;
+		return m_appended;
+	}
+
+	// Waits until the current segment is on disk up to the position, writing it as the leader if no
+	// other commit is doing so
+	private void sync(long position) throws IOException
+	{
+		ByteBuffer batch;
+		long end;
+		synchronized (this)
+		{
+			while (m_syncing && m_durable < position)
+			{
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the write-ahead log " + m_path);
+				}
+			}
+			if (m_durable >= position)
+			{
+				return;
+			}
+			if (m_failure != null)
+			{
+				throw new IOException("The write-ahead log " + m_path + " failed", m_failure);
+			}
+			m_syncing = true;
+			batch = m_pending;
+			m_pending = m_spare;
+			end = m_appended;
+		}
+
+		IOException failure = null;
+		try {
+			batch.flip();
+			while (batch.hasRemaining())
+			{
+				m_channel.write(batch);
+			}
+			m_channel.force(false);
+		}
+		catch (IOException e) {
+			failure = e;
+		}
+
+		synchronized (this)
+		{
+			batch.clear();
+			m_spare = batch;
+			m_syncing = false;
+			if (failure == null)
+			{
+				m_durable = end;
+				m_syncs++;
+			}
+			else
+			{
+				// The log may end with part of the batch now: stop using it
+				Trace.error("RM::WriteAheadLog could not write " + m_path + ": " + failure.getMessage());
+				m_failure = failure;
+			}
+			notifyAll();
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	// Takes a snapshot of the data and deletes the log segments it covers. Does nothing if nothing was
+	// logged since the last checkpoint.
+	public void checkpoint() throws IOException
+	{
+		long start = System.nanoTime();
+		int segment;
+		int lastXid;
+		long carried;
+
+		// Between commits, every logged change is applied: switch to a new segment, which will be
+		// replayed over the snapshot
+		m_barrier.writeLock().lock();
+		try {
+			// The records appended without waiting for the disk (see end) belong to the old segment
+			long appended;
+			synchronized (this)
+			{
+				appended = m_appended;
+			}
+			sync(appended);
+
+			synchronized (this)
+			{
+				if (!m_dirty || m_failure != null)
+				{
+					return;
+				}
+				Path path = segmentPath(m_segment + 1);
+				FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				m_channel.close();
+				m_channel = channel;
+				m_path = path;
+				m_segment++;
+				m_appended = 0;
+				m_durable = 0;
+
+				// The transactions in doubt and the commits not acknowledged must outlive the segments
+				// that will be deleted
+				for (Map.Entry<Integer, byte[]> entry : m_prepared.entrySet())
+				{
+					append(entry.getKey(), entry.getValue(), checksum(entry.getValue()));
+				}
+				for (int xid : m_decided)
+				{
+					byte[] payload = encode(COMMIT_DECIDED, xid, null);
+					append(xid, payload, checksum(payload));
+				}
+				m_dirty = false;
+				carried = m_appended;
+				segment = m_segment;
+				lastXid = m_lastXid;
+			}
+		}
+		finally {
+			m_barrier.writeLock().unlock();
+		}
+		sync(carried);
+
+		// A persistent inventory is forced to disk instead: it then holds every change logged before
+		// the new segment
+		Inventory inventory = m_inventory;
+		if (inventory != null && inventory.isPersistent())
+		{
+			inventory.force();
+			inventory = null;
+		}
+		int items = Snapshot.write(snapshotPath(), segment, lastXid, m_data, inventory);
+		for (int old : segments())
+		{
+			if (old < segment)
+			{
+				Files.delete(segmentPath(old));
+			}
+		}
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		synchronized (this)
+		{
+			m_snapshots++;
+			m_lastSnapshot = items + " items in " + millis + "ms";
+		}
+		Trace.info("RM::WriteAheadLog snapshot of " + m_name + ": " + items + " items in " + millis + "ms, replaying from segment " + segment);
+	}
+
+	// Takes a checkpoint every interval seconds in the background
+	private void startCheckpoints(int interval)
+	{
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "checkpoint-" + m_name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				checkpoint();
+			}
+			catch (Exception e) {
+				Trace.error("RM::WriteAheadLog checkpoint of " + m_name + " failed: " + e.getMessage());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	// Numbers of the segments in the directory, in ascending order
+	private ArrayList<Integer> segments() throws IOException
+	{
+		ArrayList<Integer> segments = new ArrayList<Integer>();
+		String prefix = m_name + ".";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(m_dir, prefix + "*.log"))
+		{
+			for (Path file : files)
+			{
+				String name = file.getFileName().toString();
+				try {
+					segments.add(Integer.parseInt(name.substring(prefix.length(), name.length() - ".log".length())));
+				}
+				catch (NumberFormatException e) {
+					// Not a segment of this log, e.g. of a server whose name starts with ours
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private Path segmentPath(int segment)
+	{
+		return m_dir.resolve(m_name + "." + segment + ".log");
+	}
+
+	private Path snapshotPath()
+	{
+		return m_dir.resolve(m_name + ".snapshot");
+	}
+
+	public synchronized String getStats()
+	{
+		return "Write-ahead log " + m_path + ": " + m_records + " records, " + m_syncs + " forces"
+			+ (m_syncs == 0 ? "" : String.format(" (%.1f records per force)", (double)m_records / m_syncs))
+			+ ", " + m_snapshots + " snapshots (last: " + m_lastSnapshot + "), recovery: " + m_lastRecovery;
+	}
+}
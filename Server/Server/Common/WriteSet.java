@@ -0,0 +1,217 @@
+package Server.Common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The changes of a running transaction, kept aside from the committed data until it commits: the
+// data items it wrote (null for the ones it removed) and the inventory items it changed. The
+// transaction reads its own changes, everybody else only sees committed data, and aborting just
+// drops the write set.
+//
+// Several threads may work for the same transaction (e.g. the parts of a bundle), so the write
+// set is guarded by its own monitor; callers changing an InventoryItem hold it too.
+public class WriteSet
+{
+	// An inventory item as the transaction sees it
+	public static class InventoryItem
+	{
+		public boolean exists;
+		public String location;
+		public int count;
+		public int price;
+		public int reserved;
+	}
+
+	// Tags of the changes in the encoded form, see writeTo
+	private static final byte PUT_DATA = 1;
+	private static final byte REMOVE_DATA = 2;
+	private static final byte PUT_ITEM = 3;
+	private static final byte REMOVE_ITEM = 4;
+
+	private HashMap<ItemKey, RMItem> m_data = new HashMap<ItemKey, RMItem>();
+	private HashMap<ItemKey, InventoryItem> m_inventory = new HashMap<ItemKey, InventoryItem>();
+
+	// Returns the data item as the transaction sees it: its own version if it wrote it, otherwise
+	// the committed one
+	public synchronized RMItem getData(ItemKey key, ItemStore committed)
+	{
+		if (m_data.containsKey(key))
+		{
+			return m_data.get(key);
+		}
+		return committed.get(key);
+	}
+
+	// Records a written data item, or a removed one if value is null
+	public synchronized void putData(ItemKey key, RMItem value)
+	{
+		m_data.put(key, value);
+	}
+
+	// Returns the transaction's version of the inventory item, or null if it did not change it
+	public synchronized InventoryItem getItem(ItemKey key)
+	{
+		return m_inventory.get(key);
+	}
+
+	// Returns the transaction's version of the inventory item, copied from the committed inventory
+	// the first time, for the transaction to change it
+	public synchronized InventoryItem changeItem(ItemKey key, Inventory committed)
+	{
+		InventoryItem item = m_inventory.get(key);
+		if (item == null)
+		{
+			item = new InventoryItem();
+			item.count = committed.getCount(key);
+			item.exists = item.count != Inventory.MISSING;
+			if (item.exists)
+			{
+				item.location = committed.getLocation(key);
+				item.price = committed.getPrice(key);
+				item.reserved = committed.getReserved(key);
+			}
+			m_inventory.put(key, item);
+		}
+		return item;
+	}
+
+	// Number of changed items
+	public synchronized int size()
+	{
+		return m_data.size() + m_inventory.size();
+	}
+
+	// Keys of the changed items
+	public synchronized Set<ItemKey> keys()
+	{
+		HashSet<ItemKey> keys = new HashSet<ItemKey>(m_data.keySet());
+		keys.addAll(m_inventory.keySet());
+		return keys;
+	}
+
+	// Applies the changes to the committed data. The transaction still holds the write locks of all
+	// the items it changed, so nobody sees the changes until all of them are applied.
+	public synchronized void apply(ItemStore data, Inventory inventory)
+	{
+		for (Map.Entry<ItemKey, RMItem> entry : m_data.entrySet())
+		{
+			if (entry.getValue() == null)
+			{
+				data.remove(entry.getKey());
+			}
+			else
+			{
+				data.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<ItemKey, InventoryItem> entry : m_inventory.entrySet())
+		{
+			InventoryItem item = entry.getValue();
+			if (item.exists)
+			{
+				inventory.put(entry.getKey(), item.location, item.count, item.price, item.reserved);
+			}
+			else
+			{
+				inventory.remove(entry.getKey());
+			}
+		}
+	}
+
+	// Splits the changes by item key hash into the given number of write sets, e.g. to apply them in
+	// parallel. The changes of an item always go to the same partition; empty partitions are null.
+	public synchronized WriteSet[] partition(int partitions)
+	{
+		WriteSet[] parts = new WriteSet[partitions];
+		for (Map.Entry<ItemKey, RMItem> entry : m_data.entrySet())
+		{
+			part(parts, entry.getKey()).m_data.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<ItemKey, InventoryItem> entry : m_inventory.entrySet())
+		{
+			part(parts, entry.getKey()).m_inventory.put(entry.getKey(), entry.getValue());
+		}
+		return parts;
+	}
+
+	private static WriteSet part(WriteSet[] parts, ItemKey key)
+	{
+		int i = Math.floorMod(key.hashCode(), parts.length);
+		if (parts[i] == null)
+		{
+			parts[i] = new WriteSet();
+		}
+		return parts[i];
+	}
+
+	// Writes the changes in the compact binary form of the write-ahead log: their number, then each
+	// change as a tag, the item key and the new item, if any
+	public synchronized void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(m_data.size() + m_inventory.size());
+		for (Map.Entry<ItemKey, RMItem> entry : m_data.entrySet())
+		{
+			out.writeByte(entry.getValue() == null ? REMOVE_DATA : PUT_DATA);
+			ItemCodec.writeKey(out, entry.getKey());
+			if (entry.getValue() != null)
+			{
+				ItemCodec.writeItem(out, entry.getValue());
+			}
+		}
+		for (Map.Entry<ItemKey, InventoryItem> entry : m_inventory.entrySet())
+		{
+			InventoryItem item = entry.getValue();
+			out.writeByte(item.exists ? PUT_ITEM : REMOVE_ITEM);
+			ItemCodec.writeKey(out, entry.getKey());
+			if (item.exists)
+			{
+				out.writeUTF(item.location);
+				out.writeInt(item.count);
+				out.writeInt(item.price);
+				out.writeInt(item.reserved);
+			}
+		}
+	}
+
+	// Reads changes written by writeTo
+	public static WriteSet readFrom(DataInput in) throws IOException
+	{
+		WriteSet writeSet = new WriteSet();
+		int changes = in.readInt();
+		for (int i = 0; i < changes; i++)
+		{
+			byte tag = in.readByte();
+			ItemKey key = ItemCodec.readKey(in);
+			switch (tag)
+			{
+				case PUT_DATA:
+					writeSet.m_data.put(key, ItemCodec.readItem(in));
+					break;
+				case REMOVE_DATA:
+					writeSet.m_data.put(key, null);
+					break;
+				case PUT_ITEM:
+				case REMOVE_ITEM:
+					InventoryItem item = new InventoryItem();
+					item.exists = tag == PUT_ITEM;
+					if (item.exists)
+					{
+						item.location = in.readUTF();
+						item.count = in.readInt();
+						item.price = in.readInt();
+						item.reserved = in.readInt();
+					}
+					writeSet.m_inventory.put(key, item);
+					break;
+				default:
+					throw new IOException("Invalid change tag: " + tag);
+			}
+		}
+		return writeSet;
+	}
+}
@@ -0,0 +1,31 @@
+package Server.Interface;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The coordinator of the two-phase commit, i.e. the middleware instance
+ * that started a transaction, as seen by the resource managers.
+ *
+ * A resource manager that prepared a transaction and never received the
+ * outcome (e.g. it restarted, or the commit was lost) asks for it here.
+ */
+
+public interface ICoordinator extends Remote
+{
+    public static final int UNDECIDED = 0;
+    public static final int COMMITTED = 1;
+    public static final int ABORTED = 2;
+
+    /**
+     * Get the outcome of a transaction started by this coordinator, for a
+     * resource manager that prepared it and has not acknowledged the
+     * outcome. A transaction neither running, being committed nor decided
+     * to commit has aborted; a commit is forgotten once every resource
+     * manager acknowledged it.
+     *
+     * @return UNDECIDED, COMMITTED or ABORTED
+     */
+    public int getOutcome(int xid)
+	throws RemoteException;
+}
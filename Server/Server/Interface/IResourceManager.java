@@ -225,6 +225,63 @@ public interface IResourceManager extends Remote
      public boolean cancelItemReservations(int xid, HashMap<String, Integer> reservedKeysMap)
 	throws RemoteException;
 
+    /**
+     * Get the reservations of a customer, as a count for every reserved
+     * item key. Used by the middleware to cancel them when the customer
+     * is deleted; served by the Customers resource manager.
+     *
+     * @return The reservations, or null if there is no such customer
+     */
+     public HashMap<String, Integer> getCustomerReservations(int xid, int customerID)
+	throws RemoteException;
+
+    /**
+     * Record reservations with a customer, once the middleware reserved
+     * the items (given by their keys) at the resource managers for the
+     * given prices; served by the Customers resource manager.
+     *
+     * @return False if there is no such customer
+     */
+     public boolean addCustomerReservations(int xid, int customerID, Vector<String> reservedKeys, Vector<Integer> prices)
+	throws RemoteException;
+
+    /**
+     * Start a transaction.
+     *
+     * @return The new transaction identifier
+     */
+    public int start()
+	throws RemoteException;
+
+    /**
+     * Prepare to commit a transaction: first phase of the two-phase commit
+     * run by the middleware. The resource manager votes to commit unless it
+     * has already aborted the transaction, e.g. as a deadlock victim. With a
+     * write-ahead log, the changes are on disk before it votes.
+     *
+     * @return True to vote commit, false to vote abort
+     */
+    public boolean prepare(int xid)
+	throws RemoteException;
+
+    /**
+     * Commit a transaction: keep its changes and release its locks.
+     * Throws InvalidTransactionException if the resource manager does not know
+     * the transaction.
+     *
+     * @return Success
+     */
+    public boolean commit(int xid)
+	throws RemoteException;
+
+    /**
+     * Abort a transaction: roll back its changes and release its locks.
+     *
+     * @return Success
+     */
+    public boolean abort(int xid)
+	throws RemoteException;
+
     /**
      * Convenience for probing the resource manager.
      *
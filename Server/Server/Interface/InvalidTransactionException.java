@@ -0,0 +1,24 @@
+package Server.Interface;
+
+import java.rmi.RemoteException;
+
+/* The transaction was not started, or has already committed or aborted. It is a RemoteException so
+ * that every IResourceManager method can throw it. */
+
+public class InvalidTransactionException extends RemoteException
+{
+	private static final long serialVersionUID = 1L;
+
+	private int m_xid = 0;
+
+	public InvalidTransactionException(int xid, String msg)
+	{
+		super("The transaction " + xid + " is not valid: " + msg);
+		m_xid = xid;
+	}
+
+	public int getXId()
+	{
+		return m_xid;
+	}
+}
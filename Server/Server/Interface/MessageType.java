@@ -26,5 +26,15 @@ public enum MessageType {
     CHECK_FLIGHT_LIST,
     RESERVE_FLIGHT_LIST,
     CANCEL_ITEM_RESERVATIONS,
+    GET_CUSTOMER_RESERVATIONS,
+    ADD_CUSTOMER_RESERVATIONS,
+    STATS,
+    START,
+    PREPARE,
+    COMMIT,
+    ABORT,
+    GET_OUTCOME,
     ERROR,
+    INVALID_TRANSACTION,
+    TRANSACTION_ABORTED,
 }
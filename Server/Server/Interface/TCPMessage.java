@@ -1,15 +1,17 @@
 package Server.Interface;
 
-import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Vector;
 
-public class TCPMessage implements Serializable {
-
-	private static final long serialVersionUID = 1L;
+// Sent over the wire with TCPMessageCodec, which only encodes the fields used by each message type
+public class TCPMessage implements Cloneable {
 
 	// Indicates the type of request this message pertains to
 	public MessageType type;
+
+	// Matches a response to its request when several requests are in flight on the same persistent
+	// connection (0 for a one-shot connection that carries a single request)
+	public int correlationId;
 	
 	// Message request parameters (different parameters used depending on the message type)
 	public int id;
@@ -29,6 +31,8 @@ public class TCPMessage implements Serializable {
 	public boolean car;
 	public boolean room;
 	public HashMap<String,Integer> reservedKeysMap;
+	public Vector<String> reservedKeys;
+	public Vector<Integer> prices;
 	
 	// Message response result (different result type depending on the message type)
 	public boolean booleanResult;
@@ -40,6 +44,17 @@ public class TCPMessage implements Serializable {
 	public TCPMessage(MessageType type) {
 		this.type = type;
 	}
+
+	// Returns a shallow copy of the message, so that the same request can be tagged and sent on
+	// several connections at once
+	public TCPMessage copy() {
+		try {
+			return (TCPMessage) super.clone();
+		}
+		catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
 	
 	// ========== Factory methods to create messages ==========
 	
@@ -201,6 +216,54 @@ public class TCPMessage implements Serializable {
 		
 		return message;
 	}
+	public static TCPMessage newGetCustomerReservations(int id, int customerID) {
+		TCPMessage message = new TCPMessage(MessageType.GET_CUSTOMER_RESERVATIONS);
+		message.id = id;
+		message.customerID = customerID;
+		
+		return message;
+	}
+	public static TCPMessage newAddCustomerReservations(int id, int customerID, Vector<String> reservedKeys, Vector<Integer> prices) {
+		TCPMessage message = new TCPMessage(MessageType.ADD_CUSTOMER_RESERVATIONS);
+		message.id = id;
+		message.customerID = customerID;
+		message.reservedKeys = reservedKeys;
+		message.prices = prices;
+		
+		return message;
+	}
+	
+	public static TCPMessage newStats() {
+		return new TCPMessage(MessageType.STATS);
+	}
+	
+	public static TCPMessage newStart() {
+		return new TCPMessage(MessageType.START);
+	}
+	
+	public static TCPMessage newPrepare(int id) {
+		TCPMessage message = new TCPMessage(MessageType.PREPARE);
+		message.id = id;
+		return message;
+	}
+	
+	public static TCPMessage newCommit(int id) {
+		TCPMessage message = new TCPMessage(MessageType.COMMIT);
+		message.id = id;
+		return message;
+	}
+	
+	public static TCPMessage newAbort(int id) {
+		TCPMessage message = new TCPMessage(MessageType.ABORT);
+		message.id = id;
+		return message;
+	}
+	
+	public static TCPMessage newGetOutcome(int id) {
+		TCPMessage message = new TCPMessage(MessageType.GET_OUTCOME);
+		message.id = id;
+		return message;
+	}
 	
 //	public static TCPMessage newGetName() {
 //		TCPMessage message = new TCPMessage(MessageType.GET_NAME); 
@@ -0,0 +1,536 @@
+package Server.Interface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/*
+ * Binary wire format for TCPMessage, shared by the client, the middleware and the resource managers.
+ *
+ * Every message is sent as a frame: a 4-byte payload length followed by the payload. The payload
+ * starts with the message type and the correlation id, then holds only the fields used by that type
+ * of message: the request parameters for a request, the result for a response.
+ */
+public class TCPMessageCodec {
+
+	// Upper bound on the payload size, to reject a corrupt length before allocating for it
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	// Size of the length prefix in front of every payload
+	public static final int LENGTH_PREFIX = 4;
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	// ========== Stream helpers ==========
+
+	public static void writeRequest(OutputStream output, TCPMessage request) throws IOException {
+		output.write(encodeRequest(request));
+		output.flush();
+	}
+
+	public static void writeResponse(OutputStream output, TCPMessage response) throws IOException {
+		output.write(encodeResponse(response));
+		output.flush();
+	}
+
+	// Reads the next request; throws an EOFException if the connection was closed between frames
+	public static TCPMessage readRequest(DataInputStream input) throws IOException {
+		return decodeRequest(readFrame(input));
+	}
+
+	// Reads the next response; throws an EOFException if the connection was closed between frames
+	public static TCPMessage readResponse(DataInputStream input) throws IOException {
+		return decodeResponse(readFrame(input));
+	}
+
+	private static byte[] readFrame(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		checkFrameLength(length);
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return payload;
+	}
+
+	public static void checkFrameLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid TCPMessage frame length: " + length);
+		}
+	}
+
+	// ========== Encoding ==========
+
+	// Returns the complete frame (length prefix included) for a request
+	public static byte[] encodeRequest(TCPMessage m) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(0); // Length placeholder
+		writeHeader(out, m);
+
+		switch (m.type) {
+		case HELLO:
+		case ERROR:
+		case INVALID_TRANSACTION:
+		case TRANSACTION_ABORTED:
+		case STATS:
+		case START:
+			break;
+		case ADD_FLIGHT:
+			out.writeInt(m.id);
+			out.writeInt(m.flightNum);
+			out.writeInt(m.flightSeats);
+			out.writeInt(m.flightPrice);
+			break;
+		case ADD_CARS:
+			out.writeInt(m.id);
+			writeString(out, m.location);
+			out.writeInt(m.numCars);
+			out.writeInt(m.price);
+			break;
+		case ADD_ROOMS:
+			out.writeInt(m.id);
+			writeString(out, m.location);
+			out.writeInt(m.numRooms);
+			out.writeInt(m.price);
+			break;
+		case NEW_CUSTOMER:
+		case GET_NAME:
+		case PREPARE:
+		case COMMIT:
+		case ABORT:
+		case GET_OUTCOME:
+			out.writeInt(m.id);
+			break;
+		case NEW_CUSTOMER_ID:
+			out.writeInt(m.id);
+			out.writeInt(m.cid);
+			break;
+		case DELETE_FLIGHT:
+		case QUERY_FLIGHT:
+			out.writeInt(m.id);
+			out.writeInt(m.flightNum);
+			break;
+		case DELETE_CARS:
+		case DELETE_ROOMS:
+		case QUERY_CARS:
+		case QUERY_ROOMS:
+		case QUERY_CARS_PRICE:
+		case QUERY_ROOMS_PRICE:
+			out.writeInt(m.id);
+			writeString(out, m.location);
+			break;
+		case DELETE_CUSTOMER:
+		case QUERY_CUSTOMER_INFO:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			break;
+		case QUERY_FLIGHT_PRICE:
+			out.writeInt(m.id);
+			out.writeInt(m.flightNumber);
+			break;
+		case RESERVE_FLIGHT:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			out.writeInt(m.flightNum);
+			break;
+		case RESERVE_CAR:
+		case RESERVE_ROOM:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			writeString(out, m.location);
+			break;
+		case BUNDLE:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			writeStringVector(out, m.flightNumbers);
+			writeString(out, m.location);
+			out.writeBoolean(m.car);
+			out.writeBoolean(m.room);
+			break;
+		case CHECK_FLIGHT_LIST:
+			out.writeInt(m.id);
+			writeStringVector(out, m.flightNumbers);
+			writeString(out, m.location);
+			break;
+		case RESERVE_FLIGHT_LIST:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			writeStringVector(out, m.flightNumbers);
+			writeString(out, m.location);
+			break;
+		case CANCEL_ITEM_RESERVATIONS:
+			out.writeInt(m.id);
+			writeCountMap(out, m.reservedKeysMap);
+			break;
+		case GET_CUSTOMER_RESERVATIONS:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			break;
+		case ADD_CUSTOMER_RESERVATIONS:
+			out.writeInt(m.id);
+			out.writeInt(m.customerID);
+			writeStringVector(out, m.reservedKeys);
+			writeIntVector(out, m.prices);
+			break;
+		default:
+			throw new IOException("Unrecognized TCPMessage.type: " + m.type);
+		}
+		return toFrame(buffer);
+	}
+
+	// Returns the complete frame (length prefix included) for a response
+	public static byte[] encodeResponse(TCPMessage m) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(0); // Length placeholder
+		writeHeader(out, m);
+
+		switch (m.type) {
+		case HELLO:
+		case ERROR:
+		case INVALID_TRANSACTION:
+		case TRANSACTION_ABORTED:
+			break;
+		case ADD_FLIGHT:
+		case ADD_CARS:
+		case ADD_ROOMS:
+		case NEW_CUSTOMER_ID:
+		case DELETE_FLIGHT:
+		case DELETE_CARS:
+		case DELETE_ROOMS:
+		case DELETE_CUSTOMER:
+		case BUNDLE:
+		case CHECK_FLIGHT_LIST:
+		case CANCEL_ITEM_RESERVATIONS:
+		case ADD_CUSTOMER_RESERVATIONS:
+		case PREPARE:
+		case COMMIT:
+		case ABORT:
+			out.writeBoolean(m.booleanResult);
+			break;
+		case NEW_CUSTOMER:
+		case QUERY_FLIGHT:
+		case QUERY_CARS:
+		case QUERY_ROOMS:
+		case QUERY_FLIGHT_PRICE:
+		case QUERY_CARS_PRICE:
+		case QUERY_ROOMS_PRICE:
+		case RESERVE_FLIGHT:
+		case RESERVE_CAR:
+		case RESERVE_ROOM:
+		case START:
+		case GET_OUTCOME:
+			out.writeInt(m.intResult);
+			break;
+		case QUERY_CUSTOMER_INFO:
+		case GET_NAME:
+		case STATS:
+			writeString(out, m.stringResult);
+			break;
+		case RESERVE_FLIGHT_LIST:
+			writeIntVector(out, m.vectorIntResult);
+			break;
+		case GET_CUSTOMER_RESERVATIONS:
+			writeCountMap(out, m.reservedKeysMap);
+			break;
+		default:
+			throw new IOException("Unrecognized TCPMessage.type: " + m.type);
+		}
+		return toFrame(buffer);
+	}
+
+	private static void writeHeader(DataOutput out, TCPMessage m) throws IOException {
+		out.writeByte(m.type.ordinal());
+		out.writeInt(m.correlationId);
+	}
+
+	// Fills in the length placeholder at the start of the buffer
+	private static byte[] toFrame(ByteArrayOutputStream buffer) {
+		byte[] frame = buffer.toByteArray();
+		int length = frame.length - LENGTH_PREFIX;
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	// ========== Decoding ==========
+
+	// Decodes a request payload (without its length prefix)
+	public static TCPMessage decodeRequest(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		TCPMessage m = readHeader(in);
+
+		switch (m.type) {
+		case HELLO:
+		case ERROR:
+		case INVALID_TRANSACTION:
+		case TRANSACTION_ABORTED:
+		case STATS:
+		case START:
+			break;
+		case ADD_FLIGHT:
+			m.id = in.readInt();
+			m.flightNum = in.readInt();
+			m.flightSeats = in.readInt();
+			m.flightPrice = in.readInt();
+			break;
+		case ADD_CARS:
+			m.id = in.readInt();
+			m.location = readString(in);
+			m.numCars = in.readInt();
+			m.price = in.readInt();
+			break;
+		case ADD_ROOMS:
+			m.id = in.readInt();
+			m.location = readString(in);
+			m.numRooms = in.readInt();
+			m.price = in.readInt();
+			break;
+		case NEW_CUSTOMER:
+		case GET_NAME:
+		case PREPARE:
+		case COMMIT:
+		case ABORT:
+		case GET_OUTCOME:
+			m.id = in.readInt();
+			break;
+		case NEW_CUSTOMER_ID:
+			m.id = in.readInt();
+			m.cid = in.readInt();
+			break;
+		case DELETE_FLIGHT:
+		case QUERY_FLIGHT:
+			m.id = in.readInt();
+			m.flightNum = in.readInt();
+			break;
+		case DELETE_CARS:
+		case DELETE_ROOMS:
+		case QUERY_CARS:
+		case QUERY_ROOMS:
+		case QUERY_CARS_PRICE:
+		case QUERY_ROOMS_PRICE:
+			m.id = in.readInt();
+			m.location = readString(in);
+			break;
+		case DELETE_CUSTOMER:
+		case QUERY_CUSTOMER_INFO:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			break;
+		case QUERY_FLIGHT_PRICE:
+			m.id = in.readInt();
+			m.flightNumber = in.readInt();
+			break;
+		case RESERVE_FLIGHT:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			m.flightNum = in.readInt();
+			break;
+		case RESERVE_CAR:
+		case RESERVE_ROOM:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			m.location = readString(in);
+			break;
+		case BUNDLE:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			m.flightNumbers = readStringVector(in);
+			m.location = readString(in);
+			m.car = in.readBoolean();
+			m.room = in.readBoolean();
+			break;
+		case CHECK_FLIGHT_LIST:
+			m.id = in.readInt();
+			m.flightNumbers = readStringVector(in);
+			m.location = readString(in);
+			break;
+		case RESERVE_FLIGHT_LIST:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			m.flightNumbers = readStringVector(in);
+			m.location = readString(in);
+			break;
+		case CANCEL_ITEM_RESERVATIONS:
+			m.id = in.readInt();
+			m.reservedKeysMap = readCountMap(in);
+			break;
+		case GET_CUSTOMER_RESERVATIONS:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			break;
+		case ADD_CUSTOMER_RESERVATIONS:
+			m.id = in.readInt();
+			m.customerID = in.readInt();
+			m.reservedKeys = readStringVector(in);
+			m.prices = readIntVector(in);
+			break;
+		default:
+			throw new IOException("Unrecognized TCPMessage.type: " + m.type);
+		}
+		return m;
+	}
+
+	// Decodes a response payload (without its length prefix)
+	public static TCPMessage decodeResponse(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		TCPMessage m = readHeader(in);
+
+		switch (m.type) {
+		case HELLO:
+		case ERROR:
+		case INVALID_TRANSACTION:
+		case TRANSACTION_ABORTED:
+			break;
+		case ADD_FLIGHT:
+		case ADD_CARS:
+		case ADD_ROOMS:
+		case NEW_CUSTOMER_ID:
+		case DELETE_FLIGHT:
+		case DELETE_CARS:
+		case DELETE_ROOMS:
+		case DELETE_CUSTOMER:
+		case BUNDLE:
+		case CHECK_FLIGHT_LIST:
+		case CANCEL_ITEM_RESERVATIONS:
+		case ADD_CUSTOMER_RESERVATIONS:
+		case PREPARE:
+		case COMMIT:
+		case ABORT:
+			m.booleanResult = in.readBoolean();
+			break;
+		case NEW_CUSTOMER:
+		case QUERY_FLIGHT:
+		case QUERY_CARS:
+		case QUERY_ROOMS:
+		case QUERY_FLIGHT_PRICE:
+		case QUERY_CARS_PRICE:
+		case QUERY_ROOMS_PRICE:
+		case RESERVE_FLIGHT:
+		case RESERVE_CAR:
+		case RESERVE_ROOM:
+		case START:
+		case GET_OUTCOME:
+			m.intResult = in.readInt();
+			break;
+		case QUERY_CUSTOMER_INFO:
+		case GET_NAME:
+		case STATS:
+			m.stringResult = readString(in);
+			break;
+		case RESERVE_FLIGHT_LIST:
+			m.vectorIntResult = readIntVector(in);
+			break;
+		case GET_CUSTOMER_RESERVATIONS:
+			m.reservedKeysMap = readCountMap(in);
+			break;
+		default:
+			throw new IOException("Unrecognized TCPMessage.type: " + m.type);
+		}
+		return m;
+	}
+
+	private static TCPMessage readHeader(DataInput in) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= TYPES.length) {
+			throw new IOException("Unrecognized TCPMessage.type ordinal: " + ordinal);
+		}
+		TCPMessage m = new TCPMessage(TYPES[ordinal]);
+		m.correlationId = in.readInt();
+		return m;
+	}
+
+	// ========== Field encodings ==========
+
+	// Strings are a length (-1 for null) followed by the UTF-8 bytes
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) return null;
+		checkFrameLength(length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Collections are a size (-1 for null) followed by the elements
+	private static void writeStringVector(DataOutput out, Vector<String> v) throws IOException {
+		if (v == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(v.size());
+		for (String s : v) writeString(out, s);
+	}
+
+	private static Vector<String> readStringVector(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size == -1) return null;
+		checkFrameLength(size);
+		Vector<String> v = new Vector<String>(size);
+		for (int i = 0; i < size; i++) v.add(readString(in));
+		return v;
+	}
+
+	private static void writeIntVector(DataOutput out, Vector<Integer> v) throws IOException {
+		if (v == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(v.size());
+		for (int i : v) out.writeInt(i);
+	}
+
+	private static Vector<Integer> readIntVector(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size == -1) return null;
+		checkFrameLength(size);
+		Vector<Integer> v = new Vector<Integer>(size);
+		for (int i = 0; i < size; i++) v.add(in.readInt());
+		return v;
+	}
+
+	private static void writeCountMap(DataOutput out, HashMap<String, Integer> map) throws IOException {
+		if (map == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(map.size());
+		for (Map.Entry<String, Integer> entry : map.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	private static HashMap<String, Integer> readCountMap(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size == -1) return null;
+		checkFrameLength(size);
+		HashMap<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			map.put(key, in.readInt());
+		}
+		return map;
+	}
+}
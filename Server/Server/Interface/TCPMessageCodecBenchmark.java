@@ -0,0 +1,232 @@
+package Server.Interface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.Vector;
+
+/*
+ * Checks that every MessageType survives a round trip through TCPMessageCodec, then compares the
+ * frame sizes and the encode + decode throughput of the codec with the Java serialization the TCP
+ * servers used before it.
+ *
+ * Usage: java Server.Interface.TCPMessageCodecBenchmark [<messages per round>]
+ *
+ * The round trip encodes a request and a response of every type with all fields set, decodes them,
+ * and checks that re-encoding gives the same bytes and that no decoded field differs from the sent
+ * one. The comparison sends the decoded messages (only the fields the codec carries for their type)
+ * both ways; the serialized form is a LegacyMessage, a copy of the former Serializable TCPMessage
+ * written with a new ObjectOutputStream per message, as before. Its class descriptor carries a
+ * slightly longer class name than the original did.
+ *
+ * Exits with status 1 if a round trip fails.
+ */
+public class TCPMessageCodecBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	private static volatile int s_sink;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		MessageType[] types = MessageType.values();
+		TCPMessage[] requests = new TCPMessage[types.length];
+		TCPMessage[] responses = new TCPMessage[types.length];
+		boolean passed = true;
+
+		System.out.println(String.format("%-26s %8s %8s %8s %8s", "type", "request", "(serial)", "response", "(serial)"));
+		long codecBytes = 0;
+		long serialBytes = 0;
+		for (int i = 0; i < types.length; i++) {
+			TCPMessage sample = newSample(types[i]);
+
+			byte[] request = TCPMessageCodec.encodeRequest(sample);
+			requests[i] = TCPMessageCodec.decodeRequest(payload(request));
+			passed &= checkRoundTrip("request", sample, requests[i], request, TCPMessageCodec.encodeRequest(requests[i]));
+
+			byte[] response = TCPMessageCodec.encodeResponse(sample);
+			responses[i] = TCPMessageCodec.decodeResponse(payload(response));
+			passed &= checkRoundTrip("response", sample, responses[i], response, TCPMessageCodec.encodeResponse(responses[i]));
+
+			int serialRequest = serialize(requests[i]).length;
+			int serialResponse = serialize(responses[i]).length;
+			codecBytes += request.length + response.length;
+			serialBytes += serialRequest + serialResponse;
+			System.out.println(String.format("%-26s %8d %8d %8d %8d", types[i], request.length, serialRequest, response.length, serialResponse));
+		}
+		System.out.println(String.format("%-26s %8d bytes, serialized %d bytes (%.1fx)", "total", codecBytes, serialBytes, (double) serialBytes / codecBytes));
+
+		System.out.println("Round trips " + (passed ? "passed" : "FAILED") + "; " + messages + " request/response pairs per round:");
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			long codec = runCodec(messages, requests, responses);
+			long serial = runSerialization(messages, requests, responses);
+			if (round >= WARMUP_ROUNDS) {
+				System.out.println(String.format("round %2d: codec %,10d pairs/s   serialization %,10d pairs/s",
+						round - WARMUP_ROUNDS + 1, messages * 1000000000L / codec, messages * 1000000000L / serial));
+			}
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	// A message of the given type with every field set to a distinct value
+	private static TCPMessage newSample(MessageType type) {
+		TCPMessage m = new TCPMessage(type);
+		m.correlationId = 77;
+		m.id = 12;
+		m.flightNum = 101;
+		m.flightSeats = 50;
+		m.flightPrice = 300;
+		m.location = "Montreal";
+		m.numCars = 7;
+		m.price = 45;
+		m.numRooms = 9;
+		m.cid = 4242;
+		m.customerID = 4243;
+		m.flightNumber = 102;
+		m.flightNumbers = new Vector<String>(Arrays.asList("101", "102", "103"));
+		m.car = true;
+		m.room = true;
+		m.reservedKeysMap = new HashMap<String, Integer>();
+		m.reservedKeysMap.put("flight-101", 2);
+		m.reservedKeysMap.put("car-montreal", 1);
+		m.reservedKeys = new Vector<String>(Arrays.asList("flight-101", "room-montreal"));
+		m.prices = new Vector<Integer>(Arrays.asList(300, 80));
+		m.booleanResult = true;
+		m.intResult = 350;
+		m.stringResult = "Bill for customer 4243\n2 flight-101 $300\n1 car-montreal $45\n";
+		m.vectorIntResult = new Vector<Integer>(Arrays.asList(300, 310, 320));
+		return m;
+	}
+
+	// Returns true if re-encoding the decoded message gives the same frame and every field the
+	// decoded message has set holds the value sent
+	private static boolean checkRoundTrip(String what, TCPMessage sent, TCPMessage decoded, byte[] frame, byte[] reencoded)
+			throws IllegalAccessException {
+		boolean passed = Arrays.equals(frame, reencoded);
+		if (!passed) {
+			System.out.println(sent.type + " " + what + ": re-encoding gives different bytes");
+		}
+		for (Field field : TCPMessage.class.getFields()) {
+			if (Modifier.isStatic(field.getModifiers())) continue;
+			Object value = field.get(decoded);
+			if (!isDefault(value) && !Objects.equals(value, field.get(sent))) {
+				System.out.println(sent.type + " " + what + ": " + field.getName() + " is " + value + " instead of " + field.get(sent));
+				passed = false;
+			}
+		}
+		return passed;
+	}
+
+	private static boolean isDefault(Object value) {
+		return value == null || Boolean.FALSE.equals(value) || Integer.valueOf(0).equals(value);
+	}
+
+	private static byte[] payload(byte[] frame) {
+		return Arrays.copyOfRange(frame, TCPMessageCodec.LENGTH_PREFIX, frame.length);
+	}
+
+	// Returns the elapsed nanoseconds
+	private static long runCodec(int messages, TCPMessage[] requests, TCPMessage[] responses) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			int type = i % requests.length;
+			TCPMessage request = TCPMessageCodec.decodeRequest(payload(TCPMessageCodec.encodeRequest(requests[type])));
+			TCPMessage response = TCPMessageCodec.decodeResponse(payload(TCPMessageCodec.encodeResponse(responses[type])));
+			s_sink += request.id + response.intResult;
+		}
+		return System.nanoTime() - start;
+	}
+
+	// Returns the elapsed nanoseconds
+	private static long runSerialization(int messages, TCPMessage[] requests, TCPMessage[] responses)
+			throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			int type = i % requests.length;
+			LegacyMessage request = deserialize(serialize(requests[type]));
+			LegacyMessage response = deserialize(serialize(responses[type]));
+			s_sink += request.id + response.intResult;
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static byte[] serialize(TCPMessage m) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(new LegacyMessage(m));
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	private static LegacyMessage deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return (LegacyMessage) in.readObject();
+	}
+
+	// The fields of TCPMessage when it was sent with Java serialization, plus the fields added since
+	private static class LegacyMessage implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		public MessageType type;
+
+		public int id;
+		public int flightNum;
+		public int flightSeats;
+		public int flightPrice;
+		public String location;
+		public int numCars;
+		public int price;
+		public int numRooms;
+		public int cid;
+		public int customerID;
+		public int flightNumber;
+		public Vector<String> flightNumbers;
+		public boolean car;
+		public boolean room;
+		public HashMap<String,Integer> reservedKeysMap;
+		public Vector<String> reservedKeys;
+		public Vector<Integer> prices;
+
+		public boolean booleanResult;
+		public int intResult;
+		public String stringResult;
+		public Vector<Integer> vectorIntResult;
+
+		LegacyMessage(TCPMessage m) {
+			type = m.type;
+			id = m.id;
+			flightNum = m.flightNum;
+			flightSeats = m.flightSeats;
+			flightPrice = m.flightPrice;
+			location = m.location;
+			numCars = m.numCars;
+			price = m.price;
+			numRooms = m.numRooms;
+			cid = m.cid;
+			customerID = m.customerID;
+			flightNumber = m.flightNumber;
+			flightNumbers = m.flightNumbers;
+			car = m.car;
+			room = m.room;
+			reservedKeysMap = m.reservedKeysMap;
+			reservedKeys = m.reservedKeys;
+			prices = m.prices;
+			booleanResult = m.booleanResult;
+			intResult = m.intResult;
+			stringResult = m.stringResult;
+			vectorIntResult = m.vectorIntResult;
+		}
+	}
+}
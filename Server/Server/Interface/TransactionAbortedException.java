@@ -0,0 +1,25 @@
+package Server.Interface;
+
+import java.rmi.RemoteException;
+
+/* The transaction was aborted (e.g. it was chosen as a deadlock victim): its changes at the server
+ * that threw this were rolled back and its locks there released. The client should abort it to
+ * release the rest. It is a RemoteException so that every IResourceManager method can throw it. */
+
+public class TransactionAbortedException extends RemoteException
+{
+	private static final long serialVersionUID = 1L;
+
+	private int m_xid = 0;
+
+	public TransactionAbortedException(int xid, String msg)
+	{
+		super("The transaction " + xid + " was aborted: " + msg);
+		m_xid = xid;
+	}
+
+	public int getXId()
+	{
+		return m_xid;
+	}
+}
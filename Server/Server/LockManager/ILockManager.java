@@ -0,0 +1,37 @@
+package Server.LockManager;
+
+/* Lock manager used by the resource managers and the middleware for strict two-phase locking.
+ *
+ * -Dlock.manager=table  (default) LockManager, lock tables guarded by a monitor per table
+ * -Dlock.manager=queued QueuedLockManager, a FIFO queue per data item and parked waiters
+ * -Dlock.shards=N       (with lock.manager=table) split the lock space by data item hash into N
+ *                       LockManagers with their own tables; 1 by default
+ *
+ * Every lock manager instance has its own lock space. */
+
+public interface ILockManager
+{
+	// Locks the data item for the transaction, waiting for conflicting locks to be released. Locking
+	// an item again is a no-op, and a READ lock held by the transaction is converted to a WRITE lock.
+	// Returns false if a parameter is invalid; throws DeadlockException if the transaction must give
+	// up (deadlock victim or timeout).
+	public boolean Lock(int xid, String data, TransactionLockObject.LockType lockType) throws DeadlockException;
+
+	// Releases all the locks of the transaction
+	public boolean UnlockAll(int xid);
+
+	// Creates the configured lock manager
+	public static ILockManager create()
+	{
+		if (System.getProperty("lock.manager", "table").equals("queued"))
+		{
+			return new QueuedLockManager();
+		}
+		int shards = Integer.getInteger("lock.shards", 1);
+		if (shards > 1)
+		{
+			return new ShardedLockManager(shards);
+		}
+		return new LockManager();
+	}
+}
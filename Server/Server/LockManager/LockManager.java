@@ -3,20 +3,36 @@ package Server.LockManager;
 import Server.Common.*;
 
 import java.util.BitSet;
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
-public class LockManager
+public class LockManager implements ILockManager
 {
-	private static int TABLE_SIZE = 2039;
 	private static int DEADLOCK_TIMEOUT = 10000;
 
-	private static TPHashTable lockTable = new TPHashTable(LockManager.TABLE_SIZE);
-	private static TPHashTable stampTable = new TPHashTable(LockManager.TABLE_SIZE);
-	private static TPHashTable waitTable = new TPHashTable(LockManager.TABLE_SIZE);
+	// Longest wait before checking a lock again: a lock released between the conflict check and the
+	// wait (e.g. by a deadlock victim aborting) sends its notify before anybody waits for it
+	private static int WAIT_SLICE = 50;
+
+	// Lock state of this lock manager only: each resource manager has its own lock space
+	private LockTable<TransactionLockObject> lockTable = new LockTable<TransactionLockObject>();
+	private HashMap<Integer, TimeObject> stampTable = new HashMap<Integer, TimeObject>();
+	private LockTable<WaitLockObject> waitTable = new LockTable<WaitLockObject>();
+	private WaitForGraph waitForGraph;
 
 	public LockManager()
+	{
+		this(new WaitForGraph());
+	}
+
+	// Lock manager of one shard of a ShardedLockManager: the shards share the wait-for graph, so
+	// that cycles across shards are found
+	LockManager(WaitForGraph waitForGraph)
 	{
 		super();
+		this.waitForGraph = waitForGraph;
 	}
 
 	public boolean Lock(int xid, String data, TransactionLockObject.LockType lockType) throws DeadlockException
@@ -34,10 +50,9 @@ public class LockManager
 			return false;
 		}
 
-		Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") called");
+		Trace.info(() -> "LM::lock(" + xid + ", " + data + ", " + lockType + ") called");
 
-		// Two objects in lock table for easy lookup
-		TransactionLockObject xLockObject = new TransactionLockObject(xid, data, lockType);
+		// The lock table indexes the lock both by transaction and by data item
 		DataLockObject dataLockObject = new DataLockObject(xid, data, lockType);
 
 		// Return true when there is no lock conflict or throw a deadlock exception
@@ -52,8 +67,7 @@ public class LockManager
 						// No lock conflict
 						synchronized (this.stampTable) {
 							// Remove the timestamp (if any) for this lock request
-							TimeObject timeObject = new TimeObject(xid);
-							this.stampTable.remove(timeObject);
+							this.stampTable.remove(xid);
 						}
 						synchronized (this.waitTable) {
 							// Remove the entry for this transaction from waitTable (if it
@@ -61,18 +75,26 @@ public class LockManager
 							WaitLockObject waitLockObject = new WaitLockObject(xid, data, lockType);
 							this.waitTable.remove(waitLockObject);
 						}
+						waitForGraph.removeWaiting(xid);
 
 						if (bConvert.get(0) == true) {
-							//TODO: Lock conversion 
-							// Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") converted");
+							// Lock conversion: upgrade the READ lock of the transaction in place
+							TransactionLockObject readLock = this.lockTable.get(xid, data);
+							readLock.setLockType(TransactionLockObject.LockType.LOCK_WRITE);
+
+							Trace.info(() -> "LM::lock(" + xid + ", " + data + ", " + lockType + ") converted");
 						} else {
 							// Lock request that is not lock conversion
-							this.lockTable.add(xLockObject);
 							this.lockTable.add(dataLockObject);
 
-							Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") granted");
+							Trace.info(() -> "LM::lock(" + xid + ", " + data + ", " + lockType + ") granted");
 						}
 					}
+					else {
+						// Lock conflict: record what the transaction waits for and check whether
+						// waiting would deadlock
+						DetectDeadlock(dataLockObject);
+					}
 				}
 				if (bConflict) {
 					// Lock conflict exists, wait
@@ -85,7 +107,7 @@ public class LockManager
 		}
 		catch (RedundantLockRequestException redundantlockrequest) {
 			// Ignore redundant lock requests
-			Trace.info("LM::lock(" + xid + ", " + data + ", " + lockType + ") " + redundantlockrequest.getLocalizedMessage());
+			Trace.info(() -> "LM::lock(" + xid + ", " + data + ", " + lockType + ") " + redundantlockrequest.getLocalizedMessage());
 			return true;
 		} 
 
@@ -101,46 +123,68 @@ public class LockManager
 			return false;
 		}
 
-		TransactionLockObject lockQuery = new TransactionLockObject(xid, "", TransactionLockObject.LockType.LOCK_UNKNOWN); // Only used in elements() call below.
 		synchronized(this.lockTable) {
-			Vector vect = this.lockTable.elements(lockQuery);
+			waitForGraph.removeTransaction(xid);
+
+			// Shrinks as the locks are removed
+			List<TransactionLockObject> vect = this.lockTable.elements(xid);
 
 			TransactionLockObject xLockObject;
-			Vector waitVector;
+			List<WaitLockObject> waitVector;
 			WaitLockObject waitLockObject;
-			int size = vect.size();
 
-			for (int i = (size - 1); i >= 0; i--)
+			for (int i = vect.size() - 1; i >= 0; i--)
 			{
-				xLockObject = (TransactionLockObject)vect.elementAt(i);
+				xLockObject = vect.get(i);
 				this.lockTable.remove(xLockObject);
 
 				Trace.info("LM::unlock(" + xid + ", " + xLockObject.getDataName() + ", " + xLockObject.getLockType() + ") unlocked");
 
-				DataLockObject dataLockObject = new DataLockObject(xLockObject.getXId(), xLockObject.getDataName(), xLockObject.getLockType());
-				this.lockTable.remove(dataLockObject);
+				String data = xLockObject.getDataName();
 
 				// Check if there are any waiting transactions
 				synchronized(this.waitTable) {
-					// Get all the transactions waiting on this dataLock
-					waitVector = this.waitTable.elements(dataLockObject);
-					int waitSize = waitVector.size();
-					for (int j = 0; j < waitSize; j++)
+					// A waiting lock conversion goes before the other waiting transactions: wake it up
+					// once it holds the only lock left on the data item. It stays in waitTable until
+					// granted, which keeps new lock requests out meanwhile.
+					List<TransactionLockObject> holders = this.lockTable.elements(data);
+					WaitLockObject conversion = waitingConversion(-1, holders);
+					if (conversion != null)
 					{
-						waitLockObject = (WaitLockObject)waitVector.elementAt(j);
+						if (holders.size() == 1)
+						{
+							try {
+								synchronized(conversion.getThread()) {
+									conversion.getThread().notify();
+								}
+							}
+							catch (Exception e) {
+								System.out.println("Exception on unlock\n" + e.getMessage());
+							}
+						}
+						continue;
+					}
+
+					// Get all the transactions waiting on this dataLock, in arrival order. The list shrinks
+					// as the woken up transactions are removed, so the next one is always the first.
+					waitVector = this.waitTable.elements(data);
+					boolean first = true;
+					while (!waitVector.isEmpty())
+					{
+						waitLockObject = waitVector.get(0);
 						if (waitLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
 						{
-							if (j == 0)
+							if (first)
 							{
 								// Get all other transactions which have locks on the
 								// data item just unlocked
-								Vector vect1 = this.lockTable.elements(dataLockObject);
+								List<TransactionLockObject> vect1 = this.lockTable.elements(data);
 								int vectlSize = vect1.size();
 
 								boolean free = true;
 								for (int k = 0; k < vectlSize; k++)
 								{
-									DataLockObject l_dl = (DataLockObject)vect1.elementAt(k);
+									TransactionLockObject l_dl = vect1.get(k);
 									if (l_dl.getXId() != waitLockObject.getXId())
 									{
 										// Some other transaction still has a lock on the data item
@@ -175,6 +219,7 @@ public class LockManager
 						{
 							// Remove interrupted thread from waitTable
 							this.waitTable.remove(waitLockObject);    
+							first = false;
 
 							try {
 								synchronized (waitLockObject.getThread()) {
@@ -201,13 +246,13 @@ public class LockManager
 	// is set. 
 	private boolean LockConflict(DataLockObject dataLockObject, BitSet bitset) throws DeadlockException, RedundantLockRequestException
 	{
-		Vector vect = this.lockTable.elements(dataLockObject);
+		List<TransactionLockObject> vect = this.lockTable.elements(dataLockObject.getDataName());
 		int size = vect.size();
 
 		// As soon as a lock that conflicts with the current lock request is found, return true
 		for (int i = 0; i < size; i++)
 		{
-			DataLockObject l_dataLockObject = (DataLockObject)vect.elementAt(i);
+			TransactionLockObject l_dataLockObject = vect.get(i);
 			if (dataLockObject.getXId() == l_dataLockObject.getXId())
 			{    
 				// The transaction already has a lock on this data item which means that it is either
@@ -226,8 +271,14 @@ public class LockManager
 					// (1) transaction already had a READ lock
 					// (2) transaction already had a WRITE lock
 					// Seeing the comments at the top of this function might be helpful
+					if (l_dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_WRITE)
+					{
+						throw new RedundantLockRequestException(dataLockObject.getXId(), "redundant WRITE lock request");
+					}
 
-					//TODO: Lock conversion
+					// The transaction is the only reader: convert its READ lock, unless another
+					// transaction also holds a lock (checked by the rest of the loop)
+					bitset.set(0);
 				}
 			} 
 			else if (dataLockObject.getLockType() == TransactionLockObject.LockType.LOCK_READ)
@@ -236,7 +287,7 @@ public class LockManager
 				{
 					// Transaction is requesting a READ lock and some other transaction
 					// already has a WRITE lock on it ==> conflict
-					Trace.info("LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want READ, someone has WRITE");
+					Trace.info(() -> "LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want READ, someone has WRITE");
 					return true;
 				}
 			}
@@ -244,19 +295,98 @@ public class LockManager
 			{
 				// Transaction is requesting a WRITE lock and some other transaction has either
 				// a READ or a WRITE lock on it ==> conflict
-				Trace.info("LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want WRITE, someone has READ or WRITE");
+				Trace.info(() -> "LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Want WRITE, someone has READ or WRITE");
 				return true;
 			}
 		}
 
+		// A transaction waiting to convert its READ lock goes first: granting new locks would keep it
+		// waiting for as long as new readers keep coming
+		if (!bitset.get(0) && waitingConversion(dataLockObject.getXId(), vect) != null)
+		{
+			Trace.info(() -> "LM::lockConflict(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ") Lock conversion pending");
+			return true;
+		}
+
 		// No conflicting lock found, return false
 		return false;
 
 	}
 
+	// Returns the request of a transaction (other than xid) waiting to convert its lock in locks
+	// (the locks on a data item) to a WRITE lock, or null
+	private WaitLockObject waitingConversion(int xid, List<TransactionLockObject> locks)
+	{
+		if (locks.isEmpty())
+		{
+			return null;
+		}
+
+		synchronized (this.waitTable) {
+			List<WaitLockObject> waitVector = this.waitTable.elements(locks.get(0).getDataName());
+			for (int i = 0; i < waitVector.size(); i++)
+			{
+				WaitLockObject waitLockObject = waitVector.get(i);
+				if (waitLockObject.getXId() == xid || waitLockObject.getLockType() != TransactionLockObject.LockType.LOCK_WRITE)
+				{
+					continue;
+				}
+				for (int j = 0; j < locks.size(); j++)
+				{
+					if (locks.get(j).getXId() == waitLockObject.getXId())
+					{
+						return waitLockObject;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	// Adds the edges of a blocked lock request to the wait-for graph and looks for a cycle through
+	// the requesting transaction. The youngest transaction of a cycle (the highest xid) is the victim:
+	// if it is the requester, DeadlockException is thrown right away, otherwise the victim is woken up
+	// to give up its own lock request. Called under lockTable's monitor.
+	private void DetectDeadlock(DataLockObject dataLockObject) throws DeadlockException
+	{
+		int xid = dataLockObject.getXId();
+		List<TransactionLockObject> vect = this.lockTable.elements(dataLockObject.getDataName());
+		HashSet<Integer> holders = new HashSet<Integer>();
+		for (int i = 0; i < vect.size(); i++)
+		{
+			TransactionLockObject l_dataLockObject = vect.get(i);
+			if (l_dataLockObject.getXId() != xid)
+			{
+				holders.add(l_dataLockObject.getXId());
+			}
+		}
+		// A pending lock conversion also blocks the request, see LockConflict
+		WaitLockObject conversion = waitingConversion(xid, vect);
+		if (conversion != null)
+		{
+			holders.add(conversion.getXId());
+		}
+
+		waitForGraph.setWaiting(xid, holders, Thread.currentThread());
+		List<Integer> cycle = waitForGraph.findCycle(xid);
+		if (cycle == null)
+		{
+			return;
+		}
+
+		int victim = Collections.max(cycle);
+		Trace.info(() -> "LM::detectDeadlock(" + xid + ", " + dataLockObject.getDataName() + ") wait-for cycle " + cycle + ", victim " + victim);
+		if (victim == xid)
+		{
+			WaitLockObject waitLockObject = new WaitLockObject(xid, dataLockObject.getDataName(), dataLockObject.getLockType());
+			cleanupDeadlock(new TimeObject(xid), waitLockObject, "wait-for cycle " + cycle);
+		}
+		waitForGraph.abortWaiting(victim);
+	}
+
 	private void WaitLock(DataLockObject dataLockObject) throws DeadlockException
 	{
-		Trace.info("LM::waitLock(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ", " + dataLockObject.getLockType() + ") called");
+		Trace.info(() -> "LM::waitLock(" + dataLockObject.getXId() + ", " + dataLockObject.getDataName() + ", " + dataLockObject.getLockType() + ") called");
 
 		// Check timestamp or add a new one.
 		//
@@ -270,23 +400,22 @@ public class LockManager
 		WaitLockObject waitLockObject = new WaitLockObject(dataLockObject.getXId(), dataLockObject.getDataName(), dataLockObject.getLockType(), thisThread);
 
 		synchronized (this.stampTable) {
-			Vector vect = this.stampTable.elements(timeObject);
-			if (vect.size() == 0)
+			TimeObject prevStamp = this.stampTable.get(timeObject.getXId());
+			if (prevStamp == null)
 			{
 				// add the time stamp for this lock request to stampTable
-				this.stampTable.add(timeObject);
+				this.stampTable.put(timeObject.getXId(), timeObject);
 				timestamp = timeObject;
 			}
-			else if (vect.size() == 1)
+			else
 			{
 				// Lock operation could have timed out; check for deadlock
-				TimeObject prevStamp = (TimeObject)vect.firstElement();
 				timestamp = prevStamp;
 				timeBlocked = timeObject.getTime() - prevStamp.getTime();
 				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT)
 				{
 					// The transaction has been waiting for a period greater than the timeout period
-					cleanupDeadlock(prevStamp, waitLockObject);
+					cleanupDeadlock(prevStamp, waitLockObject, "Sleep timeout: deadlocked");
 				}
 			}
 			// Shouldn't be more than one time stamp per transaction because the transaction can be blocked
@@ -303,35 +432,48 @@ public class LockManager
 			// Else lock manager already knows the transaction is waiting
 		}
 
+		// The deadlock victims found by DetectDeadlock give up at once; the timeout only catches what
+		// the wait-for graph does not see
+		boolean victim = false;
 		synchronized (thisThread) {
 			try {
-				thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-				TimeObject currTime = new TimeObject(dataLockObject.getXId());
-				timeBlocked = currTime.getTime() - timestamp.getTime();
-				// Check if the transaction has been waiting for a period greater than the timeout period
-				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-					cleanupDeadlock(timestamp, waitLockObject);
-				} else {
-					return;
+				victim = waitForGraph.isVictim(dataLockObject.getXId());
+				if (!victim) {
+					thisThread.wait(Math.min(LockManager.WAIT_SLICE, LockManager.DEADLOCK_TIMEOUT - timeBlocked));
+					victim = waitForGraph.isVictim(dataLockObject.getXId());
+				}
+				if (!victim) {
+					TimeObject currTime = new TimeObject(dataLockObject.getXId());
+					timeBlocked = currTime.getTime() - timestamp.getTime();
+					// Check if the transaction has been waiting for a period greater than the timeout period
+					if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
+						cleanupDeadlock(timestamp, waitLockObject, "Sleep timeout: deadlocked");
+					} else {
+						return;
+					}
 				}
 			}
 			catch (InterruptedException e) {
 				System.out.println("Thread interrupted");
 			}
 		}
+		if (victim) {
+			cleanupDeadlock(timestamp, waitLockObject, "chosen as the victim of a wait-for cycle");
+		}
 	}
 
 
 	// CleanupDeadlock cleans up stampTable and waitTable, and throws DeadlockException
-	private void cleanupDeadlock(TimeObject timeObject, WaitLockObject waitLockObject) throws DeadlockException
+	private void cleanupDeadlock(TimeObject timeObject, WaitLockObject waitLockObject, String reason) throws DeadlockException
 	{
-		Trace.info("LM::deadlock(" + waitLockObject.getXId() + ", " + waitLockObject.getDataName() + ", " + waitLockObject.getLockType() + ") called");
+		waitForGraph.removeWaiting(waitLockObject.getXId());
+		Trace.info(() -> "LM::deadlock(" + waitLockObject.getXId() + ", " + waitLockObject.getDataName() + ", " + waitLockObject.getLockType() + ") called");
 		synchronized (this.stampTable) {
 			synchronized (this.waitTable) {
-				this.stampTable.remove(timeObject);
+				this.stampTable.remove(timeObject.getXId());
 				this.waitTable.remove(waitLockObject);
 			}
 		}
-		throw new DeadlockException(waitLockObject.getXId(), "Sleep timeout: deadlocked");
+		throw new DeadlockException(waitLockObject.getXId(), reason);
 	}
 }
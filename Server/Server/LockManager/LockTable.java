@@ -0,0 +1,233 @@
+package Server.LockManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/* Lock table for the Lock Manager: every lock is stored once and indexed both by transaction and
+ * by data item, so that a transaction's locks and a data item's locks are found without scanning
+ * and without mixing up transactions and data items whose hashes collide. Both indexes grow as
+ * needed and drop the entries of transactions and data items left without locks.
+ *
+ * Lookups return the table's own lists, in insertion order, instead of copies: they must not be
+ * modified and are only valid until the table changes. The table is not synchronized; callers
+ * synchronize on it. */
+
+public class LockTable<T extends TransactionLockObject>
+{
+	private static final int INITIAL_CAPACITY = 64;		// power of two
+
+	private HashMap<String, ArrayList<T>> m_byData = new HashMap<String, ArrayList<T>>(INITIAL_CAPACITY);
+	private XIdIndex<T> m_byXId = new XIdIndex<T>(INITIAL_CAPACITY);
+	private int m_size;
+
+	public void add(T lock)
+	{
+		if (lock == null) return;
+
+		ArrayList<T> dataLocks = m_byData.get(lock.m_data);
+		if (dataLocks == null)
+		{
+			dataLocks = new ArrayList<T>(4);
+			m_byData.put(lock.m_data, dataLocks);
+		}
+		dataLocks.add(lock);
+		m_byXId.bucket(lock.getXId()).add(lock);
+		m_size++;
+	}
+
+	// Removes the lock equal to the given one (same transaction, data item and lock type)
+	public boolean remove(T lock)
+	{
+		if (lock == null) return false;
+
+		ArrayList<T> dataLocks = m_byData.get(lock.m_data);
+		if (dataLocks == null || !dataLocks.remove(lock))
+		{
+			return false;
+		}
+		if (dataLocks.isEmpty())
+		{
+			m_byData.remove(lock.m_data);
+		}
+		m_byXId.remove(lock);
+		m_size--;
+		return true;
+	}
+
+	public boolean contains(T lock)
+	{
+		if (lock == null) return false;
+
+		ArrayList<T> dataLocks = m_byData.get(lock.m_data);
+		return dataLocks != null && dataLocks.contains(lock);
+	}
+
+	// Returns the lock of the transaction on the data item, whatever its type, or null
+	public T get(int xid, String data)
+	{
+		List<T> xidLocks = m_byXId.get(xid);
+		for (int i = 0; i < xidLocks.size(); i++)
+		{
+			T lock = xidLocks.get(i);
+			if (lock.m_data.equals(data))
+			{
+				return lock;
+			}
+		}
+		return null;
+	}
+
+	// The locks on the data item
+	public List<T> elements(String data)
+	{
+		ArrayList<T> dataLocks = m_byData.get(data);
+		return dataLocks == null ? Collections.<T>emptyList() : dataLocks;
+	}
+
+	// The locks of the transaction
+	public List<T> elements(int xid)
+	{
+		return m_byXId.get(xid);
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	// Open-addressing hash table from transaction ids to their locks, keyed by plain ints so that
+	// lookups neither box the xid nor compare hashes
+	private static class XIdIndex<T extends TransactionLockObject>
+	{
+		private static final int EMPTY = -1;		// transaction ids are never negative
+
+		private int[] m_keys;
+		private ArrayList<T>[] m_buckets;
+		private int m_count;
+
+		XIdIndex(int capacity)
+		{
+			allocate(capacity);
+		}
+
+		List<T> get(int xid)
+		{
+			int slot = find(xid);
+			return slot < 0 ? Collections.<T>emptyList() : m_buckets[slot];
+		}
+
+		// Returns the locks of the transaction, adding an empty list if it has none
+		ArrayList<T> bucket(int xid)
+		{
+			int slot = find(xid);
+			if (slot >= 0)
+			{
+				return m_buckets[slot];
+			}
+			if ((m_count + 1) * 3 > m_keys.length * 2)
+			{
+				resize();
+			}
+			slot = home(xid);
+			while (m_keys[slot] != EMPTY)
+			{
+				slot = (slot + 1) & (m_keys.length - 1);
+			}
+			m_keys[slot] = xid;
+			m_buckets[slot] = new ArrayList<T>(4);
+			m_count++;
+			return m_buckets[slot];
+		}
+
+		void remove(T lock)
+		{
+			int slot = find(lock.getXId());
+			if (slot < 0)
+			{
+				return;
+			}
+			m_buckets[slot].remove(lock);
+			if (m_buckets[slot].isEmpty())
+			{
+				delete(slot);
+				m_count--;
+			}
+		}
+
+		private int home(int xid)
+		{
+			return (xid * 0x9E3779B9 >>> 16) & (m_keys.length - 1);
+		}
+
+		private int find(int xid)
+		{
+			int mask = m_keys.length - 1;
+			for (int slot = home(xid); m_keys[slot] != EMPTY; slot = (slot + 1) & mask)
+			{
+				if (m_keys[slot] == xid)
+				{
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		// Empties a slot, shifting back the following entries of the probe sequence so that lookups
+		// never stop early at the hole
+		private void delete(int slot)
+		{
+			int mask = m_keys.length - 1;
+			int hole = slot;
+			int next = slot;
+			while (true)
+			{
+				next = (next + 1) & mask;
+				if (m_keys[next] == EMPTY)
+				{
+					break;
+				}
+				int home = home(m_keys[next]);
+				boolean between = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+				if (!between)
+				{
+					m_keys[hole] = m_keys[next];
+					m_buckets[hole] = m_buckets[next];
+					hole = next;
+				}
+			}
+			m_keys[hole] = EMPTY;
+			m_buckets[hole] = null;
+		}
+
+		private void resize()
+		{
+			int[] keys = m_keys;
+			ArrayList<T>[] buckets = m_buckets;
+			allocate(keys.length * 2);
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] != EMPTY)
+				{
+					int slot = home(keys[i]);
+					while (m_keys[slot] != EMPTY)
+					{
+						slot = (slot + 1) & (m_keys.length - 1);
+					}
+					m_keys[slot] = keys[i];
+					m_buckets[slot] = buckets[i];
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void allocate(int capacity)
+		{
+			m_keys = new int[capacity];
+			Arrays.fill(m_keys, EMPTY);
+			m_buckets = (ArrayList<T>[])new ArrayList<?>[capacity];
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package Server.LockManager;
+
+import java.util.List;
+import java.util.Vector;
+
+/* Compares the lock/unlock throughput of LockTable with the former TPHashTable, replaying the
+ * table operations LockManager performs: a lock request looks up the locks on the data item and
+ * adds the lock, and UnlockAll looks up the locks of the transaction and removes them one by one,
+ * checking the locks left on each data item.
+ *
+ * Usage: java Server.LockManager.LockTableBenchmark [<transactions> [<locks per transaction> [<data items>]]]
+ *
+ * Each round runs the transactions in batches of 64 concurrent ones on a single thread, after
+ * warm-up rounds, and prints the lock + unlock operations per second of both tables. */
+
+public class LockTableBenchmark
+{
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	private static final int BATCH = 64;
+
+	private static volatile int s_sink;
+
+	public static void main(String[] args)
+	{
+		int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int locks = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int items = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+		String[] data = new String[items];
+		for (int i = 0; i < items; i++)
+		{
+			data[i] = "flight-" + i;
+		}
+
+		System.out.println("LockTableBenchmark: " + transactions + " transactions of " + locks + " locks on " + items + " data items");
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long tpHashTable = run(transactions, locks, data, false);
+			long lockTable = run(transactions, locks, data, true);
+			if (round >= WARMUP_ROUNDS)
+			{
+				long operations = 2L * transactions * locks;
+				System.out.println(String.format("round %2d: TPHashTable %,12d ops/s   LockTable %,12d ops/s",
+					round - WARMUP_ROUNDS + 1, operations * 1000000000L / tpHashTable, operations * 1000000000L / lockTable));
+			}
+		}
+	}
+
+	// Returns the elapsed nanoseconds
+	private static long run(int transactions, int locks, String[] data, boolean lockTable)
+	{
+		TPHashTable tpHashTable = new TPHashTable(2039);
+		LockTable<TransactionLockObject> table = new LockTable<TransactionLockObject>();
+		int item = 0;
+
+		long start = System.nanoTime();
+		for (int first = 1; first <= transactions; first += BATCH)
+		{
+			int last = Math.min(first + BATCH - 1, transactions);
+			for (int xid = first; xid <= last; xid++)
+			{
+				for (int i = 0; i < locks; i++)
+				{
+					String name = data[item];
+					item = (item + 7919) % data.length;
+					if (lockTable)
+					{
+						s_sink += table.elements(name).size();
+						table.add(new DataLockObject(xid, name, TransactionLockObject.LockType.LOCK_READ));
+					}
+					else
+					{
+						s_sink += tpHashTable.elements(new DataLockObject(xid, name, TransactionLockObject.LockType.LOCK_READ)).size();
+						tpHashTable.add(new TransactionLockObject(xid, name, TransactionLockObject.LockType.LOCK_READ));
+						tpHashTable.add(new DataLockObject(xid, name, TransactionLockObject.LockType.LOCK_READ));
+					}
+				}
+			}
+			for (int xid = first; xid <= last; xid++)
+			{
+				if (lockTable)
+				{
+					List<TransactionLockObject> held = table.elements(xid);
+					for (int i = held.size() - 1; i >= 0; i--)
+					{
+						TransactionLockObject lock = held.get(i);
+						table.remove(lock);
+						s_sink += table.elements(lock.getDataName()).size();
+					}
+				}
+				else
+				{
+					Vector<TransactionObject> held = tpHashTable.elements(new TransactionLockObject(xid, "", TransactionLockObject.LockType.LOCK_UNKNOWN));
+					for (int i = held.size() - 1; i >= 0; i--)
+					{
+						TransactionLockObject lock = (TransactionLockObject)held.elementAt(i);
+						DataLockObject dataLock = new DataLockObject(lock.getXId(), lock.getDataName(), lock.getLockType());
+						tpHashTable.remove(lock);
+						tpHashTable.remove(dataLock);
+						s_sink += tpHashTable.elements(dataLock).size();
+					}
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
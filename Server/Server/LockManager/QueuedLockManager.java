@@ -0,0 +1,330 @@
+package Server.LockManager;
+
+import Server.Common.Trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/* Lock manager keeping a lock head per data item in a concurrent map, instead of lock tables
+ * guarded by global monitors: lock requests on different items never contend. A lock head holds
+ * the transactions granted a lock on the item and a FIFO queue of the waiting requests, which
+ * park until the request is granted. A request is granted in arrival order once it is compatible
+ * with the granted locks; a waiting READ lock conversion goes to the front of the queue.
+ *
+ * Deadlocks are detected with a wait-for graph as in LockManager, and a request waiting longer
+ * than DEADLOCK_TIMEOUT also gives up. */
+
+public class QueuedLockManager implements ILockManager
+{
+	private static long DEADLOCK_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(10000);
+
+	private ConcurrentHashMap<String, LockHead> m_heads = new ConcurrentHashMap<String, LockHead>();
+
+	// Lock heads of the items each transaction holds a lock on, for UnlockAll
+	private ConcurrentHashMap<Integer, Set<LockHead>> m_held = new ConcurrentHashMap<Integer, Set<LockHead>>();
+
+	private WaitForGraph m_waitForGraph = new WaitForGraph();
+
+	public QueuedLockManager()
+	{
+		super();
+	}
+
+	public boolean Lock(int xid, String data, TransactionLockObject.LockType lockType) throws DeadlockException
+	{
+		// if any parameter is invalid, then return false
+		if (xid < 0 || data == null || lockType == TransactionLockObject.LockType.LOCK_UNKNOWN)
+		{
+			return false;
+		}
+
+		Trace.info(() -> "QLM::lock(" + xid + ", " + data + ", " + lockType + ") called");
+
+		LockHead head;
+		Request request;
+		while (true)
+		{
+			head = m_heads.computeIfAbsent(data, LockHead::new);
+			synchronized (head) {
+				if (head.removed)
+				{
+					// Emptied and dropped by UnlockAll in the meantime: use the new lock head
+					continue;
+				}
+
+				TransactionLockObject.LockType held = head.holders.get(xid);
+				if (held == TransactionLockObject.LockType.LOCK_WRITE || held == lockType)
+				{
+					Trace.info(() -> "QLM::lock(" + xid + ", " + data + ", " + lockType + ") redundant lock request");
+					return true;
+				}
+
+				// A conversion only waits for the other readers; other requests wait for the queue too
+				boolean conversion = held != null;
+				if ((conversion || head.queue.isEmpty()) && head.compatible(xid, lockType))
+				{
+					head.holders.put(xid, lockType);
+					m_held.computeIfAbsent(xid, k -> ConcurrentHashMap.newKeySet()).add(head);
+					Trace.info(() -> "QLM::lock(" + xid + ", " + data + ", " + lockType + ") " + (conversion ? "converted" : "granted"));
+					break;
+				}
+
+				request = new Request(xid, lockType, Thread.currentThread());
+				if (conversion)
+				{
+					// The requests already waiting now wait for the conversion too
+					head.queue.addFirst(request);
+					updateWaiting(head, request);
+				}
+				else
+				{
+					head.queue.addLast(request);
+				}
+				detectDeadlock(head, request);
+			}
+
+			awaitLock(head, request);
+			return true;
+		}
+
+		return true;
+	}
+
+	// Remove all locks for this transaction
+	public boolean UnlockAll(int xid)
+	{
+		// If any parameter is invalid, then return false
+		if (xid < 0)
+		{
+			return false;
+		}
+
+		m_waitForGraph.removeTransaction(xid);
+
+		// A lock granted while the held locks are being released lands in a new set: go again
+		Set<LockHead> heads;
+		while ((heads = m_held.remove(xid)) != null)
+		{
+			ArrayList<Request> granted = new ArrayList<Request>();
+			for (LockHead head : heads)
+			{
+				synchronized (head) {
+					head.holders.remove(xid);
+					grantWaiting(head, granted);
+					dropIfUnused(head);
+				}
+				Trace.info(() -> "QLM::unlock(" + xid + ", " + head.data + ") unlocked");
+			}
+			wakeUp(granted);
+		}
+		return true;
+	}
+
+	// Waits (parked) until the request is granted. Gives up if the transaction is chosen as a
+	// deadlock victim or waits longer than DEADLOCK_TIMEOUT.
+	private void awaitLock(LockHead head, Request request) throws DeadlockException
+	{
+		Trace.info(() -> "QLM::waitLock(" + request.xid + ", " + head.data + ", " + request.lockType + ") called");
+
+		long deadline = System.nanoTime() + DEADLOCK_TIMEOUT;
+		while (!request.granted)
+		{
+			if (m_waitForGraph.isVictim(request.xid))
+			{
+				giveUp(head, request, "chosen as the victim of a wait-for cycle");
+				return;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+			{
+				giveUp(head, request, "Sleep timeout: deadlocked");
+				return;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	// Withdraws a waiting request and throws DeadlockException, unless the request was granted in
+	// the meantime
+	private void giveUp(LockHead head, Request request, String reason) throws DeadlockException
+	{
+		ArrayList<Request> granted = new ArrayList<Request>();
+		synchronized (head) {
+			if (request.granted)
+			{
+				return;
+			}
+			// The requests behind it may be compatible with the granted locks
+			head.queue.remove(request);
+			grantWaiting(head, granted);
+			dropIfUnused(head);
+		}
+		wakeUp(granted);
+		m_waitForGraph.removeWaiting(request.xid);
+
+		Trace.info(() -> "QLM::lock(" + request.xid + ", " + head.data + ", " + request.lockType + ") " + reason);
+		throw new DeadlockException(request.xid, reason);
+	}
+
+	// Grants the waiting requests at the front of the queue that are compatible with the granted
+	// locks, adding them to granted; the others wait for the requests granted now. Called under the
+	// lock head's monitor.
+	private void grantWaiting(LockHead head, List<Request> granted)
+	{
+		Iterator<Request> it = head.queue.iterator();
+		while (it.hasNext())
+		{
+			Request request = it.next();
+			if (!head.compatible(request.xid, request.lockType))
+			{
+				break;
+			}
+			it.remove();
+			head.holders.put(request.xid, request.lockType);
+			m_held.computeIfAbsent(request.xid, k -> ConcurrentHashMap.newKeySet()).add(head);
+			request.granted = true;
+			granted.add(request);
+		}
+
+		updateWaiting(head, null);
+	}
+
+	// Updates the wait-for graph after what the requests waiting in the queue (except skip) wait for
+	// has changed. Such a change can close a cycle without any new lock request: the victim is woken
+	// up to give up its lock request. Called under the lock head's monitor.
+	private void updateWaiting(LockHead head, Request skip)
+	{
+		for (Request request : head.queue)
+		{
+			if (request == skip)
+			{
+				continue;
+			}
+			m_waitForGraph.setWaiting(request.xid, head.blockers(request), request.thread);
+			List<Integer> cycle = m_waitForGraph.findCycle(request.xid);
+			if (cycle != null)
+			{
+				int victim = Collections.max(cycle);
+				Trace.info(() -> "QLM::detectDeadlock(" + request.xid + ", " + head.data + ") wait-for cycle " + cycle + ", victim " + victim);
+				m_waitForGraph.abortWaiting(victim);
+			}
+		}
+	}
+
+	// Unparks the threads of granted requests; called outside the lock heads' monitors
+	private void wakeUp(List<Request> granted)
+	{
+		for (Request request : granted)
+		{
+			m_waitForGraph.removeWaiting(request.xid);
+			LockSupport.unpark(request.thread);
+		}
+	}
+
+	// Removes a lock head nobody holds or waits for from the map. Called under its monitor; a
+	// Lock call that already got the head retries with a new one.
+	private void dropIfUnused(LockHead head)
+	{
+		if (head.holders.isEmpty() && head.queue.isEmpty())
+		{
+			head.removed = true;
+			m_heads.remove(head.data, head);
+		}
+	}
+
+	// Adds the edges of a queued request to the wait-for graph and looks for a cycle through the
+	// requesting transaction. The youngest transaction of a cycle (the highest xid) is the victim:
+	// if it is the requester, its request is withdrawn and DeadlockException is thrown, otherwise
+	// the victim is woken up to give up its own lock request. Called under the lock head's monitor.
+	private void detectDeadlock(LockHead head, Request request) throws DeadlockException
+	{
+		int xid = request.xid;
+		m_waitForGraph.setWaiting(xid, head.blockers(request), request.thread);
+		List<Integer> cycle = m_waitForGraph.findCycle(xid);
+		if (cycle == null)
+		{
+			return;
+		}
+
+		int victim = Collections.max(cycle);
+		Trace.info(() -> "QLM::detectDeadlock(" + xid + ", " + head.data + ") wait-for cycle " + cycle + ", victim " + victim);
+		if (victim == xid)
+		{
+			head.queue.remove(request);
+			dropIfUnused(head);
+			m_waitForGraph.removeWaiting(xid);
+			throw new DeadlockException(xid, "wait-for cycle " + cycle);
+		}
+		m_waitForGraph.abortWaiting(victim);
+	}
+
+	// A lock request waiting in a lock head's queue
+	private static class Request
+	{
+		final int xid;
+		final TransactionLockObject.LockType lockType;
+		final Thread thread;
+		volatile boolean granted;
+
+		Request(int xid, TransactionLockObject.LockType lockType, Thread thread)
+		{
+			this.xid = xid;
+			this.lockType = lockType;
+			this.thread = thread;
+		}
+	}
+
+	// The locks on one data item; guarded by its own monitor
+	private static class LockHead
+	{
+		final String data;
+		final HashMap<Integer, TransactionLockObject.LockType> holders = new HashMap<Integer, TransactionLockObject.LockType>(4);
+		final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+		boolean removed;
+
+		LockHead(String data)
+		{
+			this.data = data;
+		}
+
+		// Returns true if the transaction can be granted the lock alongside the other holders
+		boolean compatible(int xid, TransactionLockObject.LockType lockType)
+		{
+			for (Map.Entry<Integer, TransactionLockObject.LockType> holder : holders.entrySet())
+			{
+				if (holder.getKey() != xid && (lockType == TransactionLockObject.LockType.LOCK_WRITE
+					|| holder.getValue() == TransactionLockObject.LockType.LOCK_WRITE))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// The transactions a queued request waits for: the other holders and the requests ahead of it
+		HashSet<Integer> blockers(Request request)
+		{
+			HashSet<Integer> blockers = new HashSet<Integer>(holders.keySet());
+			for (Request ahead : queue)
+			{
+				if (ahead == request)
+				{
+					break;
+				}
+				blockers.add(ahead.xid);
+			}
+			blockers.remove(request.xid);
+			return blockers;
+		}
+	}
+}
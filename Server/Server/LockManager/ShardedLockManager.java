@@ -0,0 +1,46 @@
+package Server.LockManager;
+
+/* Lock manager partitioning the lock space by data item hash into shards, each a LockManager with
+ * its own lock tables and monitors: lock requests on items of different shards do not contend.
+ * The shards share one wait-for graph, so deadlocks spanning several shards are still detected. */
+
+public class ShardedLockManager implements ILockManager
+{
+	private LockManager[] m_shards;
+
+	public ShardedLockManager(int shards)
+	{
+		WaitForGraph waitForGraph = new WaitForGraph();
+		m_shards = new LockManager[shards];
+		for (int i = 0; i < shards; i++)
+		{
+			m_shards[i] = new LockManager(waitForGraph);
+		}
+	}
+
+	public boolean Lock(int xid, String data, TransactionLockObject.LockType lockType) throws DeadlockException
+	{
+		if (data == null)
+		{
+			return false;
+		}
+		return shardFor(data).Lock(xid, data, lockType);
+	}
+
+	// The transaction may hold locks in every shard
+	public boolean UnlockAll(int xid)
+	{
+		boolean result = true;
+		for (LockManager shard : m_shards)
+		{
+			result &= shard.UnlockAll(xid);
+		}
+		return result;
+	}
+
+	private LockManager shardFor(String data)
+	{
+		int h = data.hashCode();
+		return m_shards[Math.floorMod(h ^ (h >>> 16), m_shards.length)];
+	}
+}
@@ -60,9 +60,10 @@ public class TransactionLockObject extends TransactionObject
 		m_data = new String(data);
 	}
 
+	// Strings are immutable: no need for a copy
 	public String getDataName()
 	{
-		return new String(m_data);
+		return m_data;
 	}
 
 	public void setLockType(LockType lockType)
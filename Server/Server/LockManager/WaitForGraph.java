@@ -0,0 +1,107 @@
+package Server.LockManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/* Wait-for graph of the transactions blocked in the lock manager: an edge goes from a waiting
+ * transaction to every transaction holding a lock it waits for. A transaction waits for one lock
+ * request at a time, so its edges are replaced each time it blocks. */
+
+public class WaitForGraph
+{
+	private HashMap<Integer, HashSet<Integer>> m_edges = new HashMap<Integer, HashSet<Integer>>();
+	private HashMap<Integer, Thread> m_threads = new HashMap<Integer, Thread>();
+	private HashSet<Integer> m_victims = new HashSet<Integer>();
+
+	// Records that the transaction (running on thread) waits for the holders
+	public synchronized void setWaiting(int xid, Collection<Integer> holders, Thread thread)
+	{
+		m_edges.put(xid, new HashSet<Integer>(holders));
+		m_threads.put(xid, thread);
+	}
+
+	// The transaction no longer waits (it was granted its lock or gave up). Once it got its lock, it
+	// is no longer part of a cycle either, so it no longer needs to give up as a victim.
+	public synchronized void removeWaiting(int xid)
+	{
+		m_edges.remove(xid);
+		m_threads.remove(xid);
+		m_victims.remove(xid);
+	}
+
+	// The transaction ended: nobody waits for it anymore
+	public synchronized void removeTransaction(int xid)
+	{
+		removeWaiting(xid);
+		for (HashSet<Integer> holders : m_edges.values())
+		{
+			holders.remove(xid);
+		}
+	}
+
+	// Returns the transactions of a cycle going through xid, or null if there is none
+	public synchronized List<Integer> findCycle(int xid)
+	{
+		ArrayList<Integer> path = new ArrayList<Integer>();
+		path.add(xid);
+		return findPath(xid, xid, path, new HashSet<Integer>()) ? path : null;
+	}
+
+	// Depth-first search for a path from "from" to "to"; path holds the transactions visited so far
+	private boolean findPath(int from, int to, ArrayList<Integer> path, HashSet<Integer> visited)
+	{
+		HashSet<Integer> holders = m_edges.get(from);
+		if (holders == null)
+		{
+			return false;
+		}
+		for (int holder : holders)
+		{
+			if (holder == to)
+			{
+				return true;
+			}
+			if (visited.add(holder))
+			{
+				path.add(holder);
+				if (findPath(holder, to, path, visited))
+				{
+					return true;
+				}
+				path.remove(path.size() - 1);
+			}
+		}
+		return false;
+	}
+
+	// Marks a waiting transaction as a deadlock victim and wakes it up, so that it gives up its lock
+	// request (see isVictim). Wakes it up whether it waits on its thread's monitor (LockManager) or
+	// is parked (QueuedLockManager).
+	public void abortWaiting(int xid)
+	{
+		Thread thread;
+		synchronized (this) {
+			thread = m_threads.get(xid);
+			if (thread == null)
+			{
+				return;
+			}
+			m_victims.add(xid);
+		}
+		// Not under this graph's monitor, which the victim takes while holding its thread's monitor
+		synchronized (thread) {
+			thread.notify();
+		}
+		LockSupport.unpark(thread);
+	}
+
+	// Returns true (once) if the transaction was chosen as a deadlock victim
+	public synchronized boolean isVictim(int xid)
+	{
+		return m_victims.remove(xid);
+	}
+}
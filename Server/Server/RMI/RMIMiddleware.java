@@ -24,7 +24,7 @@ public class RMIMiddleware extends Middleware
 		// Create the RMI server entry
 		try {
 			// Create a new Server object
-			RMIMiddleware server = new RMIMiddleware(s_serverName, args[0], args[1], args[2]);
+			RMIMiddleware server = new RMIMiddleware(s_serverName, args[0], args[1], args[2], args[3]);
 
 			// Dynamically generate the stub (client proxy)
 			IResourceManager resourceManager = (IResourceManager)UnicastRemoteObject.exportObject(server, 0);
@@ -66,8 +66,8 @@ public class RMIMiddleware extends Middleware
 		}
 	}
 
-	public RMIMiddleware(String name, String flightsHost, String carsHost, String roomsHost)
+	public RMIMiddleware(String name, String flightsHost, String carsHost, String roomsHost, String customersHost)
 	{
-		super(name, flightsHost, carsHost, roomsHost);
+		super(name, flightsHost, carsHost, roomsHost, customersHost);
 	}
 }
@@ -8,6 +8,7 @@ package Server.RMI;
 import Server.Interface.*;
 import Server.Common.*;
 
+import java.rmi.NotBoundException;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.RemoteException;
@@ -75,4 +76,15 @@ public class RMIResourceManager extends ResourceManager
 	{
 		super(name);
 	}
+
+	// The middleware is bound in the RMI registry of its host
+	protected ICoordinator getCoordinator(String host) throws RemoteException
+	{
+		try {
+			return (ICoordinator)LocateRegistry.getRegistry(host, 33303).lookup(s_rmiPrefix + "Server");
+		}
+		catch (NotBoundException e) {
+			throw new RemoteException("No middleware is bound on " + host, e);
+		}
+	}
 }
@@ -0,0 +1,72 @@
+package Server.TCP;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free latency histogram in microseconds, with the bucket layout of HdrHistogram: values below
+ * SUB_BUCKETS are counted exactly and every larger power of two is split into SUB_BUCKETS / 2 linear
+ * buckets, so a recorded value is known to within about 6% while the whole range up to half an hour
+ * fits in a few hundred counters.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAGNITUDES = 32 - SUB_BUCKET_BITS;
+
+	private AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAGNITUDES * SUB_BUCKETS / 2);
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long micros) {
+		if (micros < 0) micros = 0;
+		counts.incrementAndGet(indexOf(Math.min(micros, Integer.MAX_VALUE)));
+		total.incrementAndGet();
+		sum.addAndGet(micros);
+		max.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = total.get();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	// Returns the upper bound of the bucket holding the given percentile (0-100) of the values
+	public long getPercentile(double percentile) {
+		long count = total.get();
+		if (count == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	// Values below SUB_BUCKETS map to themselves; larger values map to bucket (magnitude, top bits)
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+		return SUB_BUCKETS + (magnitude - 1) * SUB_BUCKETS / 2 + subBucket;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int magnitude = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+		int subBucket = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+		return ((long) (subBucket + 1) << magnitude) - 1;
+	}
+}
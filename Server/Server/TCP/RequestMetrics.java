@@ -0,0 +1,85 @@
+package Server.TCP;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import Server.Interface.MessageType;
+
+/*
+ * Request counters, error counts and latency histograms per MessageType for the requests handled
+ * by a TCP server. The report is returned by a STATS request and can also be written out
+ * periodically (-Dtcp.statsInterval=<seconds>).
+ */
+public class RequestMetrics {
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	private static final RequestMetrics s_shared = new RequestMetrics();
+
+	private AtomicLongArray requests = new AtomicLongArray(TYPES.length);
+	private AtomicLongArray errors = new AtomicLongArray(TYPES.length);
+	private LatencyHistogram[] latencies = new LatencyHistogram[TYPES.length];
+
+	private long startTime = System.currentTimeMillis();
+
+	public RequestMetrics() {
+		for (int i = 0; i < TYPES.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	// The metrics of the requests handled by this process
+	public static RequestMetrics shared() {
+		return s_shared;
+	}
+
+	public void record(MessageType type, long startNanos, boolean error) {
+		int i = type.ordinal();
+		requests.incrementAndGet(i);
+		if (error) errors.incrementAndGet(i);
+		latencies[i].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	// Whether a response counts as an error: a failure, a transaction the server does not know, or
+	// one it aborted
+	public static boolean isError(MessageType responseType) {
+		return responseType == MessageType.ERROR || responseType == MessageType.INVALID_TRANSACTION
+				|| responseType == MessageType.TRANSACTION_ABORTED;
+	}
+
+	// Plain-text table of the requests seen so far; latencies are in microseconds
+	public String report() {
+		StringBuilder s = new StringBuilder();
+		long uptime = (System.currentTimeMillis() - startTime) / 1000;
+		s.append("--- BEGIN request stats (uptime ").append(uptime).append("s) ---\n");
+		s.append(String.format("%-26s %10s %8s %10s %8s %8s %8s %8s%n",
+				"type", "requests", "errors", "mean_us", "p50_us", "p99_us", "p999_us", "max_us"));
+		for (int i = 0; i < TYPES.length; i++) {
+			long count = requests.get(i);
+			if (count == 0) continue;
+
+			LatencyHistogram latency = latencies[i];
+			s.append(String.format("%-26s %10d %8d %10.1f %8d %8d %8d %8d%n", TYPES[i], count, errors.get(i),
+					latency.getMean(), latency.getPercentile(50), latency.getPercentile(99),
+					latency.getPercentile(99.9), latency.getMax()));
+		}
+		s.append("--- END request stats ---");
+		return s.toString();
+	}
+
+	// Writes the report to stdout every interval seconds, from a daemon thread
+	public void startReporting(int intervalSeconds) {
+		Thread reporter = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+				} catch (InterruptedException e) {
+					return;
+				}
+				System.out.println(report());
+			}
+		}, "RequestMetrics-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+}
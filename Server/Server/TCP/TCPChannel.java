@@ -0,0 +1,121 @@
+package Server.TCP;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Server.Common.Trace;
+import Server.Interface.TCPMessage;
+import Server.Interface.TCPMessageCodec;
+
+/*
+ * A long-lived connection to a resource manager over which many requests can be in flight at once.
+ * Every outgoing request is tagged with a correlation id, and a reader thread hands each response
+ * back to the caller waiting on the matching id.
+ */
+public class TCPChannel {
+
+	private String host;
+	private int port;
+
+	private Socket socket;
+	private OutputStream output;
+	private volatile boolean open;
+
+	// Requests sent on this channel that are still waiting for a response, keyed by correlation id
+	private ConcurrentHashMap<Integer, CompletableFuture<TCPMessage>> pending = new ConcurrentHashMap<Integer, CompletableFuture<TCPMessage>>();
+	private AtomicInteger nextCorrelationId = new AtomicInteger();
+
+	public TCPChannel(String host, int port) throws IOException {
+		this.host = host;
+		this.port = port;
+
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		output = socket.getOutputStream();
+		open = true;
+
+		Thread reader = new Thread(this::readResponses, "TCPChannel-" + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	// Sends a request on the channel; the returned future completes when the matching response arrives
+	public CompletableFuture<TCPMessage> send(TCPMessage request) throws IOException {
+
+		// Tag a copy, as the same request object may be forwarded to several resource managers at once
+		TCPMessage tagged = request.copy();
+		int correlationId = nextCorrelationId.incrementAndGet();
+		if (correlationId == 0) correlationId = nextCorrelationId.incrementAndGet();
+		tagged.correlationId = correlationId;
+
+		CompletableFuture<TCPMessage> response = new CompletableFuture<TCPMessage>();
+		pending.put(correlationId, response);
+
+		try {
+			synchronized (output) {
+				if (!open) throw new IOException("Channel to [" + host + ":" + port + "] is closed");
+				TCPMessageCodec.writeRequest(output, tagged);
+			}
+		}
+		catch (IOException e) {
+			pending.remove(correlationId);
+			close(e);
+			throw e;
+		}
+		return response;
+	}
+
+	// Abandons a request whose caller stopped waiting for the response
+	public void cancel(CompletableFuture<TCPMessage> response) {
+		pending.values().remove(response);
+	}
+
+	public void close() {
+		close(new IOException("Channel to [" + host + ":" + port + "] closed"));
+	}
+
+	// Receives responses until the connection fails, completing the future of the matching request
+	private void readResponses() {
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (open) {
+				TCPMessage response = TCPMessageCodec.readResponse(input);
+				CompletableFuture<TCPMessage> waiting = pending.remove(response.correlationId);
+				if (waiting != null) {
+					waiting.complete(response);
+				}
+			}
+		}
+		catch (Exception e) {
+			close(e);
+		}
+	}
+
+	// Closes the connection and fails every request still waiting on it
+	private void close(Exception cause) {
+		synchronized (this) {
+			if (!open && socket.isClosed()) return;
+			open = false;
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				Trace.warn("Error closing RM channel to [" + host + ":" + port + "]");
+			}
+		}
+		for (Integer correlationId : pending.keySet()) {
+			CompletableFuture<TCPMessage> waiting = pending.remove(correlationId);
+			if (waiting != null) waiting.completeExceptionally(cause);
+		}
+	}
+}
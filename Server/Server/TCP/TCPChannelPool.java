@@ -0,0 +1,100 @@
+package Server.TCP;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import Server.Common.Trace;
+import Server.Interface.MessageType;
+import Server.Interface.TCPMessage;
+
+/*
+ * A fixed number of persistent channels to a single resource manager. Requests are spread over the
+ * channels round-robin, and a channel that fails is reopened the next time its slot is picked.
+ */
+public class TCPChannelPool {
+
+	// Seconds to wait for a resource manager to answer a request
+	private static final int WAIT_RESPONSE = 30;
+
+	private String host;
+	private int port;
+
+	private AtomicReferenceArray<TCPChannel> channels;
+	private AtomicInteger nextChannel = new AtomicInteger();
+
+	public TCPChannelPool(String host, int port, int size) {
+		this.host = host;
+		this.port = port;
+		this.channels = new AtomicReferenceArray<TCPChannel>(size);
+	}
+
+	public String getHost() { return host; }
+	public int getPort() { return port; }
+
+	// Sends the message on one of the channels and awaits the response. Returns null if the request
+	// failed or the resource manager answered with an error, like a one-shot connection would.
+	public TCPMessage sendMessageWithResponse(TCPMessage outgoingMessage) {
+
+		TCPChannel channel = null;
+		CompletableFuture<TCPMessage> pendingResponse = null;
+
+		try {
+			channel = getChannel();
+			pendingResponse = channel.send(outgoingMessage);
+			TCPMessage response = pendingResponse.get(WAIT_RESPONSE, TimeUnit.SECONDS);
+
+			// Check that the response is valid
+			if (response != null && response.type != MessageType.ERROR) {
+				return response;
+			}
+			else {
+				return null;
+			}
+		}
+		catch (TimeoutException e) {
+			Trace.warn("No response from RM channel [" + host + ":" + port + "] within " + WAIT_RESPONSE + " seconds");
+			channel.cancel(pendingResponse);
+			return null;
+		}
+		catch (IOException e) {
+			System.out.println("Failed to connect to server using TCP [" + host + ":" + port + "]");
+			return null;
+		}
+		catch (Exception e) {
+			Trace.warn("RM channel [" + host + ":" + port + "] failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Closes every channel in the pool
+	public void close() {
+		synchronized (channels) {
+			for (int i = 0; i < channels.length(); i++) {
+				TCPChannel channel = channels.getAndSet(i, null);
+				if (channel != null) channel.close();
+			}
+		}
+	}
+
+	// Picks the next channel round-robin, (re)connecting it if it is not open
+	private TCPChannel getChannel() throws IOException {
+		int slot = Math.floorMod(nextChannel.getAndIncrement(), channels.length());
+
+		TCPChannel channel = channels.get(slot);
+		if (channel != null && channel.isOpen()) return channel;
+
+		synchronized (channels) {
+			channel = channels.get(slot);
+			if (channel == null || !channel.isOpen()) {
+				channel = new TCPChannel(host, port);
+				channels.set(slot, channel);
+				Trace.info("Opened RM channel " + slot + " to [" + host + ":" + port + "]");
+			}
+			return channel;
+		}
+	}
+}
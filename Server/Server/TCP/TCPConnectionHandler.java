@@ -1,55 +1,140 @@
 package Server.TCP;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
 
 import Server.Common.ResourceManager;
+import Server.Common.Trace;
+import Server.Interface.InvalidTransactionException;
 import Server.Interface.MessageType;
 import Server.Interface.TCPMessage;
+import Server.Interface.TCPMessageCodec;
+import Server.Interface.TransactionAbortedException;
 
-public class TCPConnectionHandler implements Runnable {
+public class TCPConnectionHandler implements Runnable, TCPRequestHandler {
 
 	private Socket clientSocket;
+	private OutputStream output;
 
-	// The remote host name and port attached to the clientSocket
+	// The remote address and port attached to the clientSocket; the host name is only looked up
+	// (reverse DNS) when a message needs it, see clientName()
+	private InetAddress address;
 	private String hostName;
 	private int port;
 
 	// The resource manager which will process all client requests
 	ResourceManager resourceManager;
 
+	// Handles the requests multiplexed on a persistent channel (null to handle them one at a time)
+	private ExecutorService workerPool;
+
 	public TCPConnectionHandler(Socket clientSocket, ResourceManager resourceManager) {
+		this(clientSocket, resourceManager, null);
+	}
+
+	public TCPConnectionHandler(Socket clientSocket, ResourceManager resourceManager, ExecutorService workerPool) {
 		this.clientSocket = clientSocket;
 		this.resourceManager = resourceManager;
-		this.hostName = clientSocket.getInetAddress().getHostName();
+		this.workerPool = workerPool;
+		this.address = clientSocket.getInetAddress();
 		this.port = clientSocket.getPort();
+	}
 
-		// Truncate the ".CS.McGill.CA" part of the hostname
-		int indexOfSuffix = this.hostName.indexOf(".CS");
-		if (indexOfSuffix != -1)
-			this.hostName = this.hostName.substring(0, indexOfSuffix);
+	// Returns "host:port" of the client, resolving the host name on first use
+	private String clientName() {
+		if (hostName == null) {
+			String name = address.getHostName();
+
+			// Truncate the ".CS.McGill.CA" part of the hostname
+			int indexOfSuffix = name.indexOf(".CS");
+			if (indexOfSuffix != -1)
+				name = name.substring(0, indexOfSuffix);
+			hostName = name;
+		}
+		return hostName + ":" + port;
 	}
 
 	@Override
 	public void run() {
 
+		// Read and handle the messages sent by the client until it closes the connection. A one-shot
+		// client sends a single request; a persistent channel keeps sending requests tagged with a
+		// correlation id, which are handled concurrently on the worker pool.
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+
+			while (true) {
+				TCPMessage request;
+				try {
+					request = TCPMessageCodec.readRequest(input);
+				} catch (EOFException e) {
+					break;
+				}
+
+				if (request != null && request.correlationId != 0 && workerPool != null) {
+					workerPool.execute(() -> respond(request));
+				} else {
+					respond(request);
+				}
+			}
+		} catch (IOException e) {
+			if (!clientSocket.isClosed()) {
+				System.err.println("Connection with [" + clientName() + "] lost: " + e.getMessage());
+			}
+		}
+		// Close the connection
+		finally {
+			if (clientSocket != null) {
+				try {
+					clientSocket.close();
+				} catch (IOException e) {
+					System.err.println(
+							"Error closing client socket connection to server [" + clientName() + "]");
+				}
+			}
+		}
+	}
+
+	// Handles a single request and sends the response (either a success or an error)
+	private void respond(TCPMessage request) {
+		TCPMessage response = handleRequest(request);
+
+		// Send a response
+		try {
+			sendMessage(response);
+		} catch (Exception e) {
+			System.err.println(
+					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError sending an outgoing TCP message");
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	// Dispatches a request to the resource manager and returns the response to send back
+	@Override
+	public TCPMessage handleRequest(TCPMessage request) {
+
 		// TCPMessage to send in response (either a success or an error)
 		TCPMessage response = null;
+		long start = System.nanoTime();
 
-		// Read and handle the message sent by the client
 		try {
-			ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream());
-			TCPMessage request = (TCPMessage) input.readObject();
-
 			if (request != null) {
 
 				switch (request.type) {
 				case HELLO:
 					response = handleHello();
 					break;
+				case STATS:
+					response = handleStats();
+					break;
 				case ADD_FLIGHT:
 					response = handleAddFlight(request);
 					break;
@@ -119,64 +204,86 @@ public class TCPConnectionHandler implements Runnable {
 				case CANCEL_ITEM_RESERVATIONS:
 					response = handleCancelItemReservations(request);
 					break;
+				case GET_CUSTOMER_RESERVATIONS:
+					response = handleGetCustomerReservations(request);
+					break;
+				case ADD_CUSTOMER_RESERVATIONS:
+					response = handleAddCustomerReservations(request);
+					break;
+				case START:
+					response = handleStart(request);
+					break;
+				case PREPARE:
+					response = handlePrepare(request);
+					break;
+				case COMMIT:
+					response = handleCommit(request);
+					break;
+				case ABORT:
+					response = handleAbort(request);
+					break;
 				default:
 					throw new IOException("Unrecognized TCPMessage.type: " + request.type);
 				}
 			} else {
 				throw new IOException("Invalid TCPMessage: " + request);
 			}
+		} catch (InvalidTransactionException e) {
+			// Tell the middleware apart from a failure, e.g. when it sends a commit again
+			response = new TCPMessage(MessageType.INVALID_TRANSACTION);
+			Trace.warn("RM::" + request.type + " from [" + clientName() + "] rejected: " + e.getMessage());
+		} catch (TransactionAbortedException e) {
+			// A deadlock victim: the transaction was aborted here, the client is to abort it everywhere
+			response = new TCPMessage(MessageType.TRANSACTION_ABORTED);
+			Trace.warn("RM::" + request.type + " from [" + clientName() + "] aborted: " + e.getMessage());
 		} catch (Exception e) {
 			// In the case of an exception, prepare to send an error response
 			response = new TCPMessage(MessageType.ERROR);
 
-			System.err.println(
-					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError handling incoming TCP message");
+			System.err.println((char) 27 + "[31;1mServer exception: " + (char) 27
+					+ "[0mError handling incoming TCP message from [" + clientName() + "]");
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 		}
 
-		// Send a response
-		try {
-			sendMessage(response);
-		} catch (Exception e) {
-			System.err.println(
-					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError sending an outgoing TCP message");
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-		}
-		// Close the connection
-		finally {
-			if (clientSocket != null) {
-				try {
-					clientSocket.close();
-				} catch (IOException e) {
-					System.err.println(
-							"Error closing client socket connection to server [" + hostName + ":" + port + "]");
-				}
-			}
+		if (request != null) {
+			RequestMetrics.shared().record(request.type, start, RequestMetrics.isError(response.type));
+
+			// Responses on a persistent channel carry the id of the request they answer
+			response.correlationId = request.correlationId;
 		}
+		return response;
 	}
 
-	// Sends a message to the server on the specified port using sockets
+	// Sends a message to the client on the connection's output stream, which is shared by all the
+	// responses sent on a persistent channel
 	public void sendMessage(TCPMessage outgoingMessage) throws IOException {
 
-		// Send the message to the server
-		ObjectOutputStream output = new ObjectOutputStream(clientSocket.getOutputStream());
-		output.writeObject(outgoingMessage);
+		synchronized (clientSocket) {
+			if (output == null) output = clientSocket.getOutputStream();
+
+			// Send the message to the client
+			TCPMessageCodec.writeResponse(output, outgoingMessage);
+		}
 	}
 
 	// Handles messages of type "HELLO"
 	private TCPMessage handleHello() {
-		System.out.println("Received connection request from [" + hostName + ":" + port + "]");
-
 		// Send a hello message in response
 		return new TCPMessage(MessageType.HELLO);
 	}
 
+	// Handles messages of type "STATS": the request metrics and, if enabled, the write-ahead log
+	// statistics
+	private TCPMessage handleStats() {
+		TCPMessage response = new TCPMessage(MessageType.STATS);
+		String logStats = resourceManager.getLogStats();
+		response.stringResult = RequestMetrics.shared().report() + (logStats == null ? "" : "\n" + logStats);
+		return response;
+	}
+
 	// Handles messages of type "ADD_FLIGHT"
 	private TCPMessage handleAddFlight(TCPMessage r) throws RemoteException {
-		System.out.println("Received ADD_FLIGHT request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.addFlight(r.id, r.flightNum, r.flightSeats, r.flightPrice);
 
 		return r;
@@ -184,177 +291,169 @@ public class TCPConnectionHandler implements Runnable {
 
 	// Handles messages of type "ADD_CARS"
 	private TCPMessage handleAddCars(TCPMessage r) throws RemoteException {
-		System.out.println("Received ADD_CARS request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.addCars(r.id, r.location, r.numCars, r.price);
 		return r;
 	}
 
 	// Handles messages of type ADD_ROOMS
 	private TCPMessage handleAddRooms(TCPMessage r) throws RemoteException {
-		System.out.println("Received ADD_ROOMS request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.addRooms(r.id, r.location, r.numRooms, r.price);
 		return r;
 	}
 
 	// Handles messages of type NEW_CUSTOMER
 	private TCPMessage handleAddNewCust(TCPMessage r) throws RemoteException {
-		System.out.println("Received NEW_CUSTOMER request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.newCustomer(r.id);
 		return r;
 	}
 
 	// Handles messages of type NEW_CUSTOMER_ID
 	private TCPMessage handleAddNewCustID(TCPMessage r) throws RemoteException {
-		System.out.println("Received NEW_CUSTOMER_ID request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.newCustomer(r.id, r.cid);
 		return r;
 	}
 
 	// Handles messages of type DELETE_FLIGHT
 	private TCPMessage handleDeleteFlight(TCPMessage r) throws RemoteException {
-		System.out.println("Received DELETE_FLIGHT request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.deleteFlight(r.id, r.flightNum);
 		return r;
 	}
 
 	// Handles messages of type DELETE_CARS
 	private TCPMessage handleDeleteCars(TCPMessage r) throws RemoteException {
-		System.out.println("Received DELETE_CARS request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.deleteCars(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type DELETE_ROOMS
 	private TCPMessage handleDeleteRooms(TCPMessage r) throws RemoteException {
-		System.out.println("Received DELETE_ROOMS request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.deleteRooms(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type DELETE_CUSTOMER
 	private TCPMessage handleDeleteCustomer(TCPMessage r) throws RemoteException {
-		System.out.println("Received DELETE_CUSTOMER request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.deleteCustomer(r.id, r.customerID);
 		return r;
 	}
 
 	// Handles messages of type QUERY_FLIGHT
 	private TCPMessage handleQueryFlight(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERY_FLIGHT request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryFlight(r.id, r.flightNum);
 		return r;
 	}
 
 	// Handles messages of type QUERY_CARS
 	private TCPMessage handleQueryCars(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERY_CARS request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryCars(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type QUERY_ROOMS
 	private TCPMessage handleQueryRooms(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERY_ROOMS request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryRooms(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type QUERY_CUSTOMER_INFO
 	private TCPMessage handleQueryCustomerInfo(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERY_CUSTOMER_INFO request from [" + hostName + ":" + port + "]");
-
 		r.stringResult = resourceManager.queryCustomerInfo(r.id, r.customerID);
 		return r;
 	}
 
 	// Handles messages of type QUERY_FLIGHT_PRICE
 	private TCPMessage handleQueryFlightPrice(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERRY_FLIGHT_PRICE request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryFlightPrice(r.id, r.flightNumber);
 		return r;
 	}
 
 	// Handles messages of type QUERY_CARS_PRICE
 	private TCPMessage handleQueryCarsPrice(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERY_CARS_PRICE request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryCarsPrice(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type QUERRY_ROOMS_PRICE
 	private TCPMessage handleQueryRoomsPrice(TCPMessage r) throws RemoteException {
-		System.out.println("Received QUERRY_ROOMS_PRICE request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.queryRoomsPrice(r.id, r.location);
 		return r;
 	}
 
 	// Handles messages of type RESERVE_FLIGHT
 	private TCPMessage handleReserveFlight(TCPMessage r) throws RemoteException {
-		System.out.println("Received RESERVE_FLIGHT request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.reserveFlight(r.id, r.customerID, r.flightNum);
 		return r;
 	}
 
 	// Handles messages of type RESERVE_CAR
 	private TCPMessage handleReserveCar(TCPMessage r) throws RemoteException {
-		System.out.println("Received RESERVE_CAR request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.reserveCar(r.id, r.customerID, r.location);
 		return r;
 	}
 
 	// Handles messages of type RESERVE_ROOM
 	private TCPMessage handleReserveRoom(TCPMessage r) throws RemoteException {
-		System.out.println("Received RESERVE_ROOM request from [" + hostName + ":" + port + "]");
-
 		r.intResult = resourceManager.reserveRoom(r.id, r.customerID, r.location);
 		return r;
 	}
 
 	// Handles messages of type BUNDLE
 	private TCPMessage handleBundle(TCPMessage r) throws RemoteException {
-		System.out.println("Received BUNDLE request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.bundle(r.id, r.customerID, r.flightNumbers, r.location, r.car, r.room);
 		return r;
 	}
 	
 	// Handles messages of type CHECK_FLIGHT_LIST
 	private TCPMessage handleCheckFlightList(TCPMessage r) throws RemoteException {
-		System.out.println("Received CHECK_FLIGHT_LIST request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.checkFlightList(r.id, r.flightNumbers, r.location);
 		return r;
 	}
 	
 	// Handles messages of type RESERVE_FLIGHT_LIST
 	private TCPMessage handleReserveFlightList(TCPMessage r) throws RemoteException {
-		System.out.println("Received RESERVE_FLIGHT_LIST request from [" + hostName + ":" + port + "]");
-
 		r.vectorIntResult = resourceManager.reserveFlightList(r.id, r.customerID, r.flightNumbers, r.location);
 		return r;
 	}
 	
 	// Handles messages of type CANCEL_ITEM_RESERVATIONS
 	private TCPMessage handleCancelItemReservations(TCPMessage r) throws RemoteException {
-		System.out.println("Received CANCEL_ITEM_RESERVATIONS request from [" + hostName + ":" + port + "]");
-
 		r.booleanResult = resourceManager.cancelItemReservations(r.id, r.reservedKeysMap);
 		return r;
 	}
+
+	// Handles messages of type GET_CUSTOMER_RESERVATIONS; the map is null if there is no such customer
+	private TCPMessage handleGetCustomerReservations(TCPMessage r) throws RemoteException {
+		r.reservedKeysMap = resourceManager.getCustomerReservations(r.id, r.customerID);
+		return r;
+	}
+
+	// Handles messages of type ADD_CUSTOMER_RESERVATIONS
+	private TCPMessage handleAddCustomerReservations(TCPMessage r) throws RemoteException {
+		r.booleanResult = resourceManager.addCustomerReservations(r.id, r.customerID, r.reservedKeys, r.prices);
+		return r;
+	}
+
+	// Handles messages of type START
+	private TCPMessage handleStart(TCPMessage r) throws RemoteException {
+		r.intResult = resourceManager.start();
+		return r;
+	}
+
+	// Handles messages of type PREPARE
+	private TCPMessage handlePrepare(TCPMessage r) throws RemoteException {
+		r.booleanResult = resourceManager.prepare(r.id);
+		return r;
+	}
+
+	// Handles messages of type COMMIT
+	private TCPMessage handleCommit(TCPMessage r) throws RemoteException {
+		r.booleanResult = resourceManager.commit(r.id);
+		return r;
+	}
+
+	// Handles messages of type ABORT
+	private TCPMessage handleAbort(TCPMessage r) throws RemoteException {
+		r.booleanResult = resourceManager.abort(r.id);
+		return r;
+	}
 }
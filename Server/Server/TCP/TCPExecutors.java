@@ -0,0 +1,190 @@
+package Server.TCP;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import Server.Common.Trace;
+
+/*
+ * Creates the executors the TCP servers run connections and requests on.
+ *
+ * -Dtcp.threads=pool    (default) a fixed pool of 50 platform threads
+ * -Dtcp.threads=virtual one virtual thread per task, so handlers blocked on a resource manager
+ *                       do not hold a pool thread; falls back to an unbounded cached pool when
+ *                       the JVM has no virtual threads (before Java 21)
+ * -Dtcp.maxInFlight=N   admission limit: at most N tasks run at once, further submissions wait
+ *                       for a slot (see tryExecute for threads that must not wait); 0 (the
+ *                       default) admits everything
+ */
+public class TCPExecutors {
+
+	private static final int POOL_SIZE = 50;
+
+	private static String s_threads = System.getProperty("tcp.threads", "pool");
+	private static int s_maxInFlight = Integer.getInteger("tcp.maxInFlight", 0);
+
+	private TCPExecutors() {}
+
+	public static ExecutorService newExecutor() {
+		ExecutorService executor;
+		if (s_threads.equals("virtual")) {
+			executor = newVirtualThreadExecutor();
+		}
+		else {
+			executor = Executors.newFixedThreadPool(POOL_SIZE);
+		}
+
+		if (s_maxInFlight > 0) {
+			executor = new AdmissionExecutor(executor, s_maxInFlight);
+		}
+		return executor;
+	}
+
+	// Describes the configured executors, for the startup message
+	public static String describe() {
+		String threads = s_threads.equals("virtual") ? "virtual threads" : POOL_SIZE + " pooled threads";
+		return threads + (s_maxInFlight > 0 ? ", at most " + s_maxInFlight + " in flight" : "");
+	}
+
+	// Runs the task if the executor admits it right away and returns true. Otherwise returns false
+	// without waiting, and calls onAdmission once a slot may be free; the caller then tries again.
+	// Used by the selector threads, which must never block.
+	public static boolean tryExecute(ExecutorService executor, Runnable task, Runnable onAdmission) {
+		if (executor instanceof AdmissionExecutor) {
+			return ((AdmissionExecutor) executor).tryExecute(task, onAdmission);
+		}
+		executor.execute(task);
+		return true;
+	}
+
+	// Called back by tryExecute for a submitter that no longer needs a slot, e.g. its connection
+	// closed meanwhile: calls back the next waiting submitter instead, so that the free slot does
+	// not go unused while others wait
+	public static void passAdmission(ExecutorService executor) {
+		if (executor instanceof AdmissionExecutor) {
+			((AdmissionExecutor) executor).passAdmission();
+		}
+	}
+
+	// Looked up reflectively so the servers still build and run on JDKs without virtual threads
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			Trace.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	// Runs tasks on the wrapped executor, blocking the submitter while maxInFlight tasks are running
+	private static class AdmissionExecutor extends AbstractExecutorService {
+
+		private ExecutorService executor;
+		private Semaphore admission;
+
+		// Called back when a slot is released, for the submitters turned away by tryExecute
+		private Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+		AdmissionExecutor(ExecutorService executor, int maxInFlight) {
+			this.executor = executor;
+			this.admission = new Semaphore(maxInFlight);
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			try {
+				admission.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for admission", e);
+			}
+			admitted(task);
+		}
+
+		boolean tryExecute(Runnable task, Runnable onAdmission) {
+			if (!admission.tryAcquire()) {
+				waiting.add(onAdmission);
+
+				// A slot released before the callback was queued did not call it back
+				if (admission.availablePermits() > 0) {
+					notifyWaiting();
+				}
+				return false;
+			}
+			admitted(task);
+			return true;
+		}
+
+		// Runs a task holding a slot, releasing the slot when it is done
+		private void admitted(Runnable task) {
+			try {
+				executor.execute(() -> {
+					try {
+						task.run();
+					}
+					finally {
+						release();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				release();
+				throw e;
+			}
+		}
+
+		private void release() {
+			admission.release();
+			notifyWaiting();
+		}
+
+		void passAdmission() {
+			if (admission.availablePermits() > 0) {
+				notifyWaiting();
+			}
+		}
+
+		private void notifyWaiting() {
+			Runnable onAdmission = waiting.poll();
+			if (onAdmission != null) {
+				onAdmission.run();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			executor.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return executor.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import Server.Common.Middleware;
 
@@ -14,26 +13,77 @@ public class TCPMiddleware extends Middleware {
 	
 	private static int port = 33303;
 
+	// Number of persistent channels kept open to each resource manager (-Dtcp.channels=N);
+	// 0 opens a new connection for every forwarded request
+	private static int s_channelsPerRM = Integer.getInteger("tcp.channels", 0);
+
+	// How connections are served (-Dtcp.server=blocking|nio) and, in nio mode, the number of
+	// selector threads (-Dtcp.ioThreads=N)
+	private static String s_serverMode = System.getProperty("tcp.server", "blocking");
+	private static int s_ioThreads = Integer.getInteger("tcp.ioThreads", 2);
+
+	// Interval in seconds at which the request metrics are written to stdout (-Dtcp.statsInterval=N);
+	// 0 only reports them on a STATS request
+	private static int s_statsInterval = Integer.getInteger("tcp.statsInterval", 0);
+
 	public static void main(String args[]) {
 		
 		ExecutorService threadPool = null;
 		ServerSocket serverSocket = null;
+		TCPChannelPool flightsChannels = null;
+		TCPChannelPool carsChannels = null;
+		TCPChannelPool roomsChannels = null;
+		TCPChannelPool customersChannels = null;
 			
 		// Create a server socket to listen for incoming connections
 		try {
 			// Create a new Server object
-			TCPMiddleware middleware = new TCPMiddleware(s_serverName, args[0], args[1], args[2]);
+			TCPMiddleware middleware = new TCPMiddleware(s_serverName, args[0], args[1], args[2], args[3]);
+			
+			if (s_statsInterval > 0) {
+				RequestMetrics.shared().startReporting(s_statsInterval);
+			}
+			
+			// Set up the persistent channels to the resource managers
+			if (s_channelsPerRM > 0) {
+				flightsChannels = new TCPChannelPool(middleware.getFlightsHost(), middleware.getPortNum(), s_channelsPerRM);
+				carsChannels = new TCPChannelPool(middleware.getCarsHost(), middleware.getPortNum(), s_channelsPerRM);
+				roomsChannels = new TCPChannelPool(middleware.getRoomsHost(), middleware.getPortNum(), s_channelsPerRM);
+				customersChannels = new TCPChannelPool(middleware.getCustomersHost(), middleware.getPortNum(), s_channelsPerRM);
+				System.out.println("'" + s_serverName + "' using " + s_channelsPerRM + " persistent channels per resource manager");
+			}
+			
+			// Commits not acknowledged are sent again over TCP too
+			middleware.setParticipants(TCPMiddlewareConnectionHandler.newParticipants(middleware,
+					flightsChannels, carsChannels, roomsChannels, customersChannels));
+			
+			if (s_serverMode.equals("nio")) {
+				// Serve all connections from a few selector threads, handling requests on the worker pool
+				final TCPChannelPool flights = flightsChannels;
+				final TCPChannelPool cars = carsChannels;
+				final TCPChannelPool rooms = roomsChannels;
+				final TCPChannelPool customers = customersChannels;
+				threadPool = TCPExecutors.newExecutor();
+				TCPSelectorServer server = new TCPSelectorServer(port, s_ioThreads, threadPool,
+						socket -> new TCPMiddlewareConnectionHandler(socket, middleware, flights, cars, rooms, customers));
+				System.out.println("'" + s_serverName + "' server ready to receive TCP connections on port " + port
+						+ " (" + s_ioThreads + " selector threads, " + TCPExecutors.describe() + ")");
+				server.run();
+				return;
+			}
 			
 			// Set up a server socket to listen for connections
 			serverSocket = new ServerSocket(port);
-			threadPool = Executors.newFixedThreadPool(50); // Maximum of 50 concurrent connections
+			threadPool = TCPExecutors.newExecutor(); // One task per connection
 			
-			System.out.println("'" + s_serverName + "' server ready to receive TCP connections on port " + port);
+			System.out.println("'" + s_serverName + "' server ready to receive TCP connections on port " + port
+					+ " (" + TCPExecutors.describe() + ")");
 			
 			while (true) {
 				// Receive a client connection request and dispatch it to a new thread
 				Socket clientSocket = serverSocket.accept();
-				Runnable clientThread = new TCPMiddlewareConnectionHandler(clientSocket, middleware);
+				Runnable clientThread = new TCPMiddlewareConnectionHandler(clientSocket, middleware,
+						flightsChannels, carsChannels, roomsChannels, customersChannels);
 				threadPool.execute(clientThread);
 			}
 		}
@@ -47,6 +97,10 @@ public class TCPMiddleware extends Middleware {
 		}
 		finally {
 			if (threadPool != null) threadPool.shutdown();
+			if (flightsChannels != null) flightsChannels.close();
+			if (carsChannels != null) carsChannels.close();
+			if (roomsChannels != null) roomsChannels.close();
+			if (customersChannels != null) customersChannels.close();
 			
 			if (serverSocket != null) {
 				try {
@@ -61,7 +115,7 @@ public class TCPMiddleware extends Middleware {
 		}
 	}
 	
-	public TCPMiddleware(String p_name, String flightsHost, String carsHost, String roomsHost) {
-		super(p_name, flightsHost, carsHost, roomsHost);
+	public TCPMiddleware(String p_name, String flightsHost, String carsHost, String roomsHost, String customersHost) {
+		super(p_name, flightsHost, carsHost, roomsHost, customersHost);
 	}
 }
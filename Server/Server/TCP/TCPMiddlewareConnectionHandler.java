@@ -1,35 +1,35 @@
 package Server.TCP;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.rmi.RemoteException;
 import java.util.HashMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
-import Server.Common.Car;
-import Server.Common.Customer;
-import Server.Common.Flight;
+import Server.Common.FanOutExecutor;
+import Server.Common.ItemKey;
 import Server.Common.Middleware;
-import Server.Common.RMHashMap;
-import Server.Common.ReservedItem;
-import Server.Common.Room;
 import Server.Common.Trace;
+import Server.Interface.InvalidTransactionException;
 import Server.Interface.MessageType;
 import Server.Interface.TCPMessage;
+import Server.Interface.TCPMessageCodec;
+import Server.Interface.TransactionAbortedException;
 
-public class TCPMiddlewareConnectionHandler implements Runnable {
+public class TCPMiddlewareConnectionHandler implements Runnable, TCPRequestHandler {
 
 	private Socket clientSocket;
 
-	// The remote host name and port attached to the clientSocket
+	// The remote address and port attached to the clientSocket; the host name is only looked up
+	// (reverse DNS) when a message needs it, see clientName()
+	private InetAddress clientAddress;
 	private String clientHost;
 	private int clientPort;
 	
@@ -37,33 +37,89 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 	private String flightsHost;
 	private String carsHost;
 	private String roomsHost;
+	private String customersHost;
 	private int rmPort;
 
-	// The middleware which will handle customer-specific operations
+	// Persistent channels to the resource managers (null to open a new socket per request)
+	private TCPChannelPool flightsChannels;
+	private TCPChannelPool carsChannels;
+	private TCPChannelPool roomsChannels;
+	private TCPChannelPool customersChannels;
+
+	// The middleware, which keeps track of the transactions
 	Middleware middleware;
 	
-	// Used in the bundle request
-	private static final int MAX_THREADS = 3;
-	private static final int WAIT_RESPONSE = 5;  // Seconds
+	// Runs the requests of operations spanning several resource managers
+	private FanOutExecutor fanOut = FanOutExecutor.shared();
+
+	// The resource managers, as participants of the two-phase commit
+	private final Middleware.Participants participants = new Middleware.Participants() {
+		@Override
+		public boolean prepare(int xid) {
+			return forwardToAll(TCPMessage.newPrepare(xid));
+		}
+
+		@Override
+		public boolean commit(int xid) {
+			return forwardToAll(TCPMessage.newCommit(xid), response -> committed(xid, response));
+		}
+
+		@Override
+		public boolean abort(int xid) {
+			return forwardToAll(TCPMessage.newAbort(xid));
+		}
+	};
 
 	public TCPMiddlewareConnectionHandler(Socket clientSocket, Middleware middleware) {
+		this(clientSocket, middleware, null, null, null, null);
+	}
+
+	public TCPMiddlewareConnectionHandler(Socket clientSocket, Middleware middleware, TCPChannelPool flightsChannels,
+			TCPChannelPool carsChannels, TCPChannelPool roomsChannels, TCPChannelPool customersChannels) {
 		this.clientSocket = clientSocket;
+		this.flightsChannels = flightsChannels;
+		this.carsChannels = carsChannels;
+		this.roomsChannels = roomsChannels;
+		this.customersChannels = customersChannels;
 		this.middleware = middleware;
-		this.clientHost = clientSocket.getInetAddress().getHostName();
-		this.clientPort = clientSocket.getPort();
+		if (clientSocket != null) {
+			this.clientAddress = clientSocket.getInetAddress();
+			this.clientPort = clientSocket.getPort();
+		}
 
-		// Truncate the ".CS.McGill.CA" part of the hostname
-		int indexOfSuffix = this.clientHost.indexOf(".CS");
-		if (indexOfSuffix != -1)
-			this.clientHost = this.clientHost.substring(0, indexOfSuffix);
-		
 		// Get the resource manager hosts and port
 		flightsHost = middleware.getFlightsHost();
 		carsHost = middleware.getCarsHost();
 		roomsHost = middleware.getRoomsHost();
+		customersHost = middleware.getCustomersHost();
 		rmPort = middleware.getPortNum();
 	}
 
+	// The resource managers as participants of the two-phase commit, for the middleware to reach on
+	// its own (see Middleware.setParticipants)
+	public static Middleware.Participants newParticipants(Middleware middleware, TCPChannelPool flightsChannels,
+			TCPChannelPool carsChannels, TCPChannelPool roomsChannels, TCPChannelPool customersChannels) {
+		return new TCPMiddlewareConnectionHandler(null, middleware, flightsChannels, carsChannels, roomsChannels,
+				customersChannels).participants;
+	}
+
+	// Returns "host:port" of the client, resolving the host name on first use
+	private String clientName() {
+		if (clientAddress == null) {
+			return "middleware";
+		}
+		if (clientHost == null) {
+			String name = clientAddress.getHostName();
+
+			// Truncate the ".CS.McGill.CA" part of the hostname
+			int indexOfSuffix = name.indexOf(".CS");
+			if (indexOfSuffix != -1)
+				name = name.substring(0, indexOfSuffix);
+			clientHost = name;
+		}
+		return clientHost + ":" + clientPort;
+	}
+
 	@Override
 	public void run() {
 
@@ -72,15 +128,66 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 
 		// Read and handle the message sent by the client
 		try {
-			ObjectInputStream input = new ObjectInputStream(clientSocket.getInputStream());
-			TCPMessage request = (TCPMessage) input.readObject();
+			DataInputStream input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			TCPMessage request = TCPMessageCodec.readRequest(input);
+			response = handleRequest(request);
+		} catch (Exception e) {
+			// In the case of an exception, prepare to send an error response
+			response = new TCPMessage(MessageType.ERROR);
+
+			System.err.println(
+					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError reading incoming TCP message");
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+		}
+
+		// Send a response
+		try {
+			sendMessage(clientSocket, response);
+		} catch (Exception e) {
+			System.err.println(
+					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError sending an outgoing TCP message");
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+		}
+		// Close the connection
+		finally {
+			if (clientSocket != null) {
+				try {
+					clientSocket.close();
+				} catch (IOException e) {
+					System.err.println(
+							"Error closing client socket connection to server [" + clientName() + "]");
+				}
+			}
+		}
+	}
 
+	// Dispatches a request to the middleware or the resource managers and returns the response to send back
+	@Override
+	public TCPMessage handleRequest(TCPMessage request) {
+
+		// TCPMessage to send in response (either a success or an error)
+		TCPMessage response = null;
+		long start = System.nanoTime();
+
+		try {
 			if (request != null) {
 
+				// Only the transactions started here are accepted; the outcome is asked for a
+				// transaction that has ended, see handleGetOutcome
+				if (request.type != MessageType.HELLO && request.type != MessageType.STATS
+						&& request.type != MessageType.START && request.type != MessageType.GET_OUTCOME) {
+					middleware.checkTransaction(request.id);
+				}
+
 				switch (request.type) {
 				case HELLO:
 					response = handleHello();
 					break;
+				case STATS:
+					response = handleStats();
+					break;
 				case ADD_FLIGHT:
 				case DELETE_FLIGHT:
 				case QUERY_FLIGHT:
@@ -100,17 +207,13 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 					response = forwardToRooms(request);
 					break;
 				case NEW_CUSTOMER:
-					response = handleAddNewCust(request);
-					break;
 				case NEW_CUSTOMER_ID:
-					response = handleAddNewCustID(request);
+				case QUERY_CUSTOMER_INFO:
+					response = forwardToCustomers(request);
 					break;
 				case DELETE_CUSTOMER:
 					response = handleDeleteCustomer(request);
 					break;
-				case QUERY_CUSTOMER_INFO:
-					response = handleQueryCustomerInfo(request);
-					break;
 				case RESERVE_FLIGHT:
 					response = handleReserveFlight(request);
 					break;
@@ -123,50 +226,55 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 				case BUNDLE:
 					response = handleBundle(request);
 					break;
+				case START:
+					response = handleStart(request);
+					break;
+				case COMMIT:
+					response = handleCommit(request);
+					break;
+				case ABORT:
+					response = handleAbort(request);
+					break;
+				case GET_OUTCOME:
+					response = handleGetOutcome(request);
+					break;
 				default:
 					throw new IOException("Unrecognized TCPMessage.type: " + request.type);
 				}
 			} else {
 				throw new IOException("Invalid TCPMessage: " + request);
 			}
+		} catch (TransactionAbortedException e) {
+			// A resource manager aborted the transaction, e.g. as a deadlock victim
+			response = new TCPMessage(MessageType.TRANSACTION_ABORTED);
+			Trace.warn("MW::" + request.type + " from [" + clientName() + "] aborted: " + e.getMessage());
 		} catch (Exception e) {
 			// In the case of an exception, prepare to send an error response
 			response = new TCPMessage(MessageType.ERROR);
 
-			System.err.println(
-					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError handling incoming TCP message");
+			System.err.println((char) 27 + "[31;1mServer exception: " + (char) 27
+					+ "[0mError handling incoming TCP message from [" + clientName() + "]");
 			System.err.println(e.getMessage());
 			e.printStackTrace();
 		}
 
-		// Send a response
-		try {
-			sendMessage(clientSocket, response);
-		} catch (Exception e) {
-			System.err.println(
-					(char) 27 + "[31;1mServer exception: " + (char) 27 + "[0mError sending an outgoing TCP message");
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-		}
-		// Close the connection
-		finally {
-			if (clientSocket != null) {
-				try {
-					clientSocket.close();
-				} catch (IOException e) {
-					System.err.println(
-							"Error closing client socket connection to server [" + clientHost + ":" + clientPort + "]");
-				}
-			}
+		// A forwarded request that failed comes back as null
+		if (response == null) response = new TCPMessage(MessageType.ERROR);
+
+		if (request != null) {
+			RequestMetrics.shared().record(request.type, start, RequestMetrics.isError(response.type));
+
+			// Responses carry the id of the request they answer
+			response.correlationId = request.correlationId;
 		}
+		return response;
 	}
 
-	// Sends a message to the server on the specified port using sockets
+	// Sends a response to the client using sockets
 	public void sendMessage(Socket recipient, TCPMessage outgoingMessage) throws IOException {
 
-		// Send the message to the server
-		ObjectOutputStream output = new ObjectOutputStream(recipient.getOutputStream());
-		output.writeObject(outgoingMessage);
+		// Send the message to the client
+		TCPMessageCodec.writeResponse(recipient.getOutputStream(), outgoingMessage);
 	}
 	
 	// Sends a message to the specified host using sockets, and awaits a response
@@ -179,11 +287,11 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 			socket = new Socket(host, port);
 			
 			// Send the message to the server
-			sendMessage(socket, outgoingMessage);
+			TCPMessageCodec.writeRequest(socket.getOutputStream(), outgoingMessage);
 			
 			// Receive a response
-			ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
-			TCPMessage response = (TCPMessage) input.readObject();
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			TCPMessage response = TCPMessageCodec.readResponse(input);
 			
 			// Check that the response is valid
 			if (response != null & response.type != MessageType.ERROR) {
@@ -193,10 +301,6 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 				return null;
 			}
 		}
-		catch (ClassNotFoundException e) {
-			System.err.println("Failed to establish connection with the server; invalid response received: " + e.getMessage());
-			return null;
-		}
 		catch (IOException e) {
 			System.out.println("Failed to connect to server using TCP [" + host + ":" + port + "]");
 			return null;
@@ -218,79 +322,66 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 		}
 	}
 
+	// Sends the message on a persistent channel if the middleware keeps some to this resource manager,
+	// otherwise on a new socket
+	private TCPMessage forward(TCPChannelPool channels, String host, TCPMessage outgoingMessage) {
+		if (channels != null) {
+			return channels.sendMessageWithResponse(outgoingMessage);
+		}
+		return sendMessageWithResponse(host, rmPort, outgoingMessage);
+	}
+
 	// Handles messages of type "HELLO"
 	private TCPMessage handleHello() {
-		Trace.info("MW::Received connection request from [" + clientHost + ":" + clientPort + "]");
+		Trace.info(() -> "MW::Received connection request from [" + clientName() + "]");
 
 		// Send a hello message in response
 		return new TCPMessage(MessageType.HELLO);
 	}
 	
+	// Handles messages of type "STATS": the middleware's request metrics and fan-out statistics
+	private TCPMessage handleStats() {
+		TCPMessage response = new TCPMessage(MessageType.STATS);
+		response.stringResult = RequestMetrics.shared().report() + "\n" + fanOut.getStats();
+		return response;
+	}
+
 	// Forwards the request to the flights resource manager and returns its response
 	private TCPMessage forwardToFlights(TCPMessage r) {
-		Trace.info("MW::Received " + r.type + " request from [" + clientHost + ":" + clientPort + "], forwarding to flightsHost");
-		return sendMessageWithResponse(flightsHost, rmPort, r);
+		Trace.info(() -> "MW::Received " + r.type + " request from [" + clientName() + "], forwarding to flightsHost");
+		return forward(flightsChannels, flightsHost, r);
 	}
 	
 	// Forwards the request to the cars resource manager and returns its response
 	private TCPMessage forwardToCars(TCPMessage r) {
-		Trace.info("MW::Received " + r.type + " request from [" + clientHost + ":" + clientPort + "], forwarding to carsHost");
-		return sendMessageWithResponse(carsHost, rmPort, r);
+		Trace.info(() -> "MW::Received " + r.type + " request from [" + clientName() + "], forwarding to carsHost");
+		return forward(carsChannels, carsHost, r);
 	}
 	
 	// Forwards the request to the rooms resource manager and returns its response
 	private TCPMessage forwardToRooms(TCPMessage r) {
-		Trace.info("MW::Received " + r.type + " request from [" + clientHost + ":" + clientPort + "], forwarding to roomsHost");
-		return sendMessageWithResponse(roomsHost, rmPort, r);
-	}
-
-	// Handles messages of type QUERY_CUSTOMER_INFO
-	private TCPMessage handleQueryCustomerInfo(TCPMessage r) throws RemoteException {
-		Trace.info("MW::Received QUERY_CUSTOMER_INFO request from [" + clientHost + ":" + clientPort + "], processing locally");
-
-		r.stringResult = middleware.queryCustomerInfo(r.id, r.customerID);
-		return r;
+		Trace.info(() -> "MW::Received " + r.type + " request from [" + clientName() + "], forwarding to roomsHost");
+		return forward(roomsChannels, roomsHost, r);
 	}
-	
-	// Handles messages of type NEW_CUSTOMER
-	private TCPMessage handleAddNewCust(TCPMessage r) throws RemoteException {
-		Trace.info("MW::Received NEW_CUSTOMER request from [" + clientHost + ":" + clientPort + "], processing locally");
 
-		r.intResult = middleware.newCustomer(r.id);
-		return r;
+	// Forwards the request to the customers resource manager and returns its response
+	private TCPMessage forwardToCustomers(TCPMessage r) {
+		Trace.info(() -> "MW::Received " + r.type + " request from [" + clientName() + "], forwarding to customersHost");
+		return forward(customersChannels, customersHost, r);
 	}
 
-	// Handles messages of type NEW_CUSTOMER_ID
-	private TCPMessage handleAddNewCustID(TCPMessage r) throws RemoteException {
-		Trace.info("MW::Received NEW_CUSTOMER_ID request from [" + clientHost + ":" + clientPort + "], processing locally");
+	// Handles messages of type DELETE_CUSTOMER: cancels the customer's reservations at the resource
+	// managers, then deletes the customer
+	private TCPMessage handleDeleteCustomer(TCPMessage r) throws TransactionAbortedException {
+		Trace.info(() -> "MW::Received DELETE_CUSTOMER(" + r.id + ", " + r.customerID + ") request from [" + clientName() + "]");
 
-		r.booleanResult = middleware.newCustomer(r.id, r.cid);
-		return r;
-	}
-
-	// Handles messages of type DELETE_CUSTOMER
-	private TCPMessage handleDeleteCustomer(TCPMessage r) throws RemoteException {
-		Trace.info("MW::Received DELETE_CUSTOMER(" + r.id + ", " + r.customerID + ") request from [" + clientHost + ":" + clientPort + "], processing locally");
-
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		if (customer == null)
+		HashMap<String, Integer> reservationsMap = getCustomerReservations(r.id, r.customerID);
+		if (reservationsMap == null)
 		{
 			Trace.warn("MW::deleteCustomer(" + r.id + ", " + r.customerID + ") failed--customer doesn't exist");
 			r.booleanResult = false;
 			return r;
 		}
-
-		// Increase the reserved numbers of all reservable items which the customer reserved. 
-		RMHashMap reservations = customer.getReservations();
-		
-		// Hashmap for storing keys and number of reservations
-		HashMap<String, Integer> reservationsMap = new HashMap<String, Integer>(); // <key, count>
-		
-		for (String reservedKey : reservations.keySet())
-		{
-			ReservedItem reserveditem = customer.getReservedItem(reservedKey);
-			reservationsMap.put(reserveditem.getKey(), reserveditem.getCount());	
-		}
 		
 		// Cancel item reservations in all resource managers. Return false if failed
 		if (!cancelItemSet(r.id, reservationsMap)) {
@@ -298,22 +389,16 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 			return r;
 		}
 		
-		// Remove the customer from the storage
-		middleware.removeData(r.id, customer.getKey());
-		Trace.info("MW::deleteCustomer(" + r.id + ", " + r.customerID + ") succeeded");
-		
-		r.booleanResult = true;
-		return r;
+		// Remove the customer from the customers resource manager
+		return forwardToCustomers(r);
 	}
 
 	// Handles messages of type RESERVE_FLIGHT
-	private TCPMessage handleReserveFlight(TCPMessage r) {
-		Trace.info("MW::Received RESERVE_FLIGHT request from [" + clientHost + ":" + clientPort + "], checking customer and forwarding to flightsHost");
+	private TCPMessage handleReserveFlight(TCPMessage r) throws TransactionAbortedException {
+		Trace.info(() -> "MW::Received RESERVE_FLIGHT request from [" + clientName() + "], checking customer and forwarding to flightsHost");
 
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		
 		// If customer does not exist, return -1
-		if (customer == null) {
+		if (getCustomerReservations(r.id, r.customerID) == null) {
 			r.intResult = -1;
 			return r;
 		}
@@ -322,11 +407,9 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 			// Reserve the flight on the flight server
 			TCPMessage response = forwardToFlights(r);
 			
-			// Reserve the flight in the customer database
-			if (response != null && response.type != MessageType.ERROR && response.intResult != -1) {
-				
-				customer.reserve(Flight.getKey(r.flightNum), String.valueOf(r.flightNum), response.intResult);
-				middleware.writeData(r.id, customer.getKey(), customer);
+			// Record the reservation with the customer
+			if (succeededReservation(response)) {
+				addReservation(r.id, r.customerID, ItemKey.flight(r.flightNum), response.intResult);
 			}
 			
 			return response;
@@ -334,13 +417,11 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 	}
 
 	// Handles messages of type RESERVE_CAR
-	private TCPMessage handleReserveCar(TCPMessage r) {
-		Trace.info("MW::Received RESERVE_CAR request from [" + clientHost + ":" + clientPort + "], checking customer and forwarding to carsHost");
+	private TCPMessage handleReserveCar(TCPMessage r) throws TransactionAbortedException {
+		Trace.info(() -> "MW::Received RESERVE_CAR request from [" + clientName() + "], checking customer and forwarding to carsHost");
 
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		
 		// If customer does not exist, return -1
-		if (customer == null) {
+		if (getCustomerReservations(r.id, r.customerID) == null) {
 			r.intResult = -1;
 			return r;
 		}
@@ -349,11 +430,9 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 			// Reserve the car on the car server
 			TCPMessage response = forwardToCars(r);
 			
-			// Reserve the car in the customer database
-			if (response != null && response.type != MessageType.ERROR && response.intResult != -1) {
-				
-				customer.reserve(Car.getKey(r.location), r.location, response.intResult);
-				middleware.writeData(r.id, customer.getKey(), customer);
+			// Record the reservation with the customer
+			if (succeededReservation(response)) {
+				addReservation(r.id, r.customerID, ItemKey.car(r.location), response.intResult);
 			}
 			
 			return response;
@@ -361,13 +440,11 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 	}
 
 	// Handles messages of type RESERVE_ROOM
-	private TCPMessage handleReserveRoom(TCPMessage r) {
-		Trace.info("MW::Received RESERVE_ROOM request from [" + clientHost + ":" + clientPort + "], checking customer and forwarding to roomsHost");
+	private TCPMessage handleReserveRoom(TCPMessage r) throws TransactionAbortedException {
+		Trace.info(() -> "MW::Received RESERVE_ROOM request from [" + clientName() + "], checking customer and forwarding to roomsHost");
 
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		
 		// If customer does not exist, return -1
-		if (customer == null) {
+		if (getCustomerReservations(r.id, r.customerID) == null) {
 			r.intResult = -1;
 			return r;
 		}
@@ -376,267 +453,292 @@ public class TCPMiddlewareConnectionHandler implements Runnable {
 			// Reserve the room on the room server
 			TCPMessage response = forwardToRooms(r);
 			
-			// Reserve the room in the customer database
-			if (response != null && response.type != MessageType.ERROR && response.intResult != -1) {
-				
-				customer.reserve(Room.getKey(r.location), r.location, response.intResult);
-				middleware.writeData(r.id, customer.getKey(), customer);
+			// Record the reservation with the customer
+			if (succeededReservation(response)) {
+				addReservation(r.id, r.customerID, ItemKey.room(r.location), response.intResult);
 			}
 			
 			return response;
 		}
 	}
 
-	// Handles messages of type BUNDLE
-	private TCPMessage handleBundle(TCPMessage r) {
-		Trace.info("MW::Received BUNDLE request from [" + clientHost + ":" + clientPort + "]");
-		
-		if (r.flightNumbers.isEmpty()) {
-			r.booleanResult = false;
-			return r;
+	// Returns the reservations of the customer from the customers resource manager (read locking the
+	// customer there), or null if there is no such customer
+	private HashMap<String, Integer> getCustomerReservations(int xid, int customerID) throws TransactionAbortedException {
+		TCPMessage response = forwardToCustomers(TCPMessage.newGetCustomerReservations(xid, customerID));
+		checkAborted(xid, response);
+		if (response == null || response.type == MessageType.ERROR) return null;
+		return response.reservedKeysMap;
+	}
+
+	// Throws TransactionAbortedException if the resource manager answered that it aborted the
+	// transaction, for the client to get the answer it would get from that resource manager
+	private void checkAborted(int xid, TCPMessage response) throws TransactionAbortedException {
+		if (aborted(response)) {
+			middleware.setRollbackOnly(xid);
+			throw new TransactionAbortedException(xid, "The transaction " + xid + " was aborted at a resource manager");
 		}
-		
-		boolean available = checkItemsAvailability(r);
-		
-		if (available) r.booleanResult = reserveItemsBundle(r);
-		else r.booleanResult = false;
-		return r;
 	}
-	
-	// Checks if the items in a BUNDLE request are available
-	private boolean checkItemsAvailability (TCPMessage r) {
-		
-		Trace.info("MW::Processing BUNDLE[checkItemsAvailability](" + r.id + ", " + r.customerID + ", " +
-					   r.flightNumbers.toString() + "," + r.location + ", " + r.car + ", " + r.room + ")");
-		boolean flightsResult = true;
-		boolean carResult = true;
-		boolean roomResult = true;
-		
-		// Threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
-		Future<Boolean> flightsFuture = null;
-		Future<Boolean> carFuture = null;
-		Future<Boolean> roomFuture = null;
 
-		// If customer does not exist, return false
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		if (customer == null) return false;
-		
-		// Send asynchronous requests to the resource managers
-		// Check the flights' availability
-		if (!r.flightNumbers.isEmpty()) {
-			
-			Callable<Boolean> checkFlightsCallback = () -> {	
-				Trace.info("MW::BUNDLE forwarding checkFlightList(" + r.id + ", " + r.flightNumbers + ", " + r.location + ") to flightsHost");
-				
-				// Send a CHECK_FLIGHT_LIST request to the flights server
-				TCPMessage checkRequest = TCPMessage.newCheckFlightList(r.id, r.flightNumbers, r.location);
-				TCPMessage checkResponse = forwardToFlights(checkRequest);
-				return checkResponse.booleanResult;
-			};
+	private static boolean aborted(TCPMessage response) {
+		return response != null && response.type == MessageType.TRANSACTION_ABORTED;
+	}
 
-			flightsFuture = executor.submit(checkFlightsCallback);
+	// Records an item reserved at a resource manager with the customer. Once the item is reserved the
+	// reservation cannot be undone on its own, so if it cannot be recorded the transaction is marked
+	// rollback-only.
+	private void addReservation(int xid, int customerID, ItemKey key, int price) throws TransactionAbortedException {
+		Vector<String> reservedKeys = new Vector<String>();
+		Vector<Integer> prices = new Vector<Integer>();
+		reservedKeys.add(key.toString());
+		prices.add(price);
+		if (!addReservations(xid, customerID, reservedKeys, prices)) {
+			Trace.warn("MW::addReservation(" + xid + ", " + customerID + ", " + key + ") failed, the transaction can only abort");
+			middleware.setRollbackOnly(xid);
 		}
-		
-		// Check the car availability
-		if (r.car) {
-			
-			Callable<Boolean> checkCarCallback = () -> {
-				Trace.info("MW::BUNDLE forwarding queryCars(" + r.id + ", " + r.location + ") to carsHost");
-				
-				// Send a QUERY_CARS request to the cars server
-				TCPMessage checkRequest = TCPMessage.newQueryCars(r.id, r.location);
-				TCPMessage checkResponse = forwardToCars(checkRequest);
-				return checkResponse.intResult > 0;
-			};
-			
-			carFuture = executor.submit(checkCarCallback);
-		}
-
-		// Check the room availability
-		if (r.room) {
-			
-			Callable<Boolean> checkRoomCallback = () -> {
-				Trace.info("MW::BUNDLE forwarding queryRooms(" + r.id + ", " + r.location + ") to roomsHost");
-				
-				// Send a QUERY_ROOMS request to the rooms server
-				TCPMessage checkRequest = TCPMessage.newQueryRooms(r.id, r.location);
-				TCPMessage checkResponse = forwardToRooms(checkRequest);
-				return checkResponse.intResult > 0;
-			};
-			
-			roomFuture = executor.submit(checkRoomCallback);
-		}	
+	}
 
-		// Wait for previously submitted tasks to execute, and then terminate the executor
-		executor.shutdown();
+	private boolean addReservations(int xid, int customerID, Vector<String> reservedKeys, Vector<Integer> prices)
+			throws TransactionAbortedException {
+		TCPMessage response = forwardToCustomers(TCPMessage.newAddCustomerReservations(xid, customerID, reservedKeys, prices));
+		checkAborted(xid, response);
+		return succeeded(response);
+	}
 
-		// Get the results
-		if (!r.flightNumbers.isEmpty()) flightsResult = handleThreadResult(flightsFuture);
-		if (r.car) carResult = handleThreadResult(carFuture);
-		if (r.room) roomResult = handleThreadResult(roomFuture);	
+	// Handles messages of type BUNDLE: one parallel round in which every resource manager reserves
+	// its part. A bundle that fails half way cannot be undone on its own, so the transaction is then
+	// marked rollback-only and its commit aborts it at every resource manager.
+	private TCPMessage handleBundle(TCPMessage r) throws TransactionAbortedException {
+		Trace.info(() -> "MW::Received BUNDLE request from [" + clientName() + "]");
 		
-		return flightsResult && carResult && roomResult;
-	}
-	
-	// Extracts the result from a Future<Boolean> object
-	private boolean handleThreadResult(Future<Boolean> itemsFuture) {
-		try {
-			// Limit the thread response time
-			return itemsFuture.get(WAIT_RESPONSE, TimeUnit.SECONDS);
+		if (r.flightNumbers.isEmpty()) {
+			r.booleanResult = false;
+			return r;
 		}
-		catch(Exception e) {
-			Trace.warn("RM::Thread exception: " + e.getMessage());
-			itemsFuture.cancel(true);
-			return false;
+
+		// If customer does not exist, return false
+		if (getCustomerReservations(r.id, r.customerID) == null) {
+			r.booleanResult = false;
+			return r;
 		}
-	}
 
-	// Reserves the items in a BUNDLE request
-	private boolean reserveItemsBundle(TCPMessage r) {
+		long deadline = fanOut.newDeadline();
+		Vector<Integer> flightPrices = new Vector<Integer>();
+		int[] carPrice = new int[1];
+		int[] roomPrice = new int[1];
 
-		Trace.info("MW::Processing BUNDLE[reserveItemsBundle](" + r.id + ", " + r.customerID + ", " +
-					   r.flightNumbers.toString() + "," + r.location + ", " + r.car + ", " + r.room + ")");
-		
-		boolean flightsResult = true;
-		boolean carResult = true;
-		boolean roomResult = true;
+		// The response of a resource manager that aborted the transaction
+		TCPMessage[] abortedResponse = new TCPMessage[1];
 
-		// Threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
-		Future<Boolean> flightsFuture = CompletableFuture.completedFuture(true);
 		Future<Boolean> carFuture = CompletableFuture.completedFuture(true);
 		Future<Boolean> roomFuture = CompletableFuture.completedFuture(true);
 
-		// If customer does not exist, return false
-		Customer customer = middleware.getCustomer(r.id, r.customerID);
-		if (customer == null) return false;
-
 		// Send asynchronous requests to the resource managers
 		// Reserve flights
-		if (!r.flightNumbers.isEmpty()) {
-			Callable<Boolean> reserveFlightsCallback = () -> {
-				
-				Trace.info("MW::BUNDLE forwarding reserveFlights(" + r.id + ", " + r.customerID + ", " + r.flightNumbers + ", " + r.location + ") to flightsHost");
-				
-				// Send a RESERVE_FLIGHT_LIST request to the flights server
-				TCPMessage request = TCPMessage.newReserveFlightList(r.id, r.customerID, r.flightNumbers, r.location);
-				TCPMessage response = forwardToFlights(request);
-				
-				// Check the result
-				Vector<Integer> prices = response.vectorIntResult;
-				if (prices.isEmpty()) return false;
-				
-				// Reserve the flights in the customer database
-				for (int i = 0; i < prices.size(); i++) {
-					int flightNum = Integer.parseInt(r.flightNumbers.get(i));
-					customer.reserve(Flight.getKey(flightNum), String.valueOf(flightNum), prices.get(i));
-					middleware.writeData(r.id, customer.getKey(), customer);
-				}
-				
-				return true;
-			};
+		Future<Boolean> flightsFuture = fanOut.submit(() -> {
+			Trace.info("MW::BUNDLE forwarding reserveFlights(" + r.id + ", " + r.customerID + ", " + r.flightNumbers + ", " + r.location + ") to flightsHost");
 
-			flightsFuture = executor.submit(reserveFlightsCallback);
-		}
+			// Send a RESERVE_FLIGHT_LIST request to the flights server
+			TCPMessage request = TCPMessage.newReserveFlightList(r.id, r.customerID, r.flightNumbers, r.location);
+			TCPMessage response = forwardToFlights(request);
+
+			// Check the result
+			if (aborted(response)) abortedResponse[0] = response;
+			if (response == null || response.type == MessageType.ERROR || response.vectorIntResult == null
+					|| response.vectorIntResult.size() != r.flightNumbers.size()) return false;
+			flightPrices.addAll(response.vectorIntResult);
+			return true;
+		});
 		
 		// Reserve car
-		if (r.car) {	
-			Callable<Boolean> reserveCarCallback = () -> {
-				
+		if (r.car) {
+			carFuture = fanOut.submit(() -> {
 				Trace.info("MW::BUNDLE forwarding reserveCar(" + r.id + ", " + r.customerID + ", " + r.location + ") to carsHost");
-				
+
 				// Send a RESERVE_CAR request to the cars server
-				TCPMessage request = TCPMessage.newReserveCar(r.id, r.customerID, r.location);
-				TCPMessage response = forwardToCars(request);
-				
-				// Check the result
-				if (response.intResult == -1) return false;
-				
-				// Reserve the car in the customer database
-				customer.reserve(Car.getKey(r.location), r.location, response.intResult);
-				middleware.writeData(r.id, customer.getKey(), customer);
+				TCPMessage response = forwardToCars(TCPMessage.newReserveCar(r.id, r.customerID, r.location));
+				if (aborted(response)) abortedResponse[0] = response;
+				if (!succeededReservation(response)) return false;
+				carPrice[0] = response.intResult;
 				return true;
-			};
-			
-			carFuture = executor.submit(reserveCarCallback);
+			});
 		}
 		
 		// Reserve room
-		if (r.room) {	
-			Callable<Boolean> reserveRoomCallback = () -> {
-				
+		if (r.room) {
+			roomFuture = fanOut.submit(() -> {
 				Trace.info("MW::BUNDLE forwarding reserveRoom(" + r.id + ", " + r.customerID + ", " + r.location + ") to roomsHost");
-				
+
 				// Send a RESERVE_ROOM request to the rooms server
-				TCPMessage request = TCPMessage.newReserveRoom(r.id, r.customerID, r.location);
-				TCPMessage response = forwardToRooms(request);
-				
-				// Check the result
-				if (response.intResult == -1) return false;
-				
-				// Reserve the room in the customer database
-				customer.reserve(Room.getKey(r.location), r.location, response.intResult);
-				middleware.writeData(r.id, customer.getKey(), customer);
+				TCPMessage response = forwardToRooms(TCPMessage.newReserveRoom(r.id, r.customerID, r.location));
+				if (aborted(response)) abortedResponse[0] = response;
+				if (!succeededReservation(response)) return false;
+				roomPrice[0] = response.intResult;
 				return true;
-			};
-			
-			roomFuture = executor.submit(reserveRoomCallback);
+			});
 		}
 		
-		// Wait for previously submitted tasks to execute, and then terminate the executor
-		executor.shutdown();
-
 		// Get the results
-		if (!r.flightNumbers.isEmpty()) flightsResult = handleThreadResult(flightsFuture);
-		if (r.car) carResult = handleThreadResult(carFuture);
-		if (r.room) roomResult = handleThreadResult(roomFuture);	
-		
-		return flightsResult && carResult && roomResult;
+		boolean flightsResult = fanOut.await(flightsFuture, deadline);
+		boolean carResult = fanOut.await(carFuture, deadline);
+		boolean roomResult = fanOut.await(roomFuture, deadline);
+
+		if (!(flightsResult && carResult && roomResult)) {
+			Trace.warn("MW::BUNDLE(" + r.id + ", " + r.customerID + ") failed, the transaction can only abort");
+			middleware.setRollbackOnly(r.id);
+			checkAborted(r.id, abortedResponse[0]);
+			r.booleanResult = false;
+			return r;
+		}
+
+		// Record the reservations with the customer
+		Vector<String> reservedKeys = new Vector<String>();
+		Vector<Integer> prices = new Vector<Integer>();
+		for (int i = 0; i < flightPrices.size(); i++) {
+			reservedKeys.add(ItemKey.flight(Integer.parseInt(r.flightNumbers.get(i))).toString());
+			prices.add(flightPrices.get(i));
+		}
+		if (r.car) {
+			reservedKeys.add(ItemKey.car(r.location).toString());
+			prices.add(carPrice[0]);
+		}
+		if (r.room) {
+			reservedKeys.add(ItemKey.room(r.location).toString());
+			prices.add(roomPrice[0]);
+		}
+		if (!addReservations(r.id, r.customerID, reservedKeys, prices)) {
+			Trace.warn("MW::BUNDLE(" + r.id + ", " + r.customerID + ") could not record the reservations, the transaction can only abort");
+			middleware.setRollbackOnly(r.id);
+			r.booleanResult = false;
+			return r;
+		}
+
+		r.booleanResult = true;
+		return r;
+	}
+
+	private static boolean succeededReservation(TCPMessage response) {
+		return response != null && response.type != MessageType.ERROR && response.type != MessageType.TRANSACTION_ABORTED
+				&& response.intResult != -1;
 	}
 	
+	// Handles messages of type START: the middleware issues the transaction ids
+	private TCPMessage handleStart(TCPMessage r) {
+		r.intResult = middleware.startTransaction();
+		Trace.info(() -> "MW::Received START request from [" + clientName() + "], started xid=" + r.intResult);
+		return r;
+	}
+
+	// Handles messages of type COMMIT: the middleware coordinates the two-phase commit of the
+	// transaction at the resource managers
+	private TCPMessage handleCommit(TCPMessage r) throws InvalidTransactionException {
+		Trace.info(() -> "MW::Received COMMIT(" + r.id + ") request from [" + clientName() + "]");
+
+		r.booleanResult = middleware.commitTransaction(r.id, participants);
+		return r;
+	}
+
+	// Handles messages of type ABORT: rolls back the transaction at the resource managers
+	private TCPMessage handleAbort(TCPMessage r) throws InvalidTransactionException {
+		Trace.info(() -> "MW::Received ABORT(" + r.id + ") request from [" + clientName() + "]");
+
+		r.booleanResult = middleware.abortTransaction(r.id, participants);
+		return r;
+	}
+
+	// Handles messages of type GET_OUTCOME, from a resource manager that missed the outcome of a
+	// transaction it prepared
+	private TCPMessage handleGetOutcome(TCPMessage r) throws RemoteException {
+		r.intResult = middleware.getOutcome(r.id);
+		Trace.info(() -> "MW::Received GET_OUTCOME(" + r.id + ") request from [" + clientName() + "], outcome " + r.intResult);
+		return r;
+	}
+
+	// Forwards a request to the four resource managers in parallel; returns true if all of them
+	// answered with a true booleanResult
+	private boolean forwardToAll(TCPMessage request) {
+		return forwardToAll(request, TCPMiddlewareConnectionHandler::succeeded);
+	}
+
+	// Forwards a request of the two-phase commit to the four resource managers in parallel, within
+	// the time budget of a round (see FanOutExecutor); returns true if all of the responses pass the
+	// check
+	private boolean forwardToAll(TCPMessage request, Predicate<TCPMessage> check) {
+		long deadline = fanOut.newCommitDeadline();
+
+		Future<Boolean> flightsFuture = fanOut.submit(() -> check.test(forwardToFlights(request)));
+		Future<Boolean> carsFuture = fanOut.submit(() -> check.test(forwardToCars(request)));
+		Future<Boolean> roomsFuture = fanOut.submit(() -> check.test(forwardToRooms(request)));
+		Future<Boolean> customersFuture = fanOut.submit(() -> check.test(forwardToCustomers(request)));
+
+		boolean flightsResult = fanOut.await(flightsFuture, deadline);
+		boolean carResult = fanOut.await(carsFuture, deadline);
+		boolean roomResult = fanOut.await(roomsFuture, deadline);
+		boolean customersResult = fanOut.await(customersFuture, deadline);
+
+		return flightsResult && carResult && roomResult && customersResult;
+	}
+
+	private static boolean succeeded(TCPMessage response) {
+		return response != null && response.type != MessageType.ERROR && response.type != MessageType.TRANSACTION_ABORTED
+				&& response.booleanResult;
+	}
+
+	// A resource manager that does not know the transaction it is asked to commit committed it on an
+	// earlier attempt, see Middleware.Participants
+	private static boolean committed(int xid, TCPMessage response) {
+		if (response != null && response.type == MessageType.INVALID_TRANSACTION) {
+			Trace.warn("MW::COMMIT(" + xid + ") unknown at a resource manager: it committed it already, or lost it");
+			return true;
+		}
+		return succeeded(response);
+	}
+
 	// Used by DELETE_CUSTOMER to cancel all of a customer's reservations
-	private boolean cancelItemSet(int xid, HashMap<String, Integer> reservationsMap) {
-		// Threads executor
-		ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+	private boolean cancelItemSet(int xid, HashMap<String, Integer> reservationsMap) throws TransactionAbortedException {
+		long deadline = fanOut.newDeadline();
 		
 		TCPMessage request = TCPMessage.newCancelItemReservations(xid, reservationsMap);
+
+		// The response of a resource manager that aborted the transaction
+		TCPMessage[] abortedResponse = new TCPMessage[1];
 		
 		// Cancel all reservations
 		Callable<Boolean> cancelFlights = () -> {
 			
 			// Send a CANCEL_ITEM_RESERVATIONS request to the flights server
 			TCPMessage response = forwardToFlights(request);
-			return response.booleanResult;
+			if (aborted(response)) abortedResponse[0] = response;
+			return succeeded(response);
 		};
 		
 		Callable<Boolean> cancelCars = () -> {
 			
 			// Send a CANCEL_ITEM_RESERVATIONS request to the cars server
 			TCPMessage response = forwardToCars(request);
-			return response.booleanResult;
+			if (aborted(response)) abortedResponse[0] = response;
+			return succeeded(response);
 		};
 		
 		Callable<Boolean> cancelRooms = () -> {
 			
 			// Send a CANCEL_ITEM_RESERVATIONS request to the rooms server
 			TCPMessage response = forwardToRooms(request);
-			return response.booleanResult;
+			if (aborted(response)) abortedResponse[0] = response;
+			return succeeded(response);
 		};
 		
 		// Submit value-returning tasks for execution in separate threads
-		Future<Boolean> flightsFuture = executor.submit(cancelFlights);
-		Future<Boolean> carsFuture = executor.submit(cancelCars);
-		Future<Boolean> roomsFuture = executor.submit(cancelRooms);
+		Future<Boolean> flightsFuture = fanOut.submit(cancelFlights);
+		Future<Boolean> carsFuture = fanOut.submit(cancelCars);
+		Future<Boolean> roomsFuture = fanOut.submit(cancelRooms);
 		
-		// Wait for previously submitted tasks to execute, and then terminate the executor
-		executor.shutdown();
-	
 		// Get the results
-		boolean flightsResult = handleThreadResult(flightsFuture);
-		boolean carResult = handleThreadResult(carsFuture);
-		boolean roomResult = handleThreadResult(roomsFuture);
+		boolean flightsResult = fanOut.await(flightsFuture, deadline);
+		boolean carResult = fanOut.await(carsFuture, deadline);
+		boolean roomResult = fanOut.await(roomsFuture, deadline);
 
+		checkAborted(xid, abortedResponse[0]);
 		return flightsResult && carResult && roomResult;
 	}
 }
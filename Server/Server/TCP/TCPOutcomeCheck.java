@@ -0,0 +1,81 @@
+package Server.TCP;
+
+import Server.Common.Middleware;
+import Server.Interface.ICoordinator;
+import Server.Interface.MessageType;
+import Server.Interface.TCPMessage;
+
+/*
+ * Checks that the middleware answers the GET_OUTCOME requests of the TCP resource managers for the
+ * transactions that ended, as it does over RMI (Middleware.getOutcome): committed while a resource
+ * manager has not acknowledged the commit, aborted after an abort and once every resource manager
+ * acknowledged the commit, undecided while the transaction runs.
+ *
+ * Usage: java -Djava.security.policy=java.policy Server.TCP.TCPOutcomeCheck
+ *
+ * The requests go through TCPMiddlewareConnectionHandler.handleRequest; the participants of the
+ * two-phase commit are stand-ins that vote to commit, so no resource manager needs to run.
+ *
+ * Exits with status 1 if an outcome is wrong.
+ */
+public class TCPOutcomeCheck {
+
+	// Whether the stand-in participants acknowledge a commit
+	private static volatile boolean s_acknowledge;
+
+	public static void main(String[] args) {
+		System.setProperty("middleware.retryInterval", "0");
+		Middleware middleware = new Middleware("OutcomeCheck", "localhost", "localhost", "localhost", "localhost");
+		Middleware.Participants participants = new Middleware.Participants() {
+			public boolean prepare(int xid) {
+				return true;
+			}
+
+			public boolean commit(int xid) {
+				return s_acknowledge;
+			}
+
+			public boolean abort(int xid) {
+				return true;
+			}
+		};
+		middleware.setParticipants(participants);
+		TCPMiddlewareConnectionHandler handler = new TCPMiddlewareConnectionHandler(null, middleware);
+		boolean passed = true;
+
+		try {
+			int running = middleware.startTransaction();
+			passed &= check(handler, "running", running, ICoordinator.UNDECIDED);
+
+			int unacknowledged = middleware.startTransaction();
+			s_acknowledge = false;
+			middleware.commitTransaction(unacknowledged, participants);
+			passed &= check(handler, "after a commit not acknowledged", unacknowledged, ICoordinator.COMMITTED);
+
+			int committed = middleware.startTransaction();
+			s_acknowledge = true;
+			middleware.commitTransaction(committed, participants);
+			passed &= check(handler, "after a commit acknowledged", committed, ICoordinator.ABORTED);
+
+			int aborted = middleware.startTransaction();
+			middleware.abortTransaction(aborted, participants);
+			passed &= check(handler, "after an abort", aborted, ICoordinator.ABORTED);
+		}
+		catch (Exception e) {
+			System.out.println("Unexpected exception: " + e);
+			passed = false;
+		}
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	// Returns true if the middleware answers GET_OUTCOME for the transaction with the expected outcome
+	private static boolean check(TCPMiddlewareConnectionHandler handler, String what, int xid, int expected) {
+		TCPMessage response = handler.handleRequest(TCPMessage.newGetOutcome(xid));
+		boolean passed = response.type == MessageType.GET_OUTCOME && response.intResult == expected;
+		System.out.println(String.format("%-32s xid %d: %s %d, expected %d%s", what, xid, response.type,
+				response.intResult, expected, passed ? "" : "  <-- FAILED"));
+		return passed;
+	}
+}
@@ -0,0 +1,13 @@
+package Server.TCP;
+
+import Server.Interface.TCPMessage;
+
+/*
+ * Turns a decoded request into the response to send back, independently of how the connection
+ * carrying the request is served.
+ */
+public interface TCPRequestHandler {
+
+	// Returns the response to the request (an ERROR message if the request could not be handled)
+	public TCPMessage handleRequest(TCPMessage request);
+}
@@ -6,12 +6,18 @@
 package Server.TCP;
 
 import Server.Common.*;
+import Server.Interface.ICoordinator;
+import Server.Interface.MessageType;
+import Server.Interface.TCPMessage;
+import Server.Interface.TCPMessageCodec;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.rmi.RemoteException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /*
  * Sockets usage based on the following Java Sockets tutorial:
@@ -23,6 +29,15 @@ public class TCPResourceManager extends ResourceManager
 	
 	private static int port = 33303;
 
+	// How connections are served (-Dtcp.server=blocking|nio) and, in nio mode, the number of
+	// selector threads (-Dtcp.ioThreads=N)
+	private static String s_serverMode = System.getProperty("tcp.server", "blocking");
+	private static int s_ioThreads = Integer.getInteger("tcp.ioThreads", 2);
+
+	// Interval in seconds at which the request metrics are written to stdout (-Dtcp.statsInterval=N);
+	// 0 only reports them on a STATS request
+	private static int s_statsInterval = Integer.getInteger("tcp.statsInterval", 0);
+
 	public static void main(String args[])
 	{
 		if (args.length > 0)
@@ -31,6 +46,7 @@ public class TCPResourceManager extends ResourceManager
 		}
 		
 		ExecutorService threadPool = null;
+		ExecutorService workerPool = null;
 		ServerSocket serverSocket = null;
 			
 		// Create a server socket to listen for incoming connections
@@ -38,16 +54,33 @@ public class TCPResourceManager extends ResourceManager
 			// Create a new Server object
 			TCPResourceManager resourceManager = new TCPResourceManager(s_serverName);
 			
+			if (s_statsInterval > 0) {
+				RequestMetrics.shared().startReporting(s_statsInterval);
+			}
+			
+			if (s_serverMode.equals("nio")) {
+				// Serve all connections from a few selector threads, handling requests on the worker pool
+				workerPool = TCPExecutors.newExecutor();
+				TCPSelectorServer server = new TCPSelectorServer(port, s_ioThreads, workerPool,
+						socket -> new TCPConnectionHandler(socket, resourceManager));
+				System.out.println("'" + s_serverName + "' resource manager server ready to receive TCP connections on port " + port
+						+ " (" + s_ioThreads + " selector threads, " + TCPExecutors.describe() + ")");
+				server.run();
+				return;
+			}
+			
 			// Set up a server socket to listen for connections
 			serverSocket = new ServerSocket(port);
-			threadPool = Executors.newFixedThreadPool(50); // Maximum of 50 concurrent connections
+			threadPool = TCPExecutors.newExecutor(); // One task per connection
+			workerPool = TCPExecutors.newExecutor(); // Requests multiplexed on persistent channels
 			
-			System.out.println("'" + s_serverName + "' resource manager server ready to receive TCP connections on port " + port);
+			System.out.println("'" + s_serverName + "' resource manager server ready to receive TCP connections on port " + port
+					+ " (" + TCPExecutors.describe() + ")");
 			
 			while (true) {
 				// Receive a client connection request and dispatch it to a new thread
 				Socket clientSocket = serverSocket.accept();
-				Runnable clientThread = new TCPConnectionHandler(clientSocket, resourceManager);
+				Runnable clientThread = new TCPConnectionHandler(clientSocket, resourceManager, workerPool);
 				threadPool.execute(clientThread);
 			}
 		}
@@ -61,6 +94,7 @@ public class TCPResourceManager extends ResourceManager
 		}
 		finally {
 			if (threadPool != null) threadPool.shutdown();
+			if (workerPool != null) workerPool.shutdown();
 			
 			if (serverSocket != null) {
 				try {
@@ -79,4 +113,25 @@ public class TCPResourceManager extends ResourceManager
 	{
 		super(name);
 	}
+
+	// The middleware listens on the same port as the resource managers
+	protected ICoordinator getCoordinator(String host)
+	{
+		return xid -> {
+			TCPMessage response;
+			try (Socket socket = new Socket(host, port))
+			{
+				TCPMessageCodec.writeRequest(socket.getOutputStream(), TCPMessage.newGetOutcome(xid));
+				response = TCPMessageCodec.readResponse(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+			}
+			catch (IOException e) {
+				throw new RemoteException("Could not reach the middleware on " + host, e);
+			}
+			if (response.type != MessageType.GET_OUTCOME)
+			{
+				throw new RemoteException("The middleware on " + host + " could not tell the outcome of transaction " + xid);
+			}
+			return response.intResult;
+		};
+	}
 }
@@ -0,0 +1,324 @@
+package Server.TCP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import Server.Common.Trace;
+import Server.Interface.MessageType;
+import Server.Interface.TCPMessage;
+import Server.Interface.TCPMessageCodec;
+
+/*
+ * Non-blocking TCP server. A single acceptor thread hands new connections to a small number of I/O
+ * threads, each running a Selector over its connections. The I/O threads only read and write frames;
+ * decoded requests are handled on a separate worker pool, so an idle or slow connection costs a few
+ * buffers instead of a parked thread. When the worker pool does not admit a request (see
+ * -Dtcp.maxInFlight), its connection stops reading until a slot frees up; the I/O thread keeps
+ * serving the others.
+ */
+public class TCPSelectorServer {
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	private int port;
+	private ExecutorService workerPool;
+
+	// Creates the request handler for each accepted connection
+	private Function<Socket, TCPRequestHandler> handlerFactory;
+
+	private IOLoop[] ioLoops;
+	private volatile boolean running;
+
+	public TCPSelectorServer(int port, int ioThreads, ExecutorService workerPool,
+			Function<Socket, TCPRequestHandler> handlerFactory) {
+		this.port = port;
+		this.workerPool = workerPool;
+		this.handlerFactory = handlerFactory;
+		this.ioLoops = new IOLoop[Math.max(1, ioThreads)];
+	}
+
+	// Accepts connections until the server is stopped or the listening socket fails
+	public void run() throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(port), 1024);
+			running = true;
+
+			for (int i = 0; i < ioLoops.length; i++) {
+				ioLoops[i] = new IOLoop();
+				Thread thread = new Thread(ioLoops[i], "TCPSelectorServer-io-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			int next = 0;
+			while (running) {
+				// Receive a client connection and hand it to the next I/O thread
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				ioLoops[next].register(new Connection(channel, ioLoops[next]));
+				next = (next + 1) % ioLoops.length;
+			}
+		}
+		finally {
+			stop();
+			serverChannel.close();
+		}
+	}
+
+	public void stop() {
+		running = false;
+		for (IOLoop loop : ioLoops) {
+			if (loop != null) loop.selector.wakeup();
+		}
+	}
+
+	// The state kept for one client connection
+	private class Connection {
+		SocketChannel channel;
+		SelectionKey key;
+		IOLoop loop;
+		TCPRequestHandler handler;
+		ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		// Set while a received request waits for admission to the worker pool; only used by the I/O thread
+		boolean paused;
+
+		Connection(SocketChannel channel, IOLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.handler = handlerFactory.apply(channel.socket());
+		}
+
+		// Queues a response frame and asks the I/O thread to write it out
+		void send(byte[] frame) {
+			writeQueue.add(ByteBuffer.wrap(frame));
+			loop.requestWrite(this);
+		}
+
+		// The interest set of the connection when it has nothing to write
+		int readOps() {
+			return paused ? 0 : SelectionKey.OP_READ;
+		}
+
+		void close() {
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				Trace.warn("Error closing client connection: " + e.getMessage());
+			}
+		}
+	}
+
+	// One selector thread serving a share of the connections
+	private class IOLoop implements Runnable {
+		Selector selector;
+		Queue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+		Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+		Queue<Connection> pendingResumes = new ConcurrentLinkedQueue<Connection>();
+
+		IOLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(Connection connection) {
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+
+		void requestWrite(Connection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		void requestResume(Connection connection) {
+			pendingResumes.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					// Register the connections accepted since the last pass
+					Connection connection;
+					while ((connection = newConnections.poll()) != null) {
+						try {
+							connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+						}
+						catch (ClosedChannelException e) {
+							continue;
+						}
+					}
+
+					// Start writing the responses handled since the last pass
+					Connection pending;
+					while ((pending = pendingWrites.poll()) != null) {
+						if (pending.key != null && pending.key.isValid()) {
+							pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+						}
+					}
+
+					// Dispatch the requests held back while the worker pool was full
+					while ((pending = pendingResumes.poll()) != null) {
+						if (pending.key == null || !pending.key.isValid() || !pending.paused) {
+							// Closed (or resumed) meanwhile: the slot goes to the next connection waiting
+							TCPExecutors.passAdmission(workerPool);
+						}
+						else {
+							pending.paused = false;
+							pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_READ);
+							try {
+								dispatchFrames(pending);
+							}
+							catch (IOException e) {
+								pending.close();
+								TCPExecutors.passAdmission(workerPool);
+							}
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						connection = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable() && !connection.paused) read(connection);
+							if (key.isValid() && key.isWritable()) write(connection);
+						}
+						catch (IOException e) {
+							connection.close();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				System.err.println((char)27 + "[31;1mServer exception: " + (char)27 + "[0mSelector failed");
+				e.printStackTrace();
+			}
+			finally {
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				}
+				catch (IOException e) {
+					Trace.warn("Error closing selector: " + e.getMessage());
+				}
+			}
+		}
+
+		// Reads what is available and dispatches every complete frame to the worker pool
+		private void read(Connection connection) throws IOException {
+			if (connection.channel.read(connection.readBuffer) == -1) {
+				// The client closed the connection
+				connection.close();
+				return;
+			}
+			dispatchFrames(connection);
+		}
+
+		// Dispatches the complete frames of the read buffer. If the worker pool turns one away, the
+		// connection stops reading and keeps it (and the rest) in the buffer until it is resumed.
+		private void dispatchFrames(Connection connection) throws IOException {
+			ByteBuffer buffer = connection.readBuffer;
+			buffer.flip();
+			while (buffer.remaining() >= TCPMessageCodec.LENGTH_PREFIX) {
+				int start = buffer.position();
+				int length = buffer.getInt(start);
+				TCPMessageCodec.checkFrameLength(length);
+				if (buffer.remaining() < TCPMessageCodec.LENGTH_PREFIX + length) {
+					break;
+				}
+				buffer.position(start + TCPMessageCodec.LENGTH_PREFIX);
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				if (!dispatch(connection, payload)) {
+					buffer.position(start);
+					connection.paused = true;
+					connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+			}
+			buffer.compact();
+
+			// Grow the buffer if the frame being received does not fit
+			if (buffer.position() >= TCPMessageCodec.LENGTH_PREFIX) {
+				int needed = TCPMessageCodec.LENGTH_PREFIX + buffer.getInt(0);
+				if (needed > buffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(needed);
+					buffer.flip();
+					larger.put(buffer);
+					connection.readBuffer = larger;
+				}
+			}
+		}
+
+		// Writes queued responses until they are all sent or the socket buffer is full
+		private void write(Connection connection) throws IOException {
+			ByteBuffer frame;
+			while ((frame = connection.writeQueue.peek()) != null) {
+				connection.channel.write(frame);
+				if (frame.hasRemaining()) return;
+				connection.writeQueue.poll();
+			}
+			connection.key.interestOps(connection.readOps());
+
+			// A response may have been queued after the last peek
+			if (!connection.writeQueue.isEmpty()) {
+				connection.key.interestOps(connection.readOps() | SelectionKey.OP_WRITE);
+			}
+		}
+
+		// Hands a request to the worker pool; returns false if the pool did not admit it
+		private boolean dispatch(Connection connection, byte[] payload) {
+			try {
+				return TCPExecutors.tryExecute(workerPool, () -> {
+					TCPMessage response;
+					try {
+						response = connection.handler.handleRequest(TCPMessageCodec.decodeRequest(payload));
+					}
+					catch (IOException e) {
+						System.err.println((char)27 + "[31;1mServer exception: " + (char)27 + "[0mError decoding incoming TCP message");
+						System.err.println(e.getMessage());
+						response = new TCPMessage(MessageType.ERROR);
+					}
+
+					try {
+						connection.send(TCPMessageCodec.encodeResponse(response));
+					}
+					catch (IOException e) {
+						System.err.println((char)27 + "[31;1mServer exception: " + (char)27 + "[0mError encoding an outgoing TCP message");
+						System.err.println(e.getMessage());
+					}
+				}, () -> requestResume(connection));
+			}
+			catch (RejectedExecutionException e) {
+				Trace.warn("Worker pool rejected a request: " + e.getMessage());
+				connection.close();
+				return true;
+			}
+		}
+	}
+}
@@ -4,5 +4,6 @@
 #echo '  $1 - hostname of Flights'
 #echo '  $2 - hostname of Cars'
 #echo '  $3 - hostname of Rooms'
+#echo '  $4 - hostname of Customers'
 
-java -Djava.security.policy=java.policy -cp ../Client/Client.jar:. -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIMiddleware $1 $2 $3
+java -Djava.security.policy=java.policy -cp ../Client/Client.jar:. -Djava.rmi.server.codebase=file:$(pwd)/ Server.RMI.RMIMiddleware $1 $2 $3 $4
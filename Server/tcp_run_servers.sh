@@ -1,12 +1,13 @@
 #!/bin/bash 
 
-#TODO: SPECIFY THE HOSTNAMES OF 4 CS MACHINES (lab2-8, lab2-10, etc...)
-MACHINES=(lab2-22.cs.mcgill.ca lab2-33.cs.mcgill.ca lab2-44.cs.mcgill.ca lab2-41.cs.mcgill.ca)
+#TODO: SPECIFY THE HOSTNAMES OF 5 CS MACHINES (lab2-8, lab2-10, etc...)
+MACHINES=(lab2-22.cs.mcgill.ca lab2-33.cs.mcgill.ca lab2-44.cs.mcgill.ca lab2-41.cs.mcgill.ca lab2-12.cs.mcgill.ca)
 
 tmux new-session \; \
 	split-window -h \; \
 	split-window -v \; \
 	split-window -v \; \
+	split-window -v \; \
 	select-layout main-vertical \; \
 	select-pane -t 1 \; \
 	send-keys "ssh -t ${MACHINES[0]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; ./tcp_run_server.sh Flights\"" C-m \; \
@@ -14,5 +15,7 @@ tmux new-session \; \
 	send-keys "ssh -t ${MACHINES[1]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; ./tcp_run_server.sh Cars\"" C-m \; \
 	select-pane -t 3 \; \
 	send-keys "ssh -t ${MACHINES[2]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; ./tcp_run_server.sh Rooms\"" C-m \; \
+	select-pane -t 4 \; \
+	send-keys "ssh -t ${MACHINES[4]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; ./tcp_run_server.sh Customers\"" C-m \; \
 	select-pane -t 0 \; \
-	send-keys "ssh -t ${MACHINES[3]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; sleep .5s; ./tcp_run_middleware.sh ${MACHINES[0]} ${MACHINES[1]} ${MACHINES[2]}\"" C-m \;
+	send-keys "ssh -t ${MACHINES[3]} \"cd $(pwd) > /dev/null; echo -n 'Connected to '; hostname; sleep .5s; ./tcp_run_middleware.sh ${MACHINES[0]} ${MACHINES[1]} ${MACHINES[2]} ${MACHINES[4]}\"" C-m \;